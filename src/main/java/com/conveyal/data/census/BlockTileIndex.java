@@ -0,0 +1,99 @@
+package com.conveyal.data.census;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An index from block GEOID to a packed tile holding that block, so that blocks can be fetched by ID without a spatial
+ * extract. There is one file per county, so a handful of IDs only needs a handful of small files.
+ *
+ * Each file is gzipped, and holds the number of blocks as a varint, then for each block in GEOID order the difference
+ * between its GEOID and the previous one (the first is relative to the county) and the zigzag encoded difference
+ * between its packed tile and the previous one, both as varints. Neighboring blocks have nearby GEOIDs and are usually
+ * in the same tile, so most blocks take two or three bytes before compression.
+ */
+public class BlockTileIndex {
+    /** GEOID of the first block in a county is the county FIPS code times this */
+    private static final long COUNTY_MULTIPLIER = 10_000_000_000L;
+
+    /** block GEOIDs, sorted */
+    private final long[] geoids;
+
+    /** packed z11 or overflow tile holding each block */
+    private final int[] tiles;
+
+    public BlockTileIndex (long[] geoids, int[] tiles) {
+        if (geoids.length != tiles.length)
+            throw new IllegalArgumentException("Must have one tile for each GEOID");
+
+        this.geoids = geoids;
+        this.tiles = tiles;
+    }
+
+    /** @return the packed tile holding the given block, or -1 if it is not in this index */
+    public int tile (long geoid) {
+        int i = Arrays.binarySearch(geoids, geoid);
+        return i >= 0 ? tiles[i] : -1;
+    }
+
+    public int size () {
+        return geoids.length;
+    }
+
+    /** @return the key of the index file for the given county in a tileset */
+    public static String key (long county) {
+        return String.format("block-index/%05d.bin.gz", county);
+    }
+
+    /** Write the index for a county, whose GEOIDs must be sorted */
+    public void write (TileSink sink, long county) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(baos))) {
+            Varints.writeVarLong(out, geoids.length);
+
+            long prevGeoid = county * COUNTY_MULTIPLIER;
+            int prevTile = 0;
+
+            for (int i = 0; i < geoids.length; i++) {
+                if (geoids[i] < prevGeoid)
+                    throw new IllegalArgumentException("GEOIDs must be sorted and in county " + county);
+
+                Varints.writeVarLong(out, geoids[i] - prevGeoid);
+                Varints.writeVarLong(out, Varints.zigzag(tiles[i] - prevTile));
+                prevGeoid = geoids[i];
+                prevTile = tiles[i];
+            }
+        }
+
+        sink.put(key(county), baos.toByteArray());
+    }
+
+    /** Read the index for a county from a stream, which will be closed */
+    public static BlockTileIndex read (InputStream is, long county) throws IOException {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(is)))) {
+            int size = (int) Varints.readVarLong(in);
+            long[] geoids = new long[size];
+            int[] tiles = new int[size];
+
+            long prevGeoid = county * COUNTY_MULTIPLIER;
+            int prevTile = 0;
+
+            for (int i = 0; i < size; i++) {
+                prevGeoid += Varints.readVarLong(in);
+                prevTile += (int) Varints.unzigzag(Varints.readVarLong(in));
+                geoids[i] = prevGeoid;
+                tiles[i] = prevTile;
+            }
+
+            return new BlockTileIndex(geoids, tiles);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.conveyal.data.census;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+
+/**
+ * The boundary of an extract rasterized into a grid of cells in tile space, each of which is inside the boundary,
+ * outside it, or on its edge. Most features of a large extract are well inside or well outside the boundary, and can
+ * be classified from their envelopes in constant time, so only those near the edge need the exact JTS predicate, which
+ * for a detailed state or watershed boundary is costly even with a prepared geometry.
+ */
+public class BoundaryMask {
+    /** default length of the longer side of the grid, in cells */
+    public static final int DEFAULT_SIZE = 1024;
+
+    /** finest zoom level of a grid, about ten meters at the equator */
+    private static final int MAX_ZOOM = 22;
+
+    private static final byte OUTSIDE = 0, INSIDE = 1, EDGE = 2;
+
+    /** Where something is relative to the boundary */
+    public enum Location {
+        /** entirely outside the boundary */
+        OUTSIDE,
+        /** entirely inside the boundary */
+        INSIDE,
+        /** on the edge of the boundary, or in cells on both sides of it, so only an exact test will tell */
+        EDGE
+    }
+
+    /** the boundary, prepared for exact tests */
+    public final PreparedGeometry prepared;
+
+    /** zoom level of the grid; cells are tiles at this zoom level */
+    public final int zoom;
+
+    /** tile coordinates of the north west cell of the grid */
+    private final int minX, minY;
+
+    private final int width, height;
+
+    /**
+     * Summed area tables of inside and outside cells, (width + 1) by (height + 1): entry (x, y) is the number of such
+     * cells in the rectangle to the north west of grid cell (x, y), so the cells in any rectangle can be counted with
+     * four lookups.
+     */
+    private final int[] insideSums, outsideSums;
+
+    public BoundaryMask (Geometry bounds) {
+        this(bounds, DEFAULT_SIZE);
+    }
+
+    /** Rasterize the bounds into a grid no more than size cells on a side */
+    public BoundaryMask (Geometry bounds, int size) {
+        this.prepared = PreparedGeometryFactory.prepare(bounds);
+
+        Envelope env = bounds.getEnvelopeInternal();
+
+        // the finest zoom level at which the envelope spans no more than size cells in each direction
+        int z = MAX_ZOOM;
+        while (z > 0 && (column(env.getMaxX(), z) - column(env.getMinX(), z) >= size ||
+                row(env.getMinY(), z) - row(env.getMaxY(), z) >= size))
+            z--;
+
+        this.zoom = z;
+        this.minX = column(env.getMinX(), z);
+        this.minY = row(env.getMaxY(), z);
+        this.width = column(env.getMaxX(), z) - minX + 1;
+        this.height = row(env.getMinY(), z) - minY + 1;
+
+        byte[] cells = new byte[width * height];
+
+        TileCover.visit(bounds, zoom, new TileCover.CellVisitor() {
+            @Override
+            public void edge (int x, int y) {
+                if (contains(x, y))
+                    cells[(y - minY) * width + x - minX] = EDGE;
+            }
+
+            @Override
+            public void inside (int x, int y) {
+                if (contains(x, y) && cells[(y - minY) * width + x - minX] == OUTSIDE)
+                    cells[(y - minY) * width + x - minX] = INSIDE;
+            }
+        });
+
+        insideSums = new int[(width + 1) * (height + 1)];
+        outsideSums = new int[(width + 1) * (height + 1)];
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                byte cell = cells[y * width + x];
+                int i = (y + 1) * (width + 1) + x + 1;
+                int above = i - width - 1, left = i - 1, aboveLeft = i - width - 2;
+                insideSums[i] = insideSums[above] + insideSums[left] - insideSums[aboveLeft] + (cell == INSIDE ? 1 : 0);
+                outsideSums[i] = outsideSums[above] + outsideSums[left] - outsideSums[aboveLeft] +
+                        (cell == OUTSIDE ? 1 : 0);
+            }
+        }
+    }
+
+    /** @return where an envelope is relative to the boundary, from the cells it touches */
+    public Location locate (Envelope env) {
+        if (env.isNull())
+            return Location.OUTSIDE;
+
+        int x0 = column(env.getMinX(), zoom), x1 = column(env.getMaxX(), zoom);
+        int y0 = row(env.getMaxY(), zoom), y1 = row(env.getMinY(), zoom);
+        long cells = (long) (x1 - x0 + 1) * (y1 - y0 + 1);
+
+        // cells beyond the grid are outside the envelope of the boundary, and so outside the boundary
+        int cx0 = Math.max(x0, minX), cx1 = Math.min(x1, minX + width - 1);
+        int cy0 = Math.max(y0, minY), cy1 = Math.min(y1, minY + height - 1);
+
+        if (cx0 > cx1 || cy0 > cy1)
+            return Location.OUTSIDE;
+
+        long beyond = cells - (long) (cx1 - cx0 + 1) * (cy1 - cy0 + 1);
+
+        if (beyond == 0 && sum(insideSums, cx0, cy0, cx1, cy1) == cells)
+            return Location.INSIDE;
+        else if (beyond + sum(outsideSums, cx0, cy0, cx1, cy1) == cells)
+            return Location.OUTSIDE;
+        else
+            return Location.EDGE;
+    }
+
+    /** @return true if the geometry is not disjoint from the boundary, only testing it exactly near the edge */
+    public boolean intersects (Geometry geom) {
+        switch (locate(geom.getEnvelopeInternal())) {
+            case INSIDE:
+                return true;
+            case OUTSIDE:
+                return false;
+            default:
+                return prepared.intersects(geom);
+        }
+    }
+
+    /** @return the number of cells in the given range of tile coordinates, within the grid, from a summed area table */
+    private int sum (int[] sums, int x0, int y0, int x1, int y1) {
+        int w = width + 1;
+        x0 -= minX;
+        x1 -= minX - 1;
+        y0 -= minY;
+        y1 -= minY - 1;
+        return sums[y1 * w + x1] - sums[y0 * w + x1] - sums[y1 * w + x0] + sums[y0 * w + x0];
+    }
+
+    private boolean contains (int x, int y) {
+        return x >= minX && y >= minY && x < minX + width && y < minY + height;
+    }
+
+    private static int column (double lon, int zoom) {
+        return (int) Math.floor(TileCover.x(lon, 1 << zoom));
+    }
+
+    private static int row (double lat, int zoom) {
+        return (int) Math.floor(TileCover.y(lat, 1 << zoom));
+    }
+}
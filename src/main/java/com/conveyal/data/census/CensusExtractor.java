@@ -8,10 +8,15 @@ import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryCollection;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Extract Census data from a seamless datastore.
@@ -25,28 +30,112 @@ public class CensusExtractor {
     private static final int PRECISION = 6;
 
     public static void main (String... args) throws IOException {
-        if (args.length < 3 || args.length > 6) {
-            System.err.println("usage: CensusExtractor (s3://bucket|data_dir) n e s w [outfile.json]");
-            System.err.println("   or: CensusExtractor (s3://bucket|data_dir) boundary.geojson [outfile.json]");
+        // geometries may be simplified by up to this many degrees, to read a coarser pyramid level if there is one
+        double tolerance = 0;
+
+        // level of the geography hierarchy to extract
+        GeographyLevel level = GeographyLevel.BLOCK;
+
+        // switch to a coarser level, or refuse, if the extract would have more features than this; zero for no limit
+        long maxFeatures = 0;
+
+        // GEOID prefixes to extract instead of a bounding box or boundary, e.g. a county FIPS code
+        List<String> geoids = null;
+
+        // how features are selected by a bounding box, boundary or corridor
+        SpatialPredicate predicate = SpatialPredicate.INTERSECTS;
+
+        // extract the blocks within this many meters of a route given as a GeoJSON boundary, rather than within it
+        double buffer = 0;
+
+        // clip blocks to the boundary or corridor, with the fraction of each inside it in an area_fraction property
+        boolean clip = false;
+
+        while (args.length >= 2 && args[0].startsWith("--")) {
+            // number of arguments used by this option
+            int used = 2;
+
+            if ("--clip".equals(args[0])) {
+                clip = true;
+                used = 1;
+            } else if ("--tolerance".equals(args[0]))
+                tolerance = Double.parseDouble(args[1]);
+            else if ("--level".equals(args[0]))
+                level = GeographyLevel.fromKey(args[1]);
+            else if ("--max-features".equals(args[0]))
+                maxFeatures = Long.parseLong(args[1]);
+            else if ("--geoids".equals(args[0]))
+                geoids = Arrays.asList(args[1].split(","));
+            else if ("--predicate".equals(args[0]))
+                predicate = SpatialPredicate.fromKey(args[1]);
+            else if ("--buffer".equals(args[0]))
+                buffer = Double.parseDouble(args[1]);
+            else
+                break;
+
+            args = Arrays.copyOfRange(args, used, args.length);
+        }
+
+        boolean validArgs = geoids != null ? args.length >= 1 && args.length <= 2 : args.length >= 3 && args.length <= 6;
+
+        if (!validArgs || args[0].startsWith("--")) {
+            System.err.println("usage: CensusExtractor [options] (s3://bucket|data_dir) n e s w [outfile.json]");
+            System.err.println("   or: CensusExtractor [options] (s3://bucket|data_dir) boundary.geojson [outfile.json]");
+            System.err.println("   or: CensusExtractor [options] --geoids prefix,... (s3://bucket|data_dir) [outfile.json]");
+            System.err.println("  options: [--tolerance degrees] [--level block|block-group|tract|county]");
+            System.err.println("           [--max-features n] [--buffer meters]");
+            System.err.println("           [--predicate intersects|centroid-within|majority-area|envelope] [--clip]");
+            return;
+        }
+
+        if (level != GeographyLevel.BLOCK && tolerance > 0) {
+            System.err.println("--tolerance only applies to blocks");
+            return;
+        }
+
+        if (geoids != null && (tolerance > 0 || maxFeatures > 0 || buffer > 0 ||
+                predicate != SpatialPredicate.INTERSECTS || clip)) {
+            System.err.println("--tolerance, --max-features, --buffer, --predicate and --clip do not apply to " +
+                    "--geoids");
+            return;
+        }
+
+        if (clip && (level != GeographyLevel.BLOCK || tolerance > 0 || predicate != SpatialPredicate.INTERSECTS)) {
+            System.err.println("--clip selects the blocks that overlap the bounds, at full resolution");
+            return;
+        }
+
+        if (buffer > 0 && (args.length > 3 || level != GeographyLevel.BLOCK || tolerance > 0)) {
+            System.err.println("--buffer needs a GeoJSON route, and only applies to full resolution blocks");
             return;
         }
 
         SeamlessSource source;
         if (!args[0].startsWith("s3://"))
-            source = new FileSeamlessSource(args[0]);
+            source = new FileSeamlessSource(args[0], maxFeatures);
         else
-            source = new S3SeamlessSource(args[0].substring(5));
+            source = new S3SeamlessSource(args[0].substring(5), maxFeatures);
 
         long start = System.currentTimeMillis();
 
-        Map<Long, GeobufFeature> features;
+        if (geoids != null) {
+            // no geometry to test against, the features are selected by GEOID alone
+            Map<Long, GeobufFeature> features = source.extract(geoids, false, level);
+
+            long completeTime = System.currentTimeMillis() - start;
+            System.err.println("Read " + features.size() + " features in " + completeTime + "msec");
+
+            write(features, args.length == 2 ? new FileOutputStream(new File(args[1])) : System.out);
+            return;
+        }
+
+        Geometry bounds;
 
         if (args.length >= 4) {
-            features = source.extract(Double.parseDouble(args[1]),
+            bounds = SeamlessSource.rectangle(Double.parseDouble(args[1]),
                     Double.parseDouble(args[2]),
                     Double.parseDouble(args[3]),
-                    Double.parseDouble(args[4]),
-                    false
+                    Double.parseDouble(args[4])
             );
         }
         else {
@@ -57,14 +146,50 @@ public class CensusExtractor {
             FeatureCollection fc = om.readValue(fis, FeatureCollection.class);
             fis.close();
 
-            features = source.extract(fc.features.get(0).geometry, false);
+            List<Geometry> geometries = new ArrayList<>();
+            for (Feature feature : fc.features) {
+                if (feature.geometry != null)
+                    geometries.add(feature.geometry);
+            }
+
+            if (geometries.isEmpty()) {
+                System.err.println("No geometries in " + args[1]);
+                return;
+            }
+
+            bounds = union(geometries);
+            System.err.println("Boundary has " + bounds.getNumGeometries() + " parts, from " + geometries.size() +
+                    " features");
         }
 
-        OutputStream out;
+        Map<Long, GeobufFeature> features;
+
+        try {
+            if (clip) {
+                features = source.extractClipped(buffer > 0 ? SeamlessSource.corridor(bounds, buffer) : bounds, false);
+            } else if (buffer > 0) {
+                features = source.extractCorridor(bounds, buffer, false, predicate);
+            } else if (tolerance > 0) {
+                features = source.extract(bounds, false, tolerance, predicate);
+            } else {
+                // use a coarser level if there are too many features at the requested one
+                ExtractPlan plan = source.plan(bounds, level);
+
+                if (plan.level != level)
+                    System.err.println("Too many features at " + level.key() + " level, extracting " + plan);
+
+                features = source.extract(bounds, false, plan.level, predicate);
+            }
+        } catch (ExtractTooLargeException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
 
         long completeTime = System.currentTimeMillis() - start;
         System.err.println("Read " + features.size() + " features in " + completeTime + "msec");
 
+        OutputStream out;
+
         if (args.length == 6)
             out = new FileOutputStream(new File(args[5]));
         else if (args.length == 3)
@@ -72,6 +197,32 @@ public class CensusExtractor {
         else
             out = System.out;
 
+        write(features, out);
+    }
+
+    /**
+     * Union the geometries of all the features of a study area. They are split into one group per processor, in file
+     * order, which tends to keep neighbours together; each group is unioned with a cascaded union in parallel, and then
+     * the results are unioned. Disjoint parts, e.g. several cities, remain separate parts of the result, and only the
+     * tiles each part touches are read.
+     */
+    private static Geometry union (List<Geometry> geometries) {
+        if (geometries.size() == 1)
+            return geometries.get(0);
+
+        int n = geometries.size();
+        int groups = Math.min(Runtime.getRuntime().availableProcessors(), n);
+
+        List<Geometry> partial = IntStream.range(0, groups)
+                .parallel()
+                .mapToObj(g -> UnaryUnionOp.union(geometries.subList(g * n / groups, (g + 1) * n / groups)))
+                .collect(Collectors.toList());
+
+        return UnaryUnionOp.union(partial);
+    }
+
+    /** Write the features to the given stream, closing it if it is a file */
+    private static void write (Map<Long, GeobufFeature> features, OutputStream out) throws IOException {
         GeobufEncoder encoder = new GeobufEncoder(out, PRECISION);
         encoder.writeFeatureCollection(features.values());
         encoder.close();
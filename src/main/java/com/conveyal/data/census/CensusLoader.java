@@ -4,70 +4,187 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.util.stream.Stream;
+import java.io.IOException;
 
 /**
  * Import data from the US Census into a seamless store in S3 or on disk.
+ *
+ * The load runs as a set of stages connected by bounded queues, each with its own threads: TIGER files are read,
+ * parsed, reprojected and stored; LODES files are loaded; and tiles are indexed, encoded and written. The throughput
+ * and queue depth of every stage are logged periodically, and the number of threads in each can be set on the
+ * command line to relieve whichever is the bottleneck.
  */
 public class CensusLoader {
     protected static final Logger LOG = LoggerFactory.getLogger(CensusLoader.class);
 
+    /** How often to report on the progress of each stage */
+    private static final int REPORT_INTERVAL_SECONDS = 30;
+
+    /** Maximum number of files waiting to be read; there is one file per state so this is plenty */
+    private static final int FILE_QUEUE_SIZE = 100;
+
     public static void main (String... args) throws Exception {
-        File indir = new File(args[0]);
-        File tiger = new File(indir, "tiger");
+        LoaderOptions opts = LoaderOptions.parse(args);
 
-        ShapeDataStore store = new ShapeDataStore();
+        if (opts == null) {
+            System.err.println(LoaderOptions.USAGE);
+            return;
+        }
 
-        // load up the tiger files in parallel
-        LOG.info("Loading TIGER (geometry)");
-        Stream.of(tiger.listFiles())
-            .filter(f -> f.getName().endsWith(".shp"))
-            .forEach(f -> {
-                LOG.info("Loading file {}", f);
-                TigerLineSource src = new TigerLineSource(f);
-                try {
-                    src.load(store);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            });
+        File indir = opts.inputDirectory;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        MemoryBudget budget = opts.memory != null ? opts.memory : MemoryBudget.forHeap();
+
+        if (budget.totalBytes > Runtime.getRuntime().maxMemory())
+            LOG.warn("Memory budget {} is larger than the maximum heap size", budget);
+
+        ShapeDataStore store = new ShapeDataStore(budget, opts.store, opts.precision);
+        store.indexThreads = opts.threads("index", store.indexThreads);
+        store.encodeThreads = opts.threads("encode", store.encodeThreads);
+        store.writeThreads = opts.threads("write", store.writeThreads);
+        store.rollupThreads = opts.threads("rollup", store.rollupThreads);
+
+        store.overflowThreshold = opts.overflowThreshold;
+        store.overflowZoom = opts.overflowZoom;
+        store.maxTileFeatures = opts.splitFeatures;
+        store.maxTileBytes = opts.splitBytes;
+        store.maxSplitZoom = opts.splitZoom;
+        store.pyramid = opts.pyramid;
+        store.rollupLevels = opts.rollups;
+
+        if (opts.sparse)
+            store.sparseFilter = new SparseFilter(opts.sparseProperties);
 
-        LOG.info("TIGER done");
-
-        LOG.info("Loading LODES workforce data");
-        File workforce = new File(indir, "workforce");
-        Stream.of(workforce.listFiles())
-                .filter(f -> f.getName().endsWith(".csv.gz"))
-                .forEach(f -> {
-                    LOG.info("Loading file {}", f);
-                    try {
-                        new LodesSource(f, LodesSource.LodesType.RESIDENCE).load(store);
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }
-                });
-        LOG.info("Workforce done");
-
-        LOG.info("Loading LODES jobs data");
-        File jobs = new File(indir, "jobs");
-        Stream.of(jobs.listFiles())
-                .filter(f -> f.getName().endsWith(".csv.gz"))
-                .forEach(f -> {
-                    LOG.info("Loading file {}", f);
-                    try {
-                        new LodesSource(f, LodesSource.LodesType.WORKPLACE).load(store);
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }
-                });
-        LOG.info("Jobs done");
-
-        if (args.length == 1)
-            store.writeTiles(new File(indir, "tiles"));
+        File[] tigerFiles = listFiles(new File(indir, "tiger"), ".shp");
+
+        if (opts.store == null) {
+            loadTiger(store, tigerFiles, budget, opts);
+        } else {
+            // a persistent store only needs the TIGER data loaded again if it has changed since the last run
+            String tigerChecksum = TigerLineSource.checksum(tigerFiles);
+
+            if (tigerChecksum.equals(store.getTigerChecksum())) {
+                // geometries are already loaded, just get rid of the attributes from the last run
+                LOG.info("TIGER files are unchanged, reusing geometries in {}", opts.store);
+                store.clearProperties();
+            } else {
+                store.clear();
+                loadTiger(store, tigerFiles, budget, opts);
+                store.setTigerChecksum(tigerChecksum);
+            }
+        }
+
+        // files for different states touch different blocks, so they can be loaded in parallel, but workforce and jobs
+        // data for the same block can't be, so they are loaded one after the other
+        try (Pipeline pipeline = new Pipeline("lodes", REPORT_INTERVAL_SECONDS)) {
+            LOG.info("Loading LODES workforce data");
+            loadLodes(pipeline, "workforce", store, new File(indir, "workforce"), LodesSource.LodesType.RESIDENCE,
+                    opts.threads("lodes", cores));
+            LOG.info("Workforce done");
+
+            LOG.info("Loading LODES jobs data");
+            loadLodes(pipeline, "jobs", store, new File(indir, "jobs"), LodesSource.LodesType.WORKPLACE,
+                    opts.threads("lodes", cores));
+            LOG.info("Jobs done");
+        }
+
+        TileSink sink;
+        if (opts.output == null)
+            sink = new DirectoryTileSink(new File(indir, "tiles"));
+        else if (opts.output.endsWith(".zip"))
+            // write to a single archive
+            sink = new ZipTileSink(new File(opts.output));
         else
             // write to s3
-            store.writeTilesToS3(args[1]);
+            sink = new S3TileSink(opts.output, budget.uploadBytesInFlight());
+
+        if (opts.update)
+            store.updateTiles(sink);
+        else
+            store.writeTiles(sink);
 
         store.close();
     }
+
+    /** Load the geometries of the given TIGER files, sorting them by GEOID and building the store in one go */
+    private static void loadTiger (ShapeDataStore store, File[] tigerFiles, MemoryBudget budget, LoaderOptions opts)
+            throws IOException {
+        LOG.info("Loading TIGER (geometry)");
+        long tigerStart = System.currentTimeMillis();
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        // there are three queues of features in the TIGER pipeline
+        int featureQueueSize = budget.featureQueueSize(3);
+
+        store.beginBulkLoad();
+
+        try (Pipeline pipeline = new Pipeline("tiger", REPORT_INTERVAL_SECONDS)) {
+            // the bulk load is not thread safe, so there is only ever one store thread
+            Stage<TigerLineSource.Record> storeStage = pipeline.stage("store", 1, featureQueueSize,
+                    record -> store.add(record.getFeature()));
+            Stage<TigerLineSource.Record> reproject = pipeline.stage("reproject", opts.threads("reproject", cores),
+                    featureQueueSize, record -> {
+                        TigerLineSource.reproject(record);
+                        storeStage.put(record);
+                    });
+            Stage<TigerLineSource.Record> parse = pipeline.stage("parse", opts.threads("parse", cores),
+                    featureQueueSize, record -> {
+                        TigerLineSource.parse(record);
+                        reproject.put(record);
+                    });
+            Stage<File> read = pipeline.stage("read", opts.threads("read", 2), FILE_QUEUE_SIZE, file -> {
+                LOG.info("Loading file {}", file);
+                new TigerLineSource(file).read(parse::put);
+            });
+
+            for (File file : tigerFiles) {
+                read.put(file);
+            }
+
+            // each stage can only finish once everything upstream of it has
+            finishAll(read, parse, reproject, storeStage);
+        }
+
+        store.finishBulkLoad();
+
+        LOG.info("TIGER done in {} seconds", (System.currentTimeMillis() - tigerStart) / 1000);
+    }
+
+    private static void loadLodes (Pipeline pipeline, String name, ShapeDataStore store, File dir,
+                                   LodesSource.LodesType type, int threads) throws IOException {
+        Stage<File> stage = pipeline.stage(name, threads, FILE_QUEUE_SIZE, file -> {
+            LOG.info("Loading file {}", file);
+            new LodesSource(file, type).load(store);
+        });
+
+        try {
+            for (File file : listFiles(dir, ".csv.gz")) {
+                stage.put(file);
+            }
+        } finally {
+            stage.finish();
+        }
+    }
+
+    /** Finish the given stages in order, even if an earlier one failed, and rethrow the first failure */
+    private static void finishAll (Stage<?>... stages) throws IOException {
+        IOException failure = null;
+
+        for (Stage<?> stage : stages) {
+            try {
+                stage.finish();
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    private static File[] listFiles (File dir, String suffix) {
+        return dir.listFiles((d, name) -> name.endsWith(suffix));
+    }
 }
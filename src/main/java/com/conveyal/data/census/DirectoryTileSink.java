@@ -0,0 +1,53 @@
+package com.conveyal.data.census;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Write tiles to a directory on the local file system. Each file is written to a temporary file and then moved into
+ * place, so readers never see a partially written tile.
+ */
+public class DirectoryTileSink implements TileSink {
+    private final File directory;
+
+    public DirectoryTileSink (File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void put (String key, byte[] data) throws IOException {
+        File out = new File(directory, key);
+        out.getParentFile().mkdirs();
+
+        File temp = new File(out.getParentFile(), out.getName() + ".tmp");
+        try (OutputStream os = new FileOutputStream(temp)) {
+            os.write(data);
+        }
+
+        Files.move(temp.toPath(), out.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public byte[] get (String key) throws IOException {
+        File file = new File(directory, key);
+
+        if (!file.exists())
+            return null;
+
+        return Files.readAllBytes(file.toPath());
+    }
+
+    @Override
+    public void delete (String key) throws IOException {
+        Files.deleteIfExists(new File(directory, key).toPath());
+    }
+
+    @Override
+    public void close () {
+        // nothing to do
+    }
+}
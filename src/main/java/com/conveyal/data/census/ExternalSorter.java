@@ -0,0 +1,324 @@
+package com.conveyal.data.census;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sort records made of a primitive long key and an opaque byte payload in bounded memory.
+ *
+ * Records are buffered in primitive arrays until the buffer is full, at which point they are sorted and spilled to a
+ * temporary file as a sorted run. Reading back merges the runs, so every byte is written and read sequentially once.
+ * The same payload array may be added under several keys; it is only held in memory once but is written once per key.
+ */
+public class ExternalSorter implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ExternalSorter.class);
+
+    /** size of a slot in the buffer arrays, a key plus a payload reference, counted whether the slot is used or not */
+    private static final int SLOT_BYTES = 16;
+
+    /** initial number of slots in the buffer arrays */
+    private static final int INITIAL_SLOTS = 1024;
+
+    private final long bufferBytes;
+
+    private final File tempDir;
+
+    private long[] keys;
+
+    private byte[][] payloads;
+
+    private int size = 0;
+
+    /** bytes of payloads in the buffer; the arrays themselves are counted separately, by capacity */
+    private long payloadBytes = 0;
+
+    private long count = 0;
+
+    private final List<File> runs = new ArrayList<>();
+
+    private boolean sorted = false;
+
+    /** Create a sorter holding at most approximately bufferBytes in memory, spilling to the default temp directory */
+    public ExternalSorter (long bufferBytes) {
+        this(bufferBytes, null);
+    }
+
+    public ExternalSorter (long bufferBytes, File tempDir) {
+        this.bufferBytes = bufferBytes;
+        this.tempDir = tempDir;
+
+        // don't let the empty arrays of a small buffer take up most of it
+        int slots = (int) Math.max(16, Math.min(INITIAL_SLOTS, bufferBytes / SLOT_BYTES / 4));
+        keys = new long[slots];
+        payloads = new byte[slots][];
+    }
+
+    /** Add a record */
+    public void add (long key, byte[] payload) throws IOException {
+        if (sorted)
+            throw new IllegalStateException("Cannot add records to a sorter that has already been read");
+
+        if (size == keys.length) {
+            // while growing, the old and new arrays are both held, three times the current capacity in all. If that
+            // doesn't fit, spill instead and keep reusing the arrays we have.
+            if ((long) keys.length * 3 * SLOT_BYTES + payloadBytes > bufferBytes)
+                spill();
+        }
+
+        if (size == keys.length) {
+            int newLength = keys.length * 2;
+            long[] newKeys = new long[newLength];
+            System.arraycopy(keys, 0, newKeys, 0, size);
+            keys = newKeys;
+            byte[][] newPayloads = new byte[newLength][];
+            System.arraycopy(payloads, 0, newPayloads, 0, size);
+            payloads = newPayloads;
+        }
+
+        // a payload shared with the previous record (e.g. the same feature in an adjacent tile) is only held once
+        if (size == 0 || payloads[size - 1] != payload)
+            payloadBytes += payload.length;
+
+        keys[size] = key;
+        payloads[size] = payload;
+        size++;
+        count++;
+
+        if (bytesBuffered() >= bufferBytes)
+            spill();
+    }
+
+    /** @return the memory used by the buffer, including unused capacity of its arrays */
+    private long bytesBuffered () {
+        return (long) keys.length * SLOT_BYTES + payloadBytes;
+    }
+
+    /** @return the number of records added */
+    public long size () {
+        return count;
+    }
+
+    /** Sort the buffer and write it out as a run */
+    private void spill () throws IOException {
+        if (size == 0)
+            return;
+
+        sort(keys, payloads, 0, size - 1);
+
+        File run = File.createTempFile("sort", ".run", tempDir);
+        run.deleteOnExit();
+
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+            for (int i = 0; i < size; i++) {
+                os.writeLong(keys[i]);
+                os.writeInt(payloads[i].length);
+                os.write(payloads[i]);
+            }
+        }
+
+        LOG.debug("Spilled run {} of {} records ({} bytes)", runs.size(), size, bytesBuffered());
+        runs.add(run);
+
+        clearBuffer();
+    }
+
+    private void clearBuffer () {
+        // drop references so payloads can be garbage collected
+        Arrays.fill(payloads, 0, size, null);
+        size = 0;
+        payloadBytes = 0;
+    }
+
+    /**
+     * Get a cursor over all records in ascending key order. The sorter may only be read once; records with equal keys
+     * are returned in no particular order.
+     */
+    public Cursor sorted () throws IOException {
+        if (sorted)
+            throw new IllegalStateException("Sorter has already been read");
+
+        sorted = true;
+
+        if (runs.isEmpty()) {
+            // everything fit in memory, no need to touch the disk
+            sort(keys, payloads, 0, size - 1);
+            return new MemoryCursor();
+        }
+
+        spill();
+        LOG.info("Merging {} sorted runs of {} records", runs.size(), count);
+        return new MergeCursor();
+    }
+
+    /** Delete any temporary files */
+    @Override
+    public void close () {
+        for (File run : runs) {
+            if (!run.delete())
+                LOG.warn("Unable to delete temporary file {}", run);
+        }
+        runs.clear();
+        clearBuffer();
+    }
+
+    /** Quicksort parallel key and payload arrays by key, between lo and hi inclusive */
+    private static void sort (long[] keys, byte[][] payloads, int lo, int hi) {
+        while (hi - lo > 16) {
+            // median of three pivot
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < keys[lo]) swap(keys, payloads, mid, lo);
+            if (keys[hi] < keys[lo]) swap(keys, payloads, hi, lo);
+            if (keys[hi] < keys[mid]) swap(keys, payloads, hi, mid);
+            long pivot = keys[mid];
+
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j) swap(keys, payloads, i++, j--);
+            }
+
+            // recurse on the smaller side to bound stack depth
+            if (j - lo < hi - i) {
+                sort(keys, payloads, lo, j);
+                lo = i;
+            } else {
+                sort(keys, payloads, i, hi);
+                hi = j;
+            }
+        }
+
+        // insertion sort for small ranges
+        for (int i = lo + 1; i <= hi; i++) {
+            long key = keys[i];
+            byte[] payload = payloads[i];
+            int j = i - 1;
+            while (j >= lo && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                payloads[j + 1] = payloads[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            payloads[j + 1] = payload;
+        }
+    }
+
+    private static void swap (long[] keys, byte[][] payloads, int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        byte[] payload = payloads[i];
+        payloads[i] = payloads[j];
+        payloads[j] = payload;
+    }
+
+    /** A cursor over sorted records, which does not allocate a record object per entry */
+    public interface Cursor extends Closeable {
+        /** advance to the next record, returning false if there are no more */
+        boolean next () throws IOException;
+
+        long key ();
+
+        byte[] payload ();
+    }
+
+    private class MemoryCursor implements Cursor {
+        private int pos = -1;
+
+        @Override public boolean next () {
+            if (pos >= 0)
+                // let the payload be garbage collected
+                payloads[pos] = null;
+
+            return ++pos < size;
+        }
+
+        @Override public long key () {
+            return keys[pos];
+        }
+
+        @Override public byte[] payload () {
+            return payloads[pos];
+        }
+
+        @Override public void close () {
+            ExternalSorter.this.close();
+        }
+    }
+
+    /** Reads a single sorted run */
+    private static class RunReader {
+        private final DataInputStream is;
+        long key;
+        byte[] payload;
+
+        RunReader (File run) throws IOException {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+        }
+
+        boolean advance () throws IOException {
+            try {
+                key = is.readLong();
+            } catch (EOFException e) {
+                is.close();
+                return false;
+            }
+
+            payload = new byte[is.readInt()];
+            is.readFully(payload);
+            return true;
+        }
+    }
+
+    /** k-way merge of the sorted runs */
+    private class MergeCursor implements Cursor {
+        private final PriorityQueue<RunReader> queue = new PriorityQueue<>(runs.size(), (a, b) -> Long.compare(a.key, b.key));
+        private final List<RunReader> readers = new ArrayList<>();
+        private long key;
+        private byte[] payload;
+
+        MergeCursor () throws IOException {
+            for (File run : runs) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                if (reader.advance())
+                    queue.add(reader);
+            }
+        }
+
+        @Override public boolean next () throws IOException {
+            RunReader head = queue.poll();
+            if (head == null)
+                return false;
+
+            key = head.key;
+            payload = head.payload;
+
+            if (head.advance())
+                queue.add(head);
+
+            return true;
+        }
+
+        @Override public long key () {
+            return key;
+        }
+
+        @Override public byte[] payload () {
+            return payload;
+        }
+
+        @Override public void close () throws IOException {
+            for (RunReader reader : readers)
+                reader.is.close();
+
+            ExternalSorter.this.close();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.conveyal.data.census;
+
+/**
+ * The level of the geography hierarchy an extract will be made at, and roughly how many features it will return.
+ */
+public class ExtractPlan {
+    public final GeographyLevel level;
+
+    /**
+     * estimated number of features, or -1 if nothing was estimated, because there is no limit on the size of extracts
+     * or the tileset has no manifest to estimate from
+     */
+    public final long estimatedFeatures;
+
+    public ExtractPlan (GeographyLevel level, long estimatedFeatures) {
+        this.level = level;
+        this.estimatedFeatures = estimatedFeatures;
+    }
+
+    @Override
+    public String toString () {
+        return String.format("%s level, about %d features", level.key(), estimatedFeatures);
+    }
+}
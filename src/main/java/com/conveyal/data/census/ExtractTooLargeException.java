@@ -0,0 +1,20 @@
+package com.conveyal.data.census;
+
+/**
+ * Thrown instead of making an extract that is estimated to have more features than a SeamlessSource allows, even at
+ * the coarsest geography level available.
+ */
+public class ExtractTooLargeException extends IllegalArgumentException {
+    /** the coarsest level the extract could have been made at */
+    public final GeographyLevel level;
+
+    /** estimated number of features at that level */
+    public final long estimatedFeatures;
+
+    public ExtractTooLargeException (GeographyLevel level, long estimatedFeatures, long maxFeatures) {
+        super(String.format("Extract would have about %d features at %s level, more than the limit of %d",
+                estimatedFeatures, level.key(), maxFeatures));
+        this.level = level;
+        this.estimatedFeatures = estimatedFeatures;
+    }
+}
@@ -12,12 +12,17 @@ public class FileSeamlessSource extends SeamlessSource {
     private File directory;
 
     public FileSeamlessSource(String path) {
+        this(path, 0);
+    }
+
+    /** Read the tileset in the given directory, refusing extracts estimated to have more than maxFeatures features */
+    public FileSeamlessSource(String path, long maxFeatures) {
+        super(maxFeatures);
         this.directory = new File(path);
     }
 
-    @Override protected InputStream getInputStream(int x, int y) throws IOException {
-        File dir = new File(directory, x + "");
-        File file = new File(dir, y + ".pbf.gz");
+    @Override protected InputStream getInputStream(String key) throws IOException {
+        File file = new File(directory, key);
 
         if (!file.exists())
             return null;
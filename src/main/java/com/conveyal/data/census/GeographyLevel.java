@@ -0,0 +1,61 @@
+package com.conveyal.data.census;
+
+/**
+ * Levels of the Census geography hierarchy. A GEOID at each level is the GEOID of the unit containing it at the next
+ * level up followed by a few more digits, so the units containing a block can be found by dropping digits from its
+ * GEOID.
+ */
+public enum GeographyLevel {
+    // state (2) + county (3) + tract (6) + block (4); the first digit of the block is the block group
+    BLOCK(15, ShapeDataStore.ZOOM_LEVEL),
+    BLOCK_GROUP(12, 10),
+    TRACT(11, 9),
+    COUNTY(5, 7);
+
+    /** number of digits in a GEOID at this level */
+    public final int digits;
+
+    /** zoom level of the tiles the units at this level are stored in */
+    public final int zoom;
+
+    GeographyLevel (int digits, int zoom) {
+        this.digits = digits;
+        this.zoom = zoom;
+    }
+
+    /** @return the GEOID of the unit at this level containing the unit with the given GEOID at the given finer level */
+    public long of (long geoid, GeographyLevel level) {
+        if (level.digits < digits)
+            throw new IllegalArgumentException(level + " is coarser than " + this);
+
+        return geoid / pow10(level.digits - digits);
+    }
+
+    /** @return the state FIPS code of a GEOID at this level */
+    public int state (long geoid) {
+        return (int) (geoid / pow10(digits - 2));
+    }
+
+    /** @return the GEOID of the first block that could be in the unit with the given GEOID at this level */
+    public long firstBlock (long geoid) {
+        return geoid * pow10(BLOCK.digits - digits);
+    }
+
+    /** @return the name of this level in tile keys and on the command line, e.g. block-group */
+    public String key () {
+        return name().toLowerCase().replace('_', '-');
+    }
+
+    /** @return the level with the given key, e.g. tract */
+    public static GeographyLevel fromKey (String key) {
+        return valueOf(key.toUpperCase().replace('-', '_'));
+    }
+
+    private static long pow10 (int exponent) {
+        long result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= 10;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,83 @@
+package com.conveyal.data.census;
+
+import com.conveyal.data.geobuf.GeobufFeature;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates Census units into the unit containing them at a coarser level of the geography hierarchy, e.g. blocks
+ * into block groups, summing their numeric properties and dissolving their geometries.
+ */
+public class GeographyRollup {
+    /**
+     * Combine the given units, which must all be in the unit with the given GEOID, into a single feature with that
+     * GEOID. Numeric properties are summed, bar creation dates, which are the latest; other properties are dropped.
+     */
+    public static GeobufFeature dissolve (long geoid, List<GeobufFeature> units) {
+        List<Geometry> geometries = new ArrayList<>(units.size());
+        for (GeobufFeature unit : units) {
+            geometries.add(unit.geometry);
+        }
+
+        GeobufFeature rollup = new GeobufFeature();
+        rollup.numericId = geoid;
+        rollup.geometry = UnaryUnionOp.union(geometries);
+        rollup.properties = sum(units);
+        return rollup;
+    }
+
+    /**
+     * Sum the numeric properties of the given features. Sums of integer properties stay integers, and are only
+     * widened to longs if they don't fit. Properties that are not counts, such as the LODES creation date, are not
+     * summed; the largest value is kept instead, which for a date is the latest.
+     */
+    public static Map<String, Object> sum (List<GeobufFeature> features) {
+        Map<String, Long> integers = new HashMap<>();
+        Map<String, Double> decimals = new HashMap<>();
+
+        for (GeobufFeature feature : features) {
+            for (Map.Entry<String, Object> e : feature.properties.entrySet()) {
+                Object val = e.getValue();
+
+                boolean additive = isAdditive(e.getKey());
+
+                if (val instanceof Integer || val instanceof Long)
+                    integers.merge(e.getKey(), ((Number) val).longValue(), additive ? Long::sum : Math::max);
+                else if (val instanceof Double || val instanceof Float)
+                    decimals.merge(e.getKey(), ((Number) val).doubleValue(), additive ? Double::sum : Math::max);
+            }
+        }
+
+        Map<String, Object> sums = new HashMap<>();
+
+        for (Map.Entry<String, Long> e : integers.entrySet()) {
+            long sum = e.getValue();
+            sums.put(e.getKey(), sum == (int) sum ? (Object) (int) sum : (Object) sum);
+        }
+
+        // a property that is an integer in some features and not in others is summed as a double
+        for (Map.Entry<String, Double> e : decimals.entrySet()) {
+            Long integerPart = integers.get(e.getKey());
+
+            if (integerPart == null)
+                sums.put(e.getKey(), e.getValue());
+            else if (isAdditive(e.getKey()))
+                sums.put(e.getKey(), e.getValue() + integerPart);
+            else
+                sums.put(e.getKey(), Math.max(e.getValue(), integerPart));
+        }
+
+        return sums;
+    }
+
+    /** @return whether the given property is a count, which can be summed over units */
+    static boolean isAdditive (String property) {
+        // LODES properties are prefixed with Jobs or Workers
+        return !property.endsWith(LodesSource.CREATION_DATE);
+    }
+}
@@ -0,0 +1,75 @@
+package com.conveyal.data.census;
+
+/**
+ * The leading digits of a GEOID, e.g. 11 for a state or 11001 for a county, which select all of the units inside the
+ * unit with that GEOID. Because GEOIDs at each level have a fixed number of digits, the GEOIDs starting with a prefix
+ * form a range of integers, so units can be selected without any geometry tests.
+ */
+public class GeoidPrefix {
+    /** the digits of the prefix, as a number */
+    public final long prefix;
+
+    /** the number of digits in the prefix, including any leading zeros */
+    public final int digits;
+
+    public GeoidPrefix (long prefix, int digits) {
+        if (digits < 2 || digits > GeographyLevel.BLOCK.digits)
+            throw new IllegalArgumentException("GEOID prefix must have between 2 and 15 digits");
+
+        this.prefix = prefix;
+        this.digits = digits;
+    }
+
+    /** Parse a prefix, keeping track of leading zeros, e.g. 06 for California */
+    public static GeoidPrefix parse (String prefix) {
+        for (int i = 0; i < prefix.length(); i++) {
+            if (!Character.isDigit(prefix.charAt(i)))
+                throw new IllegalArgumentException("Invalid GEOID prefix " + prefix);
+        }
+
+        return new GeoidPrefix(Long.parseLong(prefix), prefix.length());
+    }
+
+    /** @return the first GEOID at the given level that starts with this prefix */
+    public long min (GeographyLevel level) {
+        return prefix * scale(level);
+    }
+
+    /** @return the first GEOID at the given level after those that start with this prefix */
+    public long max (GeographyLevel level) {
+        return (prefix + 1) * scale(level);
+    }
+
+    /** @return true if the GEOID of a unit at the given level starts with this prefix */
+    public boolean matches (long geoid, GeographyLevel level) {
+        return geoid >= min(level) && geoid < max(level);
+    }
+
+    /** @return this prefix cut down to no more digits than a GEOID at the given level, e.g. the county of a tract */
+    public GeoidPrefix truncate (GeographyLevel level) {
+        if (digits <= level.digits)
+            return this;
+
+        long truncated = prefix;
+        for (int i = level.digits; i < digits; i++) {
+            truncated /= 10;
+        }
+        return new GeoidPrefix(truncated, level.digits);
+    }
+
+    private long scale (GeographyLevel level) {
+        if (level.digits < digits)
+            throw new IllegalArgumentException("GEOID prefix " + this + " is longer than a " + level.key() + " GEOID");
+
+        long scale = 1;
+        for (int i = digits; i < level.digits; i++) {
+            scale *= 10;
+        }
+        return scale;
+    }
+
+    @Override
+    public String toString () {
+        return String.format("%0" + digits + "d", prefix);
+    }
+}
@@ -0,0 +1,282 @@
+package com.conveyal.data.census;
+
+import gnu.trove.iterator.TLongObjectIterator;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static com.conveyal.data.census.ShapeDataStore.ZOOM_LEVEL;
+
+/**
+ * A reverse index from county to the z11 tiles containing its census blocks, stored alongside a tileset. This allows
+ * the features from one state (or county) to be found without reading every tile in the country.
+ *
+ * Tiles are packed into a single int, see packTile(). Tiles in the overflow layer have the OVERFLOW bit set, and tiles
+ * in the pyramid of simplified geometries have the PYRAMID bit set and their zoom level in the bits above it. Tiles in
+ * the layers of units rolled up from blocks have the ordinal of their GeographyLevel in the top bits.
+ */
+public class GeoidTileIndex {
+    /** where the index is stored in the tileset */
+    public static final String KEY = "geoid-index.json.gz";
+
+    /** a block GEOID has ten digits (tract and block) after the state and county FIPS codes */
+    private static final long COUNTY_DIVISOR = 10_000_000_000L;
+
+    /** and three more (county) after the state FIPS code */
+    private static final long STATE_DIVISOR = COUNTY_DIVISOR * 1000;
+
+    /** flag set on packed tiles in the overflow layer */
+    public static final int OVERFLOW = 1 << 2 * ZOOM_LEVEL;
+
+    /** flag set on packed tiles in the pyramid, which have their zoom level in the next bits up */
+    public static final int PYRAMID = OVERFLOW << 1;
+
+    /** position of the zoom level of pyramid tiles */
+    private static final int ZOOM_SHIFT = 2 * ZOOM_LEVEL + 2;
+
+    /** position of the geography level of rollup tiles */
+    private static final int LEVEL_SHIFT = ZOOM_SHIFT + 4;
+
+    /** number of bits used by a packed tile */
+    public static final int PACKED_TILE_BITS = LEVEL_SHIFT + 2;
+
+    private static final int COORDINATE_MASK = (1 << ZOOM_LEVEL) - 1;
+
+    /** five-digit county FIPS code to sorted packed tiles */
+    public SortedMap<Long, int[]> counties = new TreeMap<>();
+
+    /** tiles added since the index was last built, not serialized */
+    private TLongObjectMap<TIntSet> pending = new TLongObjectHashMap<>();
+
+    /** Record that the block with the given GEOID is in the given tile */
+    public void add (long geoid, int x, int y) {
+        add(geoid, packTile(x, y));
+    }
+
+    /** Record that the block with the given GEOID is in the given packed tile */
+    public void add (long geoid, int packedTile) {
+        long county = county(geoid);
+        TIntSet tiles = pending.get(county);
+
+        if (tiles == null) {
+            tiles = new TIntHashSet();
+            pending.put(county, tiles);
+        }
+
+        tiles.add(packedTile);
+    }
+
+    /** merge pending additions into the counties map */
+    private void build () {
+        if (pending.size() == 0)
+            return;
+
+        for (TLongObjectIterator<TIntSet> it = pending.iterator(); it.hasNext();) {
+            it.advance();
+            TIntSet tiles = new TIntHashSet(it.value().toArray());
+            int[] existing = counties.get(it.key());
+            if (existing != null)
+                tiles.addAll(existing);
+
+            int[] sorted = tiles.toArray();
+            Arrays.sort(sorted);
+            counties.put(it.key(), sorted);
+        }
+
+        pending = new TLongObjectHashMap<>();
+    }
+
+    /** @return the packed tiles that contain blocks from any of the given states */
+    public TIntSet tilesForStates (TIntSet states) {
+        build();
+
+        TIntSet tiles = new TIntHashSet();
+        for (Map.Entry<Long, int[]> e : counties.entrySet()) {
+            if (states.contains(stateOfCounty(e.getKey())))
+                tiles.addAll(e.getValue());
+        }
+
+        return tiles;
+    }
+
+    /** @return the packed tiles that contain units, at any level, whose GEOIDs start with the given prefix */
+    public TIntSet tilesForPrefix (GeoidPrefix prefix) {
+        build();
+
+        // the index is by county, so use all the counties in a state, or the county a longer prefix is in
+        GeoidPrefix counties = prefix.truncate(GeographyLevel.COUNTY);
+
+        TIntSet tiles = new TIntHashSet();
+        for (int[] countyTiles : this.counties.subMap(counties.min(GeographyLevel.COUNTY),
+                counties.max(GeographyLevel.COUNTY)).values()) {
+            tiles.addAll(countyTiles);
+        }
+
+        return tiles;
+    }
+
+    /** Read an index from a stream, which will be closed */
+    public static GeoidTileIndex read (InputStream is) throws IOException {
+        return TilesetFiles.read(is, GeoidTileIndex.class);
+    }
+
+    /** @return the FIPS codes of the states in this index */
+    public TIntSet states () {
+        build();
+
+        TIntSet states = new TIntHashSet();
+        for (long county : counties.keySet()) {
+            states.add(stateOfCounty(county));
+        }
+
+        return states;
+    }
+
+    /** Replace all entries for the states in the given index with the entries from that index */
+    public void replaceStates (GeoidTileIndex other) {
+        build();
+        other.build();
+
+        TIntSet states = other.states();
+        for (Iterator<Long> it = counties.keySet().iterator(); it.hasNext();) {
+            if (states.contains(stateOfCounty(it.next())))
+                it.remove();
+        }
+
+        counties.putAll(other.counties);
+    }
+
+    /** Read the index from the given sink, returning null if there isn't one */
+    public static GeoidTileIndex read (TileSink sink) throws IOException {
+        return TilesetFiles.read(sink, KEY, GeoidTileIndex.class);
+    }
+
+    /** Write the index to the given sink, replacing any previous index */
+    public void write (TileSink sink) throws IOException {
+        build();
+        TilesetFiles.write(sink, KEY, this);
+    }
+
+    /** @return the state FIPS code of a block GEOID */
+    public static int state (long geoid) {
+        return (int) (geoid / STATE_DIVISOR);
+    }
+
+    /** @return the five-digit county FIPS code of a block GEOID */
+    public static long county (long geoid) {
+        return geoid / COUNTY_DIVISOR;
+    }
+
+    private static int stateOfCounty (long county) {
+        return (int) (county / 1000);
+    }
+
+    /** pack z11 tile coordinates into a single int */
+    public static int packTile (int x, int y) {
+        return x << ZOOM_LEVEL | y;
+    }
+
+    /** pack overflow layer tile coordinates into a single int */
+    public static int packOverflowTile (int x, int y) {
+        return OVERFLOW | packTile(x, y);
+    }
+
+    /** pack tile coordinates of a pyramid level, below zoom 11, into a single int */
+    public static int packPyramidTile (int zoom, int x, int y) {
+        return zoom << ZOOM_SHIFT | PYRAMID | packTile(x, y);
+    }
+
+    /** pack the coordinates of a tile in the layer of units at the given level, at the zoom level of that layer */
+    public static int packRollupTile (GeographyLevel level, int x, int y) {
+        return level.ordinal() << LEVEL_SHIFT | packTile(x, y);
+    }
+
+    public static boolean isOverflow (int packed) {
+        return (packed & OVERFLOW) != 0;
+    }
+
+    public static boolean isPyramid (int packed) {
+        return (packed & PYRAMID) != 0;
+    }
+
+    public static boolean isRollup (int packed) {
+        return level(packed) != GeographyLevel.BLOCK;
+    }
+
+    /**
+     * @return true if the packed tile is a z11 tile, rather than a tile in the overflow layer, the pyramid or a rollup
+     * layer
+     */
+    public static boolean isMainLayer (int packed) {
+        return (packed & (OVERFLOW | PYRAMID)) == 0 && !isRollup(packed);
+    }
+
+    /** @return the zoom level of a packed pyramid tile */
+    public static int pyramidZoom (int packed) {
+        return (packed >>> ZOOM_SHIFT) & 0xf;
+    }
+
+    /** @return the level of the units in a packed tile, which is BLOCK for all but rollup tiles */
+    public static GeographyLevel level (int packed) {
+        return GeographyLevel.values()[packed >>> LEVEL_SHIFT];
+    }
+
+    public static int tileX (int packed) {
+        return (packed >>> ZOOM_LEVEL) & COORDINATE_MASK;
+    }
+
+    public static int tileY (int packed) {
+        return packed & COORDINATE_MASK;
+    }
+
+    /**
+     * @return the packed z11, overflow, pyramid or rollup tile a tile key belongs to; for tiles made by splitting a z11
+     * or pyramid tile, this is the tile that was split
+     */
+    public static int parentTile (String key) {
+        String[] parts = key.substring(0, key.length() - ".pbf.gz".length()).split("/");
+
+        if ("overflow".equals(parts[0]))
+            return packOverflowTile(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+
+        if ("pyramid".equals(parts[0]) && "split".equals(parts[2])) {
+            int z = Integer.parseInt(parts[1]), shift = Integer.parseInt(parts[3]) - z;
+            return packPyramidTile(z, Integer.parseInt(parts[4]) >> shift, Integer.parseInt(parts[5]) >> shift);
+        }
+
+        if ("pyramid".equals(parts[0]))
+            return packPyramidTile(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+
+        if ("rollup".equals(parts[0]))
+            return packRollupTile(GeographyLevel.fromKey(parts[1]), Integer.parseInt(parts[2]),
+                    Integer.parseInt(parts[3]));
+
+        if ("split".equals(parts[0])) {
+            int shift = Integer.parseInt(parts[1]) - ZOOM_LEVEL;
+            return packTile(Integer.parseInt(parts[2]) >> shift, Integer.parseInt(parts[3]) >> shift);
+        }
+
+        return packTile(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+
+    /** @return the key of a packed tile in a tileset */
+    public static String tileKey (int packed) {
+        if (isOverflow(packed))
+            return TileSink.overflowTileKey(tileX(packed), tileY(packed));
+        else if (isRollup(packed))
+            return TileSink.rollupTileKey(level(packed), tileX(packed), tileY(packed));
+        else if (isPyramid(packed))
+            return TileSink.pyramidTileKey(pyramidZoom(packed), tileX(packed), tileY(packed));
+        else
+            return TileSink.tileKey(tileX(packed), tileY(packed));
+    }
+}
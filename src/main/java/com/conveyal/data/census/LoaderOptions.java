@@ -0,0 +1,212 @@
+package com.conveyal.data.census;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Command line options for the CensusLoader.
+ */
+public class LoaderOptions {
+    /** Stages of the load whose parallelism can be set on the command line */
+    public static final List<String> STAGES =
+            Arrays.asList("read", "parse", "reproject", "lodes", "rollup", "index", "encode", "write");
+
+    public static final String USAGE =
+            "usage: CensusLoader [--update] [--store file] [--memory size] [--precision n]\n" +
+            "       [--sparse [--sparse-property name ...]] [--overflow-threshold tiles [--overflow-zoom z]]\n" +
+            "       [--split-features n] [--split-bytes n] [--split-zoom z] [--pyramid z[:tolerance] ...]\n" +
+            "       [--rollup block-group|tract|county ...]\n" +
+            "       [--threads stage=n ...] input_dir [s3_bucket|archive.zip]\n" +
+            "  stages: " + String.join(", ", STAGES);
+
+    /** replace only the states in the input directory in an existing tileset */
+    public boolean update = false;
+
+    /** memory budget for the load, e.g. 2g, or null to size buffers from the maximum heap size */
+    public MemoryBudget memory;
+
+    /** file to keep the geometry store in between runs, or null to use a temporary store */
+    public File store;
+
+    /** number of decimal places to keep in coordinates */
+    public int precision = ShapeDataStore.DEFAULT_PRECISION;
+
+    /** leave features with no nonzero values out of the tiles */
+    public boolean sparse = false;
+
+    /** properties to check for nonzero values in a sparse tileset, or empty to check all of them */
+    public List<String> sparseProperties = new ArrayList<>();
+
+    /** features touching more than this many z11 tiles go in the overflow layer, zero for no overflow layer */
+    public int overflowThreshold = 0;
+
+    /** zoom level of the overflow layer */
+    public int overflowZoom = 8;
+
+    /** split tiles with more than this many features, zero for no limit */
+    public int splitFeatures = 0;
+
+    /** split tiles of more than this many bytes, zero for no limit */
+    public int splitBytes = 0;
+
+    /** maximum zoom level to split tiles to */
+    public int splitZoom = 14;
+
+    /** levels of simplified geometries to write below z11, from the finest to the coarsest */
+    public List<TilesetDescriptor.PyramidLevel> pyramid = new ArrayList<>();
+
+    /** levels of the geography hierarchy to roll blocks up into */
+    public Set<GeographyLevel> rollups = EnumSet.noneOf(GeographyLevel.class);
+
+    public File inputDirectory;
+
+    /** S3 bucket or zip file to write to, or null to write to a tiles directory in the input directory */
+    public String output;
+
+    /** number of threads for each stage that has been set explicitly */
+    private final Map<String, Integer> threads = new HashMap<>();
+
+    /** @return the parsed options, or null if the arguments are not valid */
+    public static LoaderOptions parse (String... args) {
+        try {
+            return parseOrThrow(args);
+        } catch (IllegalArgumentException e) {
+            // includes NumberFormatException
+            return null;
+        }
+    }
+
+    private static LoaderOptions parseOrThrow (String... args) {
+        LoaderOptions opts = new LoaderOptions();
+        int i = 0;
+
+        for (; i < args.length && args[i].startsWith("--"); i++) {
+            String opt = args[i];
+
+            if ("--update".equals(opt)) {
+                opts.update = true;
+                continue;
+            } else if ("--sparse".equals(opt)) {
+                opts.sparse = true;
+                continue;
+            }
+
+            // all other options take a value
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + opt);
+
+            String value = args[++i];
+
+            switch (opt) {
+                case "--store":
+                    opts.store = new File(value);
+                    break;
+                case "--memory":
+                    opts.memory = MemoryBudget.parse(value);
+                    break;
+                case "--precision":
+                    opts.precision = intInRange(value, 0, QuantizedFeatureSerializer.MAX_PRECISION);
+                    break;
+                case "--sparse-property":
+                    opts.sparseProperties.add(value);
+                    break;
+                case "--overflow-threshold":
+                    opts.overflowThreshold = intInRange(value, 0, Integer.MAX_VALUE);
+                    break;
+                case "--overflow-zoom":
+                    opts.overflowZoom = intInRange(value, 0, ShapeDataStore.ZOOM_LEVEL - 1);
+                    break;
+                case "--split-features":
+                    opts.splitFeatures = intInRange(value, 0, Integer.MAX_VALUE);
+                    break;
+                case "--split-bytes":
+                    opts.splitBytes = intInRange(value, 0, Integer.MAX_VALUE);
+                    break;
+                case "--split-zoom":
+                    opts.splitZoom = intInRange(value, ShapeDataStore.ZOOM_LEVEL + 1, 20);
+                    break;
+                case "--pyramid":
+                    opts.pyramid.add(pyramidLevel(value));
+                    break;
+                case "--rollup":
+                    GeographyLevel level = GeographyLevel.fromKey(value);
+
+                    if (level == GeographyLevel.BLOCK)
+                        throw new IllegalArgumentException("Blocks are always written");
+
+                    opts.rollups.add(level);
+                    break;
+                case "--threads":
+                    String[] stageThreads = value.split("=");
+
+                    if (stageThreads.length != 2 || !STAGES.contains(stageThreads[0]))
+                        throw new IllegalArgumentException("Invalid stage threads " + value);
+
+                    opts.threads.put(stageThreads[0], intInRange(stageThreads[1], 1, 1024));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + opt);
+            }
+        }
+
+        if (!opts.sparseProperties.isEmpty() && !opts.sparse)
+            throw new IllegalArgumentException("--sparse-property requires --sparse");
+
+        // finest first, so that the descriptor lists them in a predictable order
+        opts.pyramid.sort((l1, l2) -> Integer.compare(l2.zoom, l1.zoom));
+
+        for (int level = 1; level < opts.pyramid.size(); level++) {
+            if (opts.pyramid.get(level).zoom == opts.pyramid.get(level - 1).zoom)
+                throw new IllegalArgumentException("Duplicate pyramid zoom level");
+        }
+
+        int remaining = args.length - i;
+        if (remaining < 1 || remaining > 2)
+            throw new IllegalArgumentException("Expected input directory and optional output");
+
+        opts.inputDirectory = new File(args[i]);
+        if (remaining == 2)
+            opts.output = args[i + 1];
+
+        return opts;
+    }
+
+    /** parse a pyramid level, either a zoom level or zoom:tolerance with the tolerance in degrees */
+    private static TilesetDescriptor.PyramidLevel pyramidLevel (String value) {
+        String[] parts = value.split(":");
+
+        if (parts.length > 2)
+            throw new IllegalArgumentException("Invalid pyramid level " + value);
+
+        int zoom = intInRange(parts[0], 0, ShapeDataStore.ZOOM_LEVEL - 1);
+
+        if (parts.length == 1)
+            return TilesetDescriptor.PyramidLevel.forZoom(zoom);
+
+        double tolerance = Double.parseDouble(parts[1]);
+        if (!(tolerance > 0))
+            throw new IllegalArgumentException("Pyramid tolerance must be positive");
+
+        return new TilesetDescriptor.PyramidLevel(zoom, tolerance);
+    }
+
+    private static int intInRange (String value, int min, int max) {
+        int n = Integer.parseInt(value);
+
+        if (n < min || n > max)
+            throw new IllegalArgumentException(value + " is not between " + min + " and " + max);
+
+        return n;
+    }
+
+    /** @return the number of threads to use for the given stage */
+    public int threads (String stage, int defaultThreads) {
+        return threads.getOrDefault(stage, defaultThreads);
+    }
+}
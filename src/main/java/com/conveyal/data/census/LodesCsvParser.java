@@ -0,0 +1,203 @@
+package com.conveyal.data.census;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A streaming parser for the simple CSV used by LODES: a header row followed by rows of unquoted numeric fields.
+ *
+ * Rows are parsed in place in a byte buffer; the parser records where each field starts and ends, and numbers are only
+ * parsed from the bytes when they are asked for. Apart from the header, nothing is allocated per row or per cell.
+ */
+public class LodesCsvParser implements Closeable {
+    private final InputStream is;
+
+    private byte[] buf = new byte[1 << 16];
+
+    /** start of the unparsed data in the buffer */
+    private int pos = 0;
+
+    /** end of valid data in the buffer */
+    private int limit = 0;
+
+    private boolean eof = false;
+
+    private final String[] headers;
+
+    /** start (inclusive) and end (exclusive) offsets in the buffer of each field in the current row */
+    private final int[] starts, ends;
+
+    private long row = 0;
+
+    public LodesCsvParser (InputStream is) throws IOException {
+        this.is = is;
+
+        int newline = nextLine();
+        if (newline < 0)
+            throw new IOException("LODES file is empty");
+
+        // the header is only read once, so split it the old-fashioned way
+        String header = new String(buf, pos, lineEnd(newline) - pos, StandardCharsets.UTF_8);
+        headers = header.split(",");
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = headers[i].trim();
+        }
+
+        pos = newline + 1;
+        starts = new int[headers.length];
+        ends = new int[headers.length];
+    }
+
+    public String[] getHeaders () {
+        return headers;
+    }
+
+    /** @return the index of the named column, or -1 if there is no such column */
+    public int getColumn (String name) {
+        for (int i = 0; i < headers.length; i++) {
+            if (headers[i].equals(name))
+                return i;
+        }
+
+        return -1;
+    }
+
+    /** Advance to the next row, returning false at the end of the file */
+    public boolean next () throws IOException {
+        int newline, end;
+
+        // skip blank lines (e.g. a trailing newline)
+        do {
+            newline = nextLine();
+
+            if (newline < 0)
+                return false;
+
+            end = lineEnd(newline);
+
+            if (end == pos)
+                pos = newline + 1;
+            else
+                break;
+        } while (true);
+
+        row++;
+
+        int field = 0;
+        starts[0] = pos;
+
+        for (int i = pos; i < end; i++) {
+            if (buf[i] == ',') {
+                ends[field++] = i;
+
+                if (field == headers.length)
+                    throw new IOException("Too many fields in row " + row);
+
+                starts[field] = i + 1;
+            }
+        }
+
+        ends[field++] = end;
+
+        if (field != headers.length)
+            throw new IOException("Expected " + headers.length + " fields in row " + row + ", found " + field);
+
+        pos = newline + 1;
+        return true;
+    }
+
+    /** Parse the given column of the current row as a long */
+    public long getLong (int col) throws IOException {
+        int start = starts[col], end = ends[col];
+
+        if (start == end)
+            throw new IOException("Empty value in column " + headers[col] + " of row " + row);
+
+        long val = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new IOException("Invalid number in column " + headers[col] + " of row " + row);
+            val = val * 10 + digit;
+        }
+
+        return val;
+    }
+
+    /** Parse the given column of the current row as an int */
+    public int getInt (int col) throws IOException {
+        long val = getLong(col);
+
+        if (val > Integer.MAX_VALUE)
+            throw new IOException("Value out of range in column " + headers[col] + " of row " + row);
+
+        return (int) val;
+    }
+
+    /**
+     * Make sure there is a complete line starting at pos in the buffer, reading more data if needed.
+     * @return the offset of the newline at the end of the line, or -1 if there is no more data
+     */
+    private int nextLine () throws IOException {
+        // don't rescan data we've already searched for a newline
+        int from = pos;
+
+        while (true) {
+            for (int i = from; i < limit; i++) {
+                if (buf[i] == '\n')
+                    return i;
+            }
+
+            if (eof) {
+                if (pos == limit)
+                    return -1;
+
+                // last line has no newline, add one
+                ensureSpace(1);
+                buf[limit] = '\n';
+                return limit++;
+            }
+
+            from = limit - pos;
+            ensureSpace(buf.length / 2);
+            from += pos;
+
+            int read = is.read(buf, limit, buf.length - limit);
+
+            if (read < 0)
+                eof = true;
+            else
+                limit += read;
+        }
+    }
+
+    /** make room for at least n more bytes after limit, discarding consumed data or growing the buffer */
+    private void ensureSpace (int n) {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+
+        if (buf.length - limit < n) {
+            byte[] newBuf = new byte[Math.max(buf.length * 2, limit + n)];
+            System.arraycopy(buf, 0, newBuf, 0, limit);
+            buf = newBuf;
+        }
+    }
+
+    /** end of the line ending at the given newline, excluding any carriage return */
+    private int lineEnd (int newline) {
+        if (newline > pos && buf[newline - 1] == '\r')
+            return newline - 1;
+
+        return newline;
+    }
+
+    @Override
+    public void close () throws IOException {
+        is.close();
+    }
+}
@@ -1,9 +1,9 @@
 package com.conveyal.data.census;
 
 import com.conveyal.data.geobuf.GeobufFeature;
-import com.csvreader.CsvReader;
 
-import java.io.*;
+import java.io.File;
+import java.io.FileInputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
@@ -20,13 +20,16 @@ public class LodesSource {
         this.type = type;
     }
 
-    public void load(ShapeDataStore store) throws Exception {
-        InputStream csv = new GZIPInputStream(new BufferedInputStream(new FileInputStream(input)));
-        CsvReader reader = new CsvReader(new InputStreamReader(csv));
+    /**
+     * rename the columns to something useful
+     * http://lehd.ces.census.gov/data/lodes/LODES7/LODESTechDoc7.1.pdf#page=7&zoom=auto,-266,580
+     */
+    private static final Map<String, String> colNames = new HashMap<>();
+
+    /** name of the column holding the date the data was created, as yyyymmdd, which is not a count */
+    static final String CREATION_DATE = "Data creation date";
 
-        // rename the columns to something useful
-        //http://lehd.ces.census.gov/data/lodes/LODES7/LODESTechDoc7.1.pdf#page=7&zoom=auto,-266,580
-        Map<String, String> colNames = new HashMap<>();
+    static {
         colNames.put("C000", "total");
 
         colNames.put("CA01", "age 29 or younger");
@@ -87,52 +90,69 @@ public class LodesSource {
         colNames.put("CFS03", "at firms with 50-249 employees");
         colNames.put("CFS04", "at firms with 250-499 employees");
         colNames.put("CFS05", "at firms with 500 or more employees");
-        colNames.put("createdate", "Data creation date");
-
-        reader.readHeaders();
-        String[] headers = reader.getHeaders();
-
-        // read the file
-        while (reader.readRecord()) {
-            long id = Long.parseLong(reader.get(type == LodesType.WORKPLACE ? "w_geocode" : "h_geocode"));
-            GeobufFeature feat = store.get(id);
-
-            String[] line = reader.getValues();
-            for (int i = 0; i < line.length; i++) {
-                String col = headers[i];
-
-                if (!colNames.containsKey(col))
-                    continue;
-
-                String colName;
-
-                if (type == LodesType.WORKPLACE) {
-                    if (col.startsWith("CR") || col.startsWith("CD") || col.startsWith("CA"))
-                        colName = "Jobs employing workers " + colNames.get(col);
-                    else if (col.startsWith("CS"))
-                        colName = "Jobs employing " + colNames.get(col) + "s";
-                    else if (col.startsWith("CT"))
-                        colName = "Jobs employing " + colNames.get(col) + " workers";
-                    else
-                        colName = "Jobs " + colNames.get(col);
-                }
-                else if (type == LodesType.RESIDENCE) {
-                    if (col.startsWith("CT") || col.startsWith("CS"))
-                        colName = "Workers, " + colNames.get(col);
-                    else
-                        colName = "Workers " + colNames.get(col);
+        colNames.put("createdate", CREATION_DATE);
+    }
+
+    public void load(ShapeDataStore store) throws Exception {
+        try (LodesCsvParser parser = new LodesCsvParser(new GZIPInputStream(new FileInputStream(input), 1 << 16))) {
+            // resolve the schema once per file rather than once per cell
+            String idColName = type == LodesType.WORKPLACE ? "w_geocode" : "h_geocode";
+            int idCol = parser.getColumn(idColName);
+
+            if (idCol < 0)
+                throw new IllegalArgumentException("LODES file " + input + " has no " + idColName + " column");
+
+            String[] headers = parser.getHeaders();
+            int[] cols = new int[headers.length];
+            String[] keys = new String[headers.length];
+            int colCount = 0;
+
+            for (int i = 0; i < headers.length; i++) {
+                String key = propertyName(headers[i]);
+
+                if (key != null) {
+                    cols[colCount] = i;
+                    keys[colCount++] = key;
                 }
-                else {
-                    throw new IllegalArgumentException("Invalid LODES type");
+            }
+
+            // read the file
+            while (parser.next()) {
+                GeobufFeature feat = store.get(parser.getLong(idCol));
+
+                for (int i = 0; i < colCount; i++) {
+                    feat.properties.put(keys[i], parser.getInt(cols[i]));
                 }
 
-                feat.properties.put(colName, Integer.parseInt(line[i]));
+                store.put(feat);
             }
-
-            store.put(feat);
         }
+    }
 
-        reader.close();
+    /** Get the property name for a column in a LODES file of this type, or null if the column is not imported */
+    private String propertyName (String col) {
+        if (!colNames.containsKey(col))
+            return null;
+
+        if (type == LodesType.WORKPLACE) {
+            if (col.startsWith("CR") || col.startsWith("CD") || col.startsWith("CA"))
+                return "Jobs employing workers " + colNames.get(col);
+            else if (col.startsWith("CS"))
+                return "Jobs employing " + colNames.get(col) + "s";
+            else if (col.startsWith("CT"))
+                return "Jobs employing " + colNames.get(col) + " workers";
+            else
+                return "Jobs " + colNames.get(col);
+        }
+        else if (type == LodesType.RESIDENCE) {
+            if (col.startsWith("CT") || col.startsWith("CS"))
+                return "Workers, " + colNames.get(col);
+            else
+                return "Workers " + colNames.get(col);
+        }
+        else {
+            throw new IllegalArgumentException("Invalid LODES type");
+        }
     }
 
     /** supported lodes types are workplace area characteristics and residence area characteristics */
@@ -0,0 +1,117 @@
+package com.conveyal.data.census;
+
+/**
+ * Divides a fixed amount of memory between the buffers and queues of the loader, so that a load completes in a known
+ * amount of heap, spilling to disk rather than running out of memory.
+ *
+ * Only one external sort runs at a time (the bulk load while TIGER data is loaded, then the sort of features into
+ * tiles), so both get the same share. While tiles are sorted, the block index is sorted alongside them with a much
+ * smaller share, as its records are tiny. Queues are sized from rough estimates of the size of the items in them; the
+ * remainder of the budget is left for the store, the indexes and the JVM itself.
+ */
+public class MemoryBudget {
+    /** Rough size of a block feature and its geometry on the heap */
+    private static final int FEATURE_BYTES = 4 * 1024;
+
+    /** Rough size of the serialized features of a tile, and of the tile once encoded */
+    private static final int TILE_BYTES = 256 * 1024;
+
+    public final long totalBytes;
+
+    public MemoryBudget (long totalBytes) {
+        if (totalBytes < 64 * 1024 * 1024)
+            throw new IllegalArgumentException("Memory budget must be at least 64MB");
+
+        this.totalBytes = totalBytes;
+    }
+
+    /** A budget covering most of the maximum heap size of this JVM */
+    public static MemoryBudget forHeap () {
+        return new MemoryBudget(Runtime.getRuntime().maxMemory() * 3 / 4);
+    }
+
+    /** Parse a size such as 2g, 512m or 1048576 */
+    public static MemoryBudget parse (String size) {
+        String s = size.trim().toLowerCase();
+        long multiplier = 1;
+
+        if (s.endsWith("g"))
+            multiplier = 1024 * 1024 * 1024;
+        else if (s.endsWith("m"))
+            multiplier = 1024 * 1024;
+        else if (s.endsWith("k"))
+            multiplier = 1024;
+
+        if (multiplier != 1)
+            s = s.substring(0, s.length() - 1);
+
+        return new MemoryBudget(Long.parseLong(s) * multiplier);
+    }
+
+    /** Memory for an external sort to use before spilling to disk */
+    public long sortBufferBytes () {
+        return totalBytes / 4;
+    }
+
+    /** Memory for the sort of the block index, which runs at the same time as the sort of features into tiles */
+    public long blockIndexBufferBytes () {
+        return totalBytes / 32;
+    }
+
+    /** Capacity of each of the given number of queues of features */
+    public int featureQueueSize (int queues) {
+        return clamp(totalBytes / 8 / FEATURE_BYTES / queues, 100, 10000);
+    }
+
+    /** Number of tiles that may wait in each of the two tile writing queues */
+    public int tilesInFlight () {
+        return clamp(totalBytes / 8 / TILE_BYTES / 2, 4, 1000);
+    }
+
+    /**
+     * Memory a single pyramid tile, or a leaf of one, may use while it is written; bigger pyramid tiles are split. Such
+     * a tile is held whole, as serialized features, as decoded features and once encoded, so it can need far more than
+     * the rough size the tile queues are sized for.
+     */
+    public long wholeTileBytes () {
+        return totalBytes / 8;
+    }
+
+    /** Rough memory needed to write a tile with the given number of features and total serialized size */
+    public static long tileBytes (long features, long serializedBytes) {
+        // the serialized features, plus the encoded tile which is about the same size, plus the decoded features
+        return serializedBytes * 2 + features * FEATURE_BYTES;
+    }
+
+    /** Bytes of compressed tiles that may wait to be uploaded */
+    public int uploadBytesInFlight () {
+        return clamp(totalBytes / 8, 1024 * 1024, 128 * 1024 * 1024);
+    }
+
+    /** Number of writes MapDB may queue before writing them to disk */
+    public int storeWriteQueueSize () {
+        return featureQueueSize(1);
+    }
+
+    /**
+     * Initial size of the store file. The file is memory mapped rather than on the heap, but in a container the
+     * mapped pages count against the memory limit too.
+     */
+    public long storeAllocateStartSize () {
+        return Math.min(1024L * 1024 * 1024, totalBytes / 2);
+    }
+
+    /** Amount by which to grow the store file when it is full */
+    public long storeAllocateIncrement () {
+        return Math.min(512L * 1024 * 1024, totalBytes / 4);
+    }
+
+    private static int clamp (long value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public String toString () {
+        return totalBytes / 1024 / 1024 + "MB";
+    }
+}
@@ -0,0 +1,59 @@
+package com.conveyal.data.census;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A set of stages connected by bounded queues, with periodic reporting of throughput and queue depth for every stage.
+ * A stage whose input queue is always full is the bottleneck; a stage whose queue is always empty is starved.
+ */
+public class Pipeline implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(Pipeline.class);
+
+    public final String name;
+
+    private final List<Stage<?>> stages = new CopyOnWriteArrayList<>();
+
+    private final ScheduledExecutorService reporter;
+
+    public Pipeline (String name, int reportIntervalSeconds) {
+        this.name = name;
+        this.reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name + "-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(this::report, reportIntervalSeconds, reportIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /** Create and start a new stage in this pipeline */
+    public <T> Stage<T> stage (String name, int threads, int queueSize, Stage.Worker<T> worker) {
+        Stage<T> stage = new Stage<>(name, threads, queueSize, worker);
+        stages.add(stage);
+        return stage;
+    }
+
+    private void report () {
+        LOG.info("Pipeline {}:", name);
+        for (Stage<?> stage : stages) {
+            stage.report();
+        }
+    }
+
+    /** Stop reporting; stages should already have been finished */
+    @Override
+    public void close () {
+        reporter.shutdownNow();
+
+        for (Stage<?> stage : stages) {
+            LOG.info("Pipeline {}: stage {} processed {} items", name, stage.name, stage.getProcessed());
+        }
+    }
+}
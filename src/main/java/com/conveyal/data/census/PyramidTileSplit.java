@@ -0,0 +1,136 @@
+package com.conveyal.data.census;
+
+import com.conveyal.data.geobuf.GeobufFeature;
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.conveyal.data.census.ShapeDataStore.lat2tile;
+import static com.conveyal.data.census.ShapeDataStore.lon2tile;
+
+/**
+ * A pyramid tile too big to write whole, which is written as the leaves of a quadtree instead, the way TileWriter
+ * splits z11 tiles that are over the limits. As features are added they are sorted by quadrant on disk, and each
+ * quadrant is then written whole if it fits in the memory a single tile may use, or split again, down to z11.
+ * Features are copied into every quadrant their envelopes touch, as they are into tiles.
+ */
+class PyramidTileSplit implements Closeable {
+    /** number of low bits of a sort key holding the ordinal of the feature, the quadrant is in the bits above */
+    private static final int ORDINAL_BITS = 61;
+
+    private static final long ORDINAL_MASK = (1L << ORDINAL_BITS) - 1;
+
+    private final QuantizedFeatureSerializer serializer;
+
+    private final MemoryBudget budget;
+
+    /** zoom level of the pyramid level the tile belongs to */
+    private final int pyramidZoom;
+
+    /** the tile being split */
+    private final int z, x, y;
+
+    /** quadkey of the tile being split, relative to the pyramid tile */
+    private final String quadkey;
+
+    private final ExternalSorter sorter;
+
+    /** number of features and serialized bytes in each quadrant */
+    private final long[][] sizes = new long[4][2];
+
+    /** Start splitting the given pyramid tile */
+    PyramidTileSplit (QuantizedFeatureSerializer serializer, MemoryBudget budget, int pyramidZoom, int x, int y) {
+        this(serializer, budget, pyramidZoom, pyramidZoom, x, y, "");
+    }
+
+    private PyramidTileSplit (QuantizedFeatureSerializer serializer, MemoryBudget budget, int pyramidZoom, int z, int x,
+                              int y, String quadkey) {
+        this.serializer = serializer;
+        this.budget = budget;
+        this.pyramidZoom = pyramidZoom;
+        this.z = z;
+        this.x = x;
+        this.y = y;
+        this.quadkey = quadkey;
+        // splits nest, so each one only gets a share of what a tile may use
+        this.sorter = new ExternalSorter(budget.wholeTileBytes() / 4);
+    }
+
+    /** Add a serialized feature, whose ordinal orders it among the features of the tile */
+    public void add (long ordinal, byte[] serialized) throws IOException {
+        Envelope e = serializer.fromBytes(serialized).geometry.getEnvelopeInternal();
+        int cz = z + 1;
+
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int cx = x * 2 + (quadrant & 1), cy = y * 2 + (quadrant >> 1);
+
+            if (lon2tile(e.getMinX(), cz) <= cx && cx <= lon2tile(e.getMaxX(), cz) &&
+                    lat2tile(e.getMaxY(), cz) <= cy && cy <= lat2tile(e.getMinY(), cz)) {
+                sorter.add((long) quadrant << ORDINAL_BITS | ordinal, serialized);
+                sizes[quadrant][0]++;
+                sizes[quadrant][1] += serialized.length;
+            }
+        }
+    }
+
+    /** Queue the leaves of the split on the writer, adding their quadkeys to leaves */
+    public void write (TileWriter writer, List<String> leaves) throws IOException {
+        try (ExternalSorter.Cursor cursor = sorter.sorted()) {
+            boolean more = cursor.next();
+
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                if (sizes[quadrant][0] == 0)
+                    continue;
+
+                int cz = z + 1, cx = x * 2 + (quadrant & 1), cy = y * 2 + (quadrant >> 1);
+                long bytes = MemoryBudget.tileBytes(sizes[quadrant][0], sizes[quadrant][1]);
+
+                if (bytes <= budget.wholeTileBytes()) {
+                    List<byte[]> features = new ArrayList<>();
+
+                    while (more && cursor.key() >>> ORDINAL_BITS == quadrant) {
+                        features.add(cursor.payload());
+                        more = cursor.next();
+                    }
+
+                    leaves.add(quadkey + quadrant);
+                    writer.writeLeaf(TileSink.pyramidSplitTileKey(pyramidZoom, cz, cx, cy), () -> {
+                        List<GeobufFeature> decoded = new ArrayList<>(features.size());
+                        for (byte[] serialized : features) {
+                            decoded.add(serializer.fromBytes(serialized));
+                        }
+
+                        // keep leaves in ID order so that unchanged leaves hash the same
+                        decoded.sort(Comparator.comparingLong(f -> f.numericId));
+                        return decoded;
+                    });
+                } else if (cz < ShapeDataStore.ZOOM_LEVEL && sizes[quadrant][0] > 1) {
+                    try (PyramidTileSplit split = new PyramidTileSplit(serializer, budget, pyramidZoom, cz, cx, cy,
+                            quadkey + quadrant)) {
+                        while (more && cursor.key() >>> ORDINAL_BITS == quadrant) {
+                            split.add(cursor.key() & ORDINAL_MASK, cursor.payload());
+                            more = cursor.next();
+                        }
+
+                        split.write(writer, leaves);
+                    }
+                } else {
+                    throw new IllegalStateException(String.format("Pyramid tile %s would need more than %dMB to " +
+                            "write even when split down to z%d, more than the %dMB a single tile may use with a " +
+                            "memory budget of %s; use a larger memory budget",
+                            TileSink.pyramidSplitTileKey(pyramidZoom, cz, cx, cy), bytes / 1024 / 1024, cz,
+                            budget.wholeTileBytes() / 1024 / 1024, budget));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close () {
+        sorter.close();
+    }
+}
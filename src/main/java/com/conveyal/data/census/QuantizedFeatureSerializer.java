@@ -0,0 +1,311 @@
+package com.conveyal.data.census;
+
+import com.conveyal.data.geobuf.GeobufFeature;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.mapdb.Serializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serialize features for the intermediate store with their coordinates quantized to a fixed number of decimal places.
+ *
+ * Coordinates are stored as integers, each one as the zigzag varint-encoded difference from the previous coordinate in
+ * the same feature, so neighbouring vertices take a few bytes per ordinate rather than eight, and fewer at lower
+ * precision. Closing coordinates of rings are not stored. Quantization happens when a feature is first serialized;
+ * there is no point keeping more precision than the tiles are written with. At 12 decimal places, the precision tiles
+ * have always been written with, quantized longitudes still fit comfortably in a long.
+ */
+public class QuantizedFeatureSerializer extends Serializer<GeobufFeature> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+    // geometry types
+    private static final int NULL = 0, POINT = 1, LINESTRING = 2, POLYGON = 3, MULTIPOINT = 4, MULTILINESTRING = 5,
+            MULTIPOLYGON = 6, GEOMETRYCOLLECTION = 7;
+
+    // property types
+    private static final int INTEGER = 1, LONG = 2, DOUBLE = 3, FLOAT = 4, STRING = 5, BOOLEAN = 6;
+
+    /** maximum number of decimal places to keep, the precision tiles have always been written with */
+    public static final int MAX_PRECISION = 12;
+
+    /** number of decimal places to keep */
+    public final int precision;
+
+    private final double scale;
+
+    public QuantizedFeatureSerializer (int precision) {
+        if (precision < 0 || precision > MAX_PRECISION)
+            throw new IllegalArgumentException("Precision must be between 0 and " + MAX_PRECISION + " decimal places");
+
+        this.precision = precision;
+        this.scale = Math.pow(10, precision);
+    }
+
+    @Override
+    public void serialize (DataOutput out, GeobufFeature feature) throws IOException {
+        Varints.writeVarLong(out, feature.numericId);
+
+        out.writeBoolean(feature.id != null);
+        if (feature.id != null)
+            out.writeUTF(feature.id);
+
+        writeProperties(out, feature.properties);
+        writeGeometry(out, feature.geometry, new long[2]);
+    }
+
+    @Override
+    public GeobufFeature deserialize (DataInput in, int available) throws IOException {
+        GeobufFeature feature = new GeobufFeature();
+        feature.numericId = Varints.readVarLong(in);
+
+        if (in.readBoolean())
+            feature.id = in.readUTF();
+
+        feature.properties = readProperties(in);
+        feature.geometry = readGeometry(in, new long[2]);
+        return feature;
+    }
+
+    /** Serialize a feature to a byte array */
+    public byte[] toBytes (GeobufFeature feature) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(baos);
+        serialize(os, feature);
+        os.flush();
+        return baos.toByteArray();
+    }
+
+    /** Deserialize a feature from a byte array */
+    public GeobufFeature fromBytes (byte[] serialized) throws IOException {
+        return deserialize(new DataInputStream(new ByteArrayInputStream(serialized)), serialized.length);
+    }
+
+    private void writeProperties (DataOutput out, Map<String, Object> properties) throws IOException {
+        Varints.writeVarLong(out, properties.size());
+
+        for (Map.Entry<String, Object> e : properties.entrySet()) {
+            out.writeUTF(e.getKey());
+            Object val = e.getValue();
+
+            if (val instanceof Integer) {
+                out.writeByte(INTEGER);
+                Varints.writeVarLong(out, Varints.zigzag((Integer) val));
+            } else if (val instanceof Long) {
+                out.writeByte(LONG);
+                Varints.writeVarLong(out, Varints.zigzag((Long) val));
+            } else if (val instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) val);
+            } else if (val instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) val);
+            } else if (val instanceof String) {
+                out.writeByte(STRING);
+                out.writeUTF((String) val);
+            } else if (val instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean) val);
+            } else {
+                throw new IllegalArgumentException("Unsupported type for property " + e.getKey() + ": " + val);
+            }
+        }
+    }
+
+    private Map<String, Object> readProperties (DataInput in) throws IOException {
+        int size = (int) Varints.readVarLong(in);
+        Map<String, Object> properties = new HashMap<>();
+
+        for (int i = 0; i < size; i++) {
+            String key = in.readUTF();
+            int type = in.readByte();
+
+            switch (type) {
+                case INTEGER:
+                    properties.put(key, (int) Varints.unzigzag(Varints.readVarLong(in)));
+                    break;
+                case LONG:
+                    properties.put(key, Varints.unzigzag(Varints.readVarLong(in)));
+                    break;
+                case DOUBLE:
+                    properties.put(key, in.readDouble());
+                    break;
+                case FLOAT:
+                    properties.put(key, in.readFloat());
+                    break;
+                case STRING:
+                    properties.put(key, in.readUTF());
+                    break;
+                case BOOLEAN:
+                    properties.put(key, in.readBoolean());
+                    break;
+                default:
+                    throw new IOException("Unknown property type " + type);
+            }
+        }
+
+        return properties;
+    }
+
+    /** write a geometry, with coordinates relative to the previous coordinate written, which is updated in prev */
+    private void writeGeometry (DataOutput out, Geometry geom, long[] prev) throws IOException {
+        if (geom == null) {
+            out.writeByte(NULL);
+        } else if (geom instanceof Point) {
+            out.writeByte(POINT);
+            Point p = (Point) geom;
+            writeCoordinate(out, p.getX(), p.getY(), prev);
+        } else if (geom instanceof LineString) {
+            out.writeByte(LINESTRING);
+            writeSequence(out, ((LineString) geom).getCoordinateSequence(), false, prev);
+        } else if (geom instanceof Polygon) {
+            out.writeByte(POLYGON);
+            writePolygon(out, (Polygon) geom, prev);
+        } else if (geom instanceof GeometryCollection) {
+            int type = geom instanceof MultiPolygon ? MULTIPOLYGON :
+                    geom instanceof MultiLineString ? MULTILINESTRING :
+                    geom instanceof MultiPoint ? MULTIPOINT : GEOMETRYCOLLECTION;
+            out.writeByte(type);
+            Varints.writeVarLong(out, geom.getNumGeometries());
+
+            for (int i = 0; i < geom.getNumGeometries(); i++) {
+                Geometry part = geom.getGeometryN(i);
+
+                if (type == MULTIPOLYGON)
+                    writePolygon(out, (Polygon) part, prev);
+                else if (type == MULTILINESTRING)
+                    writeSequence(out, ((LineString) part).getCoordinateSequence(), false, prev);
+                else if (type == MULTIPOINT)
+                    writeCoordinate(out, ((Point) part).getX(), ((Point) part).getY(), prev);
+                else
+                    writeGeometry(out, part, prev);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported geometry type " + geom.getGeometryType());
+        }
+    }
+
+    private Geometry readGeometry (DataInput in, long[] prev) throws IOException {
+        int type = in.readByte();
+
+        switch (type) {
+            case NULL:
+                return null;
+            case POINT:
+                return GEOMETRY_FACTORY.createPoint(readCoordinate(in, prev));
+            case LINESTRING:
+                return GEOMETRY_FACTORY.createLineString(readSequence(in, false, prev));
+            case POLYGON:
+                return readPolygon(in, prev);
+            case MULTIPOINT: {
+                Point[] points = new Point[(int) Varints.readVarLong(in)];
+                for (int i = 0; i < points.length; i++) {
+                    points[i] = GEOMETRY_FACTORY.createPoint(readCoordinate(in, prev));
+                }
+                return GEOMETRY_FACTORY.createMultiPoint(points);
+            }
+            case MULTILINESTRING: {
+                LineString[] lines = new LineString[(int) Varints.readVarLong(in)];
+                for (int i = 0; i < lines.length; i++) {
+                    lines[i] = GEOMETRY_FACTORY.createLineString(readSequence(in, false, prev));
+                }
+                return GEOMETRY_FACTORY.createMultiLineString(lines);
+            }
+            case MULTIPOLYGON: {
+                Polygon[] polygons = new Polygon[(int) Varints.readVarLong(in)];
+                for (int i = 0; i < polygons.length; i++) {
+                    polygons[i] = readPolygon(in, prev);
+                }
+                return GEOMETRY_FACTORY.createMultiPolygon(polygons);
+            }
+            case GEOMETRYCOLLECTION: {
+                Geometry[] geoms = new Geometry[(int) Varints.readVarLong(in)];
+                for (int i = 0; i < geoms.length; i++) {
+                    geoms[i] = readGeometry(in, prev);
+                }
+                return GEOMETRY_FACTORY.createGeometryCollection(geoms);
+            }
+            default:
+                throw new IOException("Unknown geometry type " + type);
+        }
+    }
+
+    private void writePolygon (DataOutput out, Polygon polygon, long[] prev) throws IOException {
+        Varints.writeVarLong(out, polygon.getNumInteriorRing());
+        writeSequence(out, polygon.getExteriorRing().getCoordinateSequence(), true, prev);
+
+        for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+            writeSequence(out, polygon.getInteriorRingN(i).getCoordinateSequence(), true, prev);
+        }
+    }
+
+    private Polygon readPolygon (DataInput in, long[] prev) throws IOException {
+        LinearRing[] holes = new LinearRing[(int) Varints.readVarLong(in)];
+        LinearRing shell = GEOMETRY_FACTORY.createLinearRing(readSequence(in, true, prev));
+
+        for (int i = 0; i < holes.length; i++) {
+            holes[i] = GEOMETRY_FACTORY.createLinearRing(readSequence(in, true, prev));
+        }
+
+        return GEOMETRY_FACTORY.createPolygon(shell, holes);
+    }
+
+    /** write a coordinate sequence, leaving out the closing coordinate of a ring */
+    private void writeSequence (DataOutput out, CoordinateSequence seq, boolean ring, long[] prev) throws IOException {
+        int size = ring && seq.size() > 0 ? seq.size() - 1 : seq.size();
+        Varints.writeVarLong(out, size);
+
+        for (int i = 0; i < size; i++) {
+            writeCoordinate(out, seq.getX(i), seq.getY(i), prev);
+        }
+    }
+
+    private Coordinate[] readSequence (DataInput in, boolean ring, long[] prev) throws IOException {
+        int size = (int) Varints.readVarLong(in);
+        Coordinate[] coords = new Coordinate[ring && size > 0 ? size + 1 : size];
+
+        for (int i = 0; i < size; i++) {
+            coords[i] = readCoordinate(in, prev);
+        }
+
+        if (ring && size > 0)
+            coords[size] = new Coordinate(coords[0]);
+
+        return coords;
+    }
+
+    private void writeCoordinate (DataOutput out, double x, double y, long[] prev) throws IOException {
+        long qx = Math.round(x * scale), qy = Math.round(y * scale);
+        Varints.writeVarLong(out, Varints.zigzag(qx - prev[0]));
+        Varints.writeVarLong(out, Varints.zigzag(qy - prev[1]));
+        prev[0] = qx;
+        prev[1] = qy;
+    }
+
+    private Coordinate readCoordinate (DataInput in, long[] prev) throws IOException {
+        prev[0] += Varints.unzigzag(Varints.readVarLong(in));
+        prev[1] += Varints.unzigzag(Varints.readVarLong(in));
+        return new Coordinate(prev[0] / scale, prev[1] / scale);
+    }
+}
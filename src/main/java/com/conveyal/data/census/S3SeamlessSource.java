@@ -19,12 +19,24 @@ public class S3SeamlessSource extends SeamlessSource {
     public final String bucketName;
 
     public S3SeamlessSource(String bucketName) {
+        this(bucketName, 0);
+    }
+
+    /** Read the tileset in the given bucket, refusing extracts estimated to have more than maxFeatures features */
+    public S3SeamlessSource(String bucketName, long maxFeatures) {
+        super(maxFeatures);
         this.region = null;
         this.bucketName = bucketName;
         this.s3 = AmazonS3ClientBuilder.defaultClient();
     }
 
     public S3SeamlessSource(String region, String bucketName) {
+        this(region, bucketName, 0);
+    }
+
+    /** Read the tileset in the given bucket and region, refusing extracts estimated to have more than maxFeatures */
+    public S3SeamlessSource(String region, String bucketName, long maxFeatures) {
+        super(maxFeatures);
         this.region = region;
         this.bucketName = bucketName;
         this.s3 = AmazonS3ClientBuilder.standard()
@@ -33,9 +45,9 @@ public class S3SeamlessSource extends SeamlessSource {
     }
 
     @Override
-    protected InputStream getInputStream(int x, int y) throws IOException {
+    protected InputStream getInputStream(String key) throws IOException {
         try {
-            GetObjectRequest req = new GetObjectRequest(bucketName, String.format("%d/%d.pbf.gz", x, y));
+            GetObjectRequest req = new GetObjectRequest(bucketName, key);
             // the LODES bucket is requester-pays.
             req.setRequesterPays(true);
             return s3.getObject(req).getObjectContent();
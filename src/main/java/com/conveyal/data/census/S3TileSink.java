@@ -0,0 +1,209 @@
+package com.conveyal.data.census;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Write tiles to an Amazon S3 bucket, or any service that speaks the S3 API.
+ *
+ * Uploads run on their own thread pool, since they are bound by network latency rather than CPU, and are retried with
+ * exponential backoff. Tiles waiting to be uploaded are held in memory up to a limit on the total number of bytes, after
+ * which put() blocks. Failures that persist through all retries are reported by close().
+ */
+public class S3TileSink implements TileSink {
+    private static final Logger LOG = LoggerFactory.getLogger(S3TileSink.class);
+
+    public static final int DEFAULT_UPLOAD_THREADS = 32;
+
+    public static final int DEFAULT_MAX_BYTES_IN_FLIGHT = 128 * 1024 * 1024;
+
+    /** number of times to retry a failed upload */
+    public static final int MAX_RETRIES = 6;
+
+    /** delay before the first retry, doubled after each subsequent failure */
+    private static final long INITIAL_BACKOFF_MILLIS = 250;
+
+    private final AmazonS3 s3;
+
+    public final String bucketName;
+
+    private final ExecutorService executor;
+
+    private final int maxBytesInFlight;
+
+    private final Semaphore bytesInFlight;
+
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    private final AtomicLong uploadCount = new AtomicLong();
+
+    private final AtomicLong retryCount = new AtomicLong();
+
+    public S3TileSink (String bucketName) {
+        this(AmazonS3ClientBuilder.defaultClient(), bucketName, DEFAULT_UPLOAD_THREADS, DEFAULT_MAX_BYTES_IN_FLIGHT);
+    }
+
+    /** Upload to the given bucket, holding at most maxBytesInFlight bytes of tiles waiting to be uploaded */
+    public S3TileSink (String bucketName, int maxBytesInFlight) {
+        this(AmazonS3ClientBuilder.defaultClient(), bucketName, DEFAULT_UPLOAD_THREADS, maxBytesInFlight);
+    }
+
+    /** Upload to an S3-compatible service at the given endpoint, e.g. http://localhost:9000 */
+    public S3TileSink (String bucketName, String endpoint) {
+        this(AmazonS3ClientBuilder.standard()
+                        .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, "us-east-1"))
+                        .withPathStyleAccessEnabled(true)
+                        .build(),
+                bucketName, DEFAULT_UPLOAD_THREADS, DEFAULT_MAX_BYTES_IN_FLIGHT);
+    }
+
+    public S3TileSink (AmazonS3 s3, String bucketName, int uploadThreads, int maxBytesInFlight) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.executor = Executors.newFixedThreadPool(uploadThreads);
+        this.maxBytesInFlight = maxBytesInFlight;
+        this.bytesInFlight = new Semaphore(maxBytesInFlight);
+    }
+
+    @Override
+    public void put (String key, byte[] data) throws IOException {
+        checkFailure();
+
+        // a single tile bigger than the whole budget is allowed through on its own
+        int permits = Math.min(data.length, maxBytesInFlight);
+
+        try {
+            bytesInFlight.acquire(permits);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting to upload " + key);
+        }
+
+        executor.execute(() -> {
+            try {
+                upload(key, data);
+
+                long count = uploadCount.incrementAndGet();
+                if (count % 1000 == 0)
+                    LOG.info("Uploaded {} tiles to {}", count, bucketName);
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                bytesInFlight.release(permits);
+            }
+        });
+    }
+
+    @Override
+    public byte[] get (String key) throws IOException {
+        try (S3Object object = s3.getObject(bucketName, key)) {
+            return ByteStreams.toByteArray(object.getObjectContent());
+        } catch (AmazonS3Exception e) {
+            if ("NoSuchKey".equals(e.getErrorCode()))
+                return null;
+            else
+                throw e;
+        }
+    }
+
+    @Override
+    public void delete (String key) {
+        s3.deleteObject(bucketName, key);
+    }
+
+    /** Wait for all uploads that have been queued so far to finish */
+    @Override
+    public void flush () throws IOException {
+        try {
+            // all the permits are only available once nothing is in flight
+            bytesInFlight.acquire(maxBytesInFlight);
+            bytesInFlight.release(maxBytesInFlight);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for uploads to finish");
+        }
+
+        checkFailure();
+    }
+
+    /** Upload on the current thread, retrying with backoff */
+    private void upload (String key, byte[] data) throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentType("application/gzip");
+            // with a known length the SDK streams the body rather than buffering it to find the length
+            metadata.setContentLength(data.length);
+
+            try {
+                s3.putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(data), metadata));
+                return;
+            } catch (AmazonClientException e) {
+                if (attempt >= MAX_RETRIES || !isRetryable(e))
+                    throw e;
+
+                // full jitter, so that many threads failing at once don't all retry at once
+                long backoff = ThreadLocalRandom.current().nextLong(INITIAL_BACKOFF_MILLIS << attempt);
+                LOG.warn("Upload of {} failed ({}), retrying in {}ms", key, e.getMessage(), backoff);
+                retryCount.incrementAndGet();
+                Thread.sleep(backoff);
+            }
+        }
+    }
+
+    private static boolean isRetryable (AmazonClientException e) {
+        if (e instanceof AmazonServiceException) {
+            int status = ((AmazonServiceException) e).getStatusCode();
+            // client errors won't go away by trying again, except for timeouts and throttling
+            if (status >= 400 && status < 500 && status != 408 && status != 429)
+                return false;
+        }
+
+        return e.isRetryable();
+    }
+
+    private void checkFailure () throws IOException {
+        Exception e = failure.get();
+        if (e != null) {
+            executor.shutdownNow();
+            throw new IOException("Error uploading tiles to " + bucketName, e);
+        }
+    }
+
+    /** Wait for all uploads to finish */
+    @Override
+    public void close () throws IOException {
+        executor.shutdown();
+
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.info("Waiting for uploads to {} to finish", bucketName);
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw new InterruptedIOException("Interrupted while waiting for uploads to finish");
+        }
+
+        checkFailure();
+
+        LOG.info("Uploaded {} tiles to {} with {} retries", uploadCount.get(), bucketName, retryCount.get());
+    }
+}
@@ -2,8 +2,11 @@ package com.conveyal.data.census;
 
 import com.conveyal.data.geobuf.GeobufDecoder;
 import com.conveyal.data.geobuf.GeobufFeature;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.set.TIntSet;
 import org.locationtech.jts.geom.*;
 import org.locationtech.jts.geom.prep.PreparedPolygon;
+import org.locationtech.jts.geom.util.PolygonExtracter;
 import org.locationtech.jts.util.GeometricShapeFactory;
 import org.mapdb.DBMaker;
 import org.slf4j.Logger;
@@ -12,8 +15,20 @@ import org.slf4j.LoggerFactory;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 
 import static com.conveyal.data.census.ShapeDataStore.lat2tile;
@@ -30,73 +45,664 @@ public abstract class SeamlessSource {
 
     private static final GeometryFactory geometryFactory = new GeometryFactory();
 
+    /** property holding the fraction of the area of each feature that is inside the bounds of a clipped extract */
+    public static final String AREA_FRACTION = "area_fraction";
+
+    /** meters in a degree of latitude, or of longitude at the equator */
+    static final double METERS_PER_DEGREE = 111_319.49;
+
+    /** number of blocks on the edge of the bounds of a clipped extract to clip at once */
+    private static final int CLIP_BATCH_SIZE = 10_000;
+
+    /** How often to report on the progress of fetching blocks by ID */
+    private static final int REPORT_INTERVAL_SECONDS = 30;
+
+    /** layout of the tileset, read when it is first needed */
+    private TilesetDescriptor descriptor;
+
+    /** manifest of the tileset, used to estimate the size of extracts, read when it is first needed */
+    private TileManifest manifest;
+
+    private boolean manifestRead = false;
+
+    /** index from county to tiles, used for extracts by GEOID, read when it is first needed */
+    private GeoidTileIndex index;
+
+    private boolean indexRead = false;
+
+    /**
+     * Refuse to make extracts that are estimated to have more than this many features, zero for no limit. The
+     * estimate comes from the feature counts in the manifest, so a tileset without one is not limited.
+     */
+    public final long maxFeatures;
+
+    /** Number of files to read at once when fetching blocks by ID */
+    public int fetchThreads = 8;
+
+    /** Create a source that makes extracts of any size */
+    protected SeamlessSource () {
+        this(0);
+    }
+
+    /** Create a source that refuses extracts estimated to have more than the given number of features */
+    protected SeamlessSource (long maxFeatures) {
+        this.maxFeatures = maxFeatures;
+    }
+
     /** Extract features by bounding box */
     public Map<Long, GeobufFeature> extract(double north, double east, double south, double west, boolean onDisk) throws
             IOException {
+        return extract(north, east, south, west, onDisk, 0);
+    }
+
+    /**
+     * Extract features by bounding box, with geometries simplified by up to the given tolerance in degrees if the
+     * tileset has a pyramid level that is good enough.
+     */
+    public Map<Long, GeobufFeature> extract(double north, double east, double south, double west, boolean onDisk,
+                                            double tolerance) throws IOException {
+        return extract(rectangle(north, east, south, west), onDisk, tolerance);
+    }
+
+    /** @return a rectangular polygon with the given bounds */
+    public static Polygon rectangle (double north, double east, double south, double west) {
         GeometricShapeFactory factory = new GeometricShapeFactory(geometryFactory);
         factory.setCentre(new Coordinate((east + west) / 2, (north + south) / 2));
         factory.setWidth(east - west);
         factory.setHeight(north - south);
-        Polygon rect = factory.createRectangle();
-        return extract(rect, onDisk);
+        return factory.createRectangle();
     }
 
     /** Extract features by arbitrary polygons */
     public Map<Long, GeobufFeature> extract(Geometry bounds, boolean onDisk) throws IOException {
-        Map<Long, GeobufFeature> ret;
+        return extract(bounds, onDisk, 0);
+    }
 
-        if (onDisk)
-            ret = DBMaker.tempTreeMap();
-        else
-            ret = new HashMap<>();
+    /**
+     * Extract features by arbitrary polygons, selecting them with the given predicate rather than all of those that
+     * intersect the bounds. Cheaper predicates trade exactness for speed.
+     */
+    public Map<Long, GeobufFeature> extract(Geometry bounds, boolean onDisk, SpatialPredicate predicate)
+            throws IOException {
+        return extract(bounds, onDisk, 0, predicate);
+    }
 
-        Envelope env = bounds.getEnvelopeInternal();
-        double west = env.getMinX(), east = env.getMaxX(), north = env.getMaxY(), south = env.getMinY();
+    /**
+     * Extract features by arbitrary polygons. Only the tiles that the bounds touch are read, so a multipart boundary,
+     * or one with large holes, does not read every tile in its envelope. Geometries may be simplified by up to the
+     * given tolerance in degrees, in which case they are read from the coarsest pyramid level simplified with no more
+     * than that tolerance, which means reading far fewer, smaller tiles for large areas. With a tolerance of zero, or
+     * if there is no such level, full resolution geometries are read.
+     */
+    public Map<Long, GeobufFeature> extract(Geometry bounds, boolean onDisk, double tolerance) throws IOException {
+        return extract(bounds, onDisk, tolerance, SpatialPredicate.INTERSECTS);
+    }
+
+    /**
+     * Extract features by arbitrary polygons with geometries simplified by up to the given tolerance, selecting them
+     * with the given predicate. Features are tested against the bounds as they are read, simplified or not.
+     */
+    public Map<Long, GeobufFeature> extract(Geometry bounds, boolean onDisk, double tolerance,
+                                            SpatialPredicate predicate) throws IOException {
+        TilesetDescriptor.PyramidLevel level = tolerance > 0 ? getDescriptor().pyramidLevel(tolerance) : null;
+
+        if (level == null)
+            return extractCover(bounds, onDisk, predicate);
+
+        checkSize(GeographyLevel.BLOCK, () -> estimateBlocks(bounds, new BoundaryMask(bounds), level));
+
+        // every feature is in the pyramid, there is no need to look at the overflow layer
+        Map<Long, GeobufFeature> ret = createResult(onDisk);
+        int zoom = level.zoom;
+        LOG.info("Reading pyramid level z{}, simplified with tolerance {}", zoom, level.tolerance);
+        TilesetDescriptor descriptor = getDescriptor();
+        readLayer(zoom, (x, y, filter) -> descriptor.pyramidTileKeys(zoom, x, y, filter), bounds, predicate, ret, 0);
+        return ret;
+    }
+
+    /**
+     * Extract the features within the given distance, in meters, of a route, usually a LineString. Only the z11 tiles
+     * that the buffered route touches are read, rather than every tile in its envelope, which for a long diagonal
+     * route is a small fraction of them, and features are tested against the buffer itself.
+     */
+    public Map<Long, GeobufFeature> extractCorridor (Geometry route, double bufferMeters, boolean onDisk)
+            throws IOException {
+        return extractCorridor(route, bufferMeters, onDisk, SpatialPredicate.INTERSECTS);
+    }
+
+    /** Extract the features that the given predicate selects with the area within the given distance of a route */
+    public Map<Long, GeobufFeature> extractCorridor (Geometry route, double bufferMeters, boolean onDisk,
+                                                     SpatialPredicate predicate) throws IOException {
+        return extractCover(corridor(route, bufferMeters), onDisk, predicate);
+    }
+
+    /**
+     * @return the area within the given distance, in meters, of a route. The route is buffered in a sinusoidal
+     * projection centred on it, which keeps distances close to true for routes up to a few hundred kilometers long.
+     */
+    public static Geometry corridor (Geometry route, double bufferMeters) {
+        double lon0 = route.getEnvelopeInternal().centre().x;
+
+        Geometry projected = route.copy();
+        projected.apply((CoordinateFilter) c -> c.x = (c.x - lon0) * Math.cos(Math.toRadians(c.y)));
+        projected.geometryChanged();
+
+        Geometry buffer = projected.buffer(bufferMeters / METERS_PER_DEGREE);
+        buffer.apply((CoordinateFilter) c -> c.x = c.x / Math.cos(Math.toRadians(c.y)) + lon0);
+        buffer.geometryChanged();
+        return buffer;
+    }
+
+    /**
+     * Extract the blocks that overlap the bounds, with their geometries clipped to the bounds and the fraction of the
+     * area of each block that is in the bounds in an area_fraction property, for areal interpolation. Blocks that the
+     * boundary mask shows are entirely inside the bounds are passed through unclipped with a fraction of 1, so only
+     * blocks in cells on the edge of the bounds are clipped, in parallel once the tiles have been read. Blocks that
+     * only touch the bounds, with no area inside them, are left out.
+     */
+    public Map<Long, GeobufFeature> extractClipped (Geometry bounds, boolean onDisk) throws IOException {
+        BoundaryMask mask = new BoundaryMask(bounds);
+
+        // blocks to clip, kept out of the result until they have been clipped, and on disk with it if it is
+        Map<Long, GeobufFeature> edge = createResult(onDisk);
+
+        Map<Long, GeobufFeature> ret = extractCover(bounds, mask, f -> {
+            switch (mask.locate(f.geometry.getEnvelopeInternal())) {
+                case INSIDE:
+                    f.properties.put(AREA_FRACTION, 1.0);
+                    return true;
+                case OUTSIDE:
+                    return false;
+                default:
+                    // blocks are duplicated at the edges of tiles, only test them once
+                    if (!edge.containsKey(f.numericId) && mask.prepared.intersects(f.geometry))
+                        edge.put(f.numericId, f);
+                    return false;
+            }
+        }, onDisk);
+
+        // clip in parallel a batch at a time, so that only one batch of clipped blocks is held in memory at once
+        List<GeobufFeature> batch = new ArrayList<>(CLIP_BATCH_SIZE);
+        int clipped = 0;
+
+        for (GeobufFeature f : edge.values()) {
+            batch.add(f);
+
+            if (batch.size() == CLIP_BATCH_SIZE) {
+                clipped += clip(batch, bounds, ret);
+                batch.clear();
+            }
+        }
 
-        // TODO: use prepared polygons
+        clipped += clip(batch, bounds, ret);
 
-        // figure out how many tiles we're requesting
-        int minX = lon2tile(west, ZOOM_LEVEL), maxX = lon2tile(east, ZOOM_LEVEL),
-                minY = lat2tile(north, ZOOM_LEVEL), maxY = lat2tile(south, ZOOM_LEVEL);
+        LOG.info("Clipped {} blocks on the edge of the bounds, {} of which overlap them", edge.size(), clipped);
+        return ret;
+    }
+
+    /** Clip a batch of features to the bounds in parallel, putting those with area in the bounds into ret */
+    private static int clip (List<GeobufFeature> batch, Geometry bounds, Map<Long, GeobufFeature> ret) {
+        List<GeobufFeature> clipped = batch.parallelStream()
+                .map(f -> clip(f, bounds))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+
+        for (GeobufFeature f : clipped) {
+            ret.put(f.numericId, f);
+        }
+
+        return clipped.size();
+    }
+
+    /** Clip a feature to the bounds, returning null if it has no area in them */
+    private static GeobufFeature clip (GeobufFeature f, Geometry bounds) {
+        double area = f.geometry.getArea();
+
+        if (area == 0)
+            return null;
+
+        // where a block touches the edge of the bounds, the intersection can have points and lines as well as polygons
+        Geometry geom = geometryFactory.buildGeometry(PolygonExtracter.getPolygons(f.geometry.intersection(bounds)));
+        double clippedArea = geom.getArea();
+
+        if (clippedArea == 0)
+            return null;
+
+        f.geometry = geom;
+        f.properties.put(AREA_FRACTION, Math.min(clippedArea / area, 1.0));
+        return f;
+    }
+
+    /** Extract the blocks that the predicate selects with the bounds */
+    private Map<Long, GeobufFeature> extractCover (Geometry bounds, boolean onDisk, SpatialPredicate predicate)
+            throws IOException {
+        BoundaryMask mask = new BoundaryMask(bounds);
+        return extractCover(bounds, mask, f -> predicate.test(mask, f.geometry), onDisk);
+    }
 
-        int tcount = (maxX - minX + 1) * (maxY - minY + 1);
+    /**
+     * Extract the blocks that match the filter, reading only the tiles the bounds touch, and only the leaves of split
+     * tiles that they touch. Filters classify features against the mask of the bounds, so only those near the edge
+     * are tested exactly.
+     */
+    private Map<Long, GeobufFeature> extractCover (Geometry bounds, BoundaryMask mask, Predicate<GeobufFeature> filter,
+                                                   boolean onDisk) throws IOException {
+        TilesetDescriptor descriptor = getDescriptor();
 
-        LOG.info("Requesting {} tiles", tcount);
+        TIntSet tiles = TileCover.cover(bounds, ZOOM_LEVEL);
+        TIntSet overflowTiles = descriptor.hasOverflow() ? TileCover.cover(bounds, descriptor.overflowZoom) : null;
+
+        checkSize(GeographyLevel.BLOCK, () -> estimateBlocks(bounds, mask, null));
+
+        Envelope env = bounds.getEnvelopeInternal();
+        LOG.info("Requesting {} tiles, of {} in the envelope", tiles.size(),
+                (lon2tile(env.getMaxX(), ZOOM_LEVEL) - lon2tile(env.getMinX(), ZOOM_LEVEL) + 1) *
+                        (lat2tile(env.getMinY(), ZOOM_LEVEL) - lat2tile(env.getMaxY(), ZOOM_LEVEL) + 1));
 
+        Map<Long, GeobufFeature> ret = createResult(onDisk);
         int fcount = 0;
 
-        // read all the relevant tiles
-        for (int x = minX; x <= maxX; x++) {
-            for (int y = minY; y <= maxY; y++) {
-                InputStream is = getInputStream(x, y);
+        for (int tile : sorted(tiles)) {
+            for (String key : descriptor.tileKeys(GeoidTileIndex.tileX(tile), GeoidTileIndex.tileY(tile),
+                    (z, x, y) -> mask.intersects(TileCover.tilePolygon(z, x, y)))) {
+                fcount = readTile(key, filter, ret, fcount);
+            }
+        }
+
+        if (overflowTiles != null) {
+            LOG.info("Requesting {} overflow tiles", overflowTiles.size());
+
+            for (int tile : sorted(overflowTiles)) {
+                String key = TileSink.overflowTileKey(GeoidTileIndex.tileX(tile), GeoidTileIndex.tileY(tile));
+                fcount = readTile(key, filter, ret, fcount);
+            }
+        }
+
+        return ret;
+    }
+
+    /** @return packed tiles in order, so that neighbouring tiles are read one after another */
+    private static int[] sorted (TIntSet tiles) {
+        int[] ret = tiles.toArray();
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    /**
+     * Extract the units at the given level of the geography hierarchy that intersect the bounds.
+     * Levels above blocks are read from the rollup layers, which must have been written by the loader; the geometries
+     * of rolled up units are the dissolved geometries of their blocks, and their properties are the sums.
+     */
+    public Map<Long, GeobufFeature> extract(Geometry bounds, boolean onDisk, GeographyLevel level) throws IOException {
+        return extract(bounds, onDisk, level, SpatialPredicate.INTERSECTS);
+    }
+
+    /** Extract the units at the given level of the geography hierarchy that the given predicate selects */
+    public Map<Long, GeobufFeature> extract(Geometry bounds, boolean onDisk, GeographyLevel level,
+                                            SpatialPredicate predicate) throws IOException {
+        if (level == GeographyLevel.BLOCK)
+            return extract(bounds, onDisk, predicate);
+
+        if (!getDescriptor().rollups.contains(level))
+            throw new IllegalArgumentException("Tileset has no " + level.key() + " layer");
+
+        checkSize(level, () -> estimate(bounds, level));
+
+        Map<Long, GeobufFeature> ret = createResult(onDisk);
+        LOG.info("Reading {} layer", level.key());
+        readLayer(level.zoom, (x, y, filter) -> Collections.singletonList(TileSink.rollupTileKey(level, x, y)), bounds,
+                predicate, ret, 0);
+        return ret;
+    }
+
+    /**
+     * Extract the units at the given level whose GEOIDs start with any of the given prefixes, e.g. all the blocks in
+     * county 11001, or a list of tracts. The GEOID index is used to find the tiles to read, and units are selected by
+     * comparing their GEOIDs to the range of each prefix, with no geometry tests.
+     */
+    public Map<Long, GeobufFeature> extract(Collection<String> geoidPrefixes, boolean onDisk, GeographyLevel level)
+            throws IOException {
+        GeoidTileIndex index = getIndex();
+
+        if (index == null)
+            throw new IllegalStateException("Tileset has no GEOID index");
+
+        TilesetDescriptor descriptor = getDescriptor();
+
+        if (level != GeographyLevel.BLOCK && !descriptor.rollups.contains(level))
+            throw new IllegalArgumentException("Tileset has no " + level.key() + " layer");
 
-                if (is == null)
-                    // no data in this tile
+        int n = geoidPrefixes.size();
+        long[] min = new long[n], max = new long[n];
+        Set<String> keys = new TreeSet<>();
+
+        int i = 0;
+        for (String p : geoidPrefixes) {
+            GeoidPrefix prefix = GeoidPrefix.parse(p);
+            min[i] = prefix.min(level);
+            max[i] = prefix.max(level);
+            i++;
+
+            for (TIntIterator it = index.tilesForPrefix(prefix).iterator(); it.hasNext();) {
+                int tile = it.next();
+
+                if (GeoidTileIndex.level(tile) != level || GeoidTileIndex.isPyramid(tile))
                     continue;
 
-                // decoder closes input stream as soon as it has read the tile
-                GeobufDecoder decoder = new GeobufDecoder(new GZIPInputStream(new BufferedInputStream(is)));
+                if (GeoidTileIndex.isMainLayer(tile))
+                    // read every leaf of a split tile, there is no geometry to narrow them down with
+                    keys.addAll(descriptor.tileKeys(GeoidTileIndex.tileX(tile), GeoidTileIndex.tileY(tile)));
+                else
+                    keys.add(GeoidTileIndex.tileKey(tile));
+            }
+        }
 
-                while (decoder.hasNext()) {
-                    GeobufFeature f = decoder.next();
-                    // blocks are duplicated at the edges of tiles, no need to import twice
-                    if (ret.containsKey(f.numericId))
-                        continue;
+        LOG.info("Requesting {} tiles for {} GEOID prefixes", keys.size(), n);
 
-                    if (!bounds.disjoint(f.geometry)) {
-                        ret.put(f.numericId, f);
-                        fcount++;
+        Map<Long, GeobufFeature> ret = createResult(onDisk);
+        int fcount = 0;
 
-                        if (fcount % 1000 == 0)
-                            LOG.info("Read {} features", fcount);
-                    }
+        for (String key : keys) {
+            fcount = readTile(key, f -> {
+                for (int j = 0; j < n; j++) {
+                    if (f.numericId >= min[j] && f.numericId < max[j])
+                        return true;
                 }
+                return false;
+            }, ret, fcount);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Fetch the blocks with the given GEOIDs. The block index of each county involved is read to find a tile holding
+     * each block, then each of those tiles is read once, in parallel, keeping only the requested blocks. Blocks that
+     * are not in the tileset, e.g. because they were pruned from a sparse tileset, are left out of the result.
+     */
+    public Map<Long, GeobufFeature> getByIds (long[] ids) throws IOException {
+        TilesetDescriptor descriptor = getDescriptor();
+
+        Set<Long> wanted = new HashSet<>();
+        Set<Long> counties = new TreeSet<>();
+        for (long id : ids) {
+            wanted.add(id);
+            counties.add(GeoidTileIndex.county(id));
+        }
+
+        Map<Long, BlockTileIndex> indexes = new ConcurrentHashMap<>();
+        Map<Long, GeobufFeature> ret = new ConcurrentHashMap<>();
+        Set<String> keys = new TreeSet<>();
+
+        try (Pipeline pipeline = new Pipeline("fetch", REPORT_INTERVAL_SECONDS)) {
+            Stage<Long> readIndexes = pipeline.stage("block-index", fetchThreads, Math.max(counties.size(), 1),
+                    county -> {
+                        InputStream is = getInputStream(BlockTileIndex.key(county));
+                        if (is != null)
+                            indexes.put(county, BlockTileIndex.read(is, county));
+                    });
+
+            try {
+                for (long county : counties) {
+                    readIndexes.put(county);
+                }
+            } finally {
+                readIndexes.finish();
+            }
+
+            // group the blocks by the tile they are in
+            for (long id : wanted) {
+                BlockTileIndex index = indexes.get(GeoidTileIndex.county(id));
+                int tile = index != null ? index.tile(id) : -1;
+
+                if (tile == -1)
+                    continue;
+
+                if (GeoidTileIndex.isMainLayer(tile))
+                    // the block could be in any leaf of a split tile
+                    keys.addAll(descriptor.tileKeys(GeoidTileIndex.tileX(tile), GeoidTileIndex.tileY(tile)));
+                else
+                    keys.add(GeoidTileIndex.tileKey(tile));
+            }
+
+            Stage<String> readTiles = pipeline.stage("tiles", fetchThreads, Math.max(keys.size(), 1),
+                    key -> readTile(key, f -> wanted.contains(f.numericId), ret, 0));
+
+            try {
+                for (String key : keys) {
+                    readTiles.put(key);
+                }
+            } finally {
+                readTiles.finish();
             }
         }
 
+        LOG.info("Fetched {} of {} blocks from {} tiles", ret.size(), wanted.size(), keys.size());
         return ret;
     }
 
+    /**
+     * Choose the finest geography level, no finer than the given level, at which an extract of the given bounds is
+     * estimated to have no more than maxFeatures features, considering blocks and the rollup layers in the tileset.
+     *
+     * @throws ExtractTooLargeException if the extract is too large even at the coarsest level
+     */
+    public ExtractPlan plan (Geometry bounds, GeographyLevel finest) throws IOException {
+        TilesetDescriptor descriptor = getDescriptor();
+
+        if (finest != GeographyLevel.BLOCK && !descriptor.rollups.contains(finest))
+            throw new IllegalArgumentException("Tileset has no " + finest.key() + " layer");
+
+        // with no limit, there's no need to read the manifest to estimate anything
+        if (maxFeatures <= 0)
+            return new ExtractPlan(finest, -1);
+
+        ExtractPlan coarsest = null;
+
+        for (GeographyLevel level : GeographyLevel.values()) {
+            if (level.compareTo(finest) < 0 || level != GeographyLevel.BLOCK && !descriptor.rollups.contains(level))
+                continue;
+
+            long estimate = estimate(bounds, level);
+
+            if (estimate <= maxFeatures)
+                // includes a tileset with no manifest to estimate from
+                return new ExtractPlan(level, estimate);
+
+            LOG.info("Extract at {} level would have about {} features, more than the limit of {}", level.key(),
+                    estimate, maxFeatures);
+            coarsest = new ExtractPlan(level, estimate);
+        }
+
+        throw new ExtractTooLargeException(coarsest.level, coarsest.estimatedFeatures, maxFeatures);
+    }
+
+    /**
+     * Estimate the number of features at the given level that an extract of the given bounds would have, or -1 if the
+     * tileset has no manifest. This is the number of features in the tiles that the extract would read, those the
+     * bounds touch and, of split tiles, the leaves they touch, which is what extracts check against maxFeatures, so
+     * an extract at the level chosen by plan() is never refused. Features near the bounds but outside them, and
+     * features duplicated between tiles, are counted too, so it is an overestimate.
+     */
+    public long estimate (Geometry bounds, GeographyLevel level) throws IOException {
+        BoundaryMask mask = new BoundaryMask(bounds);
+
+        if (level == GeographyLevel.BLOCK)
+            return estimateBlocks(bounds, mask, null);
+        else
+            return estimateTiles(bounds, mask, level.zoom,
+                    (x, y, filter) -> Collections.singletonList(TileSink.rollupTileKey(level, x, y)));
+    }
+
+    /** Estimate the number of blocks an extract of the bounds would read, from the given pyramid level if not null */
+    private long estimateBlocks (Geometry bounds, BoundaryMask mask, TilesetDescriptor.PyramidLevel pyramidLevel)
+            throws IOException {
+        TilesetDescriptor descriptor = getDescriptor();
+
+        if (pyramidLevel != null) {
+            int zoom = pyramidLevel.zoom;
+            return estimateTiles(bounds, mask, zoom, (x, y, filter) -> descriptor.pyramidTileKeys(zoom, x, y, filter));
+        }
+
+        long estimate = estimateTiles(bounds, mask, ZOOM_LEVEL, descriptor::tileKeys);
+
+        if (estimate >= 0 && descriptor.hasOverflow()) {
+            estimate += estimateTiles(bounds, mask, descriptor.overflowZoom,
+                    (x, y, filter) -> Collections.singletonList(TileSink.overflowTileKey(x, y)));
+        }
+
+        return estimate;
+    }
+
+    /**
+     * Count the features in the tiles at the given zoom level that the bounds touch, and of split tiles the leaves
+     * they touch, the same tiles that are read to extract them. Returns -1 if the tileset has no manifest.
+     */
+    private long estimateTiles (Geometry bounds, BoundaryMask mask, int zoom, FilteredTileKeysFunction keys)
+            throws IOException {
+        TileManifest manifest = getManifest();
+
+        if (manifest == null)
+            return -1;
+
+        long estimate = 0;
+
+        for (TIntIterator it = TileCover.cover(bounds, zoom).iterator(); it.hasNext();) {
+            int tile = it.next();
+
+            for (String key : keys.keys(GeoidTileIndex.tileX(tile), GeoidTileIndex.tileY(tile),
+                    (z, x, y) -> mask.intersects(TileCover.tilePolygon(z, x, y)))) {
+                TileManifest.Tile t = manifest.tiles.get(key);
+                if (t != null)
+                    estimate += t.features;
+            }
+        }
+
+        return estimate;
+    }
+
+    /**
+     * Refuse to make an extract estimated to have more than maxFeatures features. The estimate reads the manifest, which
+     * is large for a national tileset, so it is only made if there is a limit.
+     */
+    private void checkSize (GeographyLevel level, SizeEstimate estimate) throws IOException {
+        if (maxFeatures <= 0)
+            return;
+
+        long features = estimate.get();
+
+        if (features > maxFeatures)
+            throw new ExtractTooLargeException(level, features, maxFeatures);
+    }
+
+    private static Map<Long, GeobufFeature> createResult (boolean onDisk) {
+        if (onDisk)
+            return DBMaker.tempTreeMap();
+        else
+            return new HashMap<>();
+    }
+
+    /**
+     * Read the tiles at the given zoom level that the bounds touch, with keys from the given function, returning the
+     * new count. Of split tiles, only the leaves that the bounds touch are read, and only the features that the
+     * predicate selects with the bounds are kept.
+     */
+    private int readLayer (int zoom, FilteredTileKeysFunction keys, Geometry bounds, SpatialPredicate predicate,
+                           Map<Long, GeobufFeature> ret, int fcount) throws IOException {
+        TIntSet tiles = TileCover.cover(bounds, zoom);
+        BoundaryMask mask = new BoundaryMask(bounds);
+
+        LOG.info("Requesting {} tiles at z{}", tiles.size(), zoom);
+
+        for (int tile : sorted(tiles)) {
+            for (String key : keys.keys(GeoidTileIndex.tileX(tile), GeoidTileIndex.tileY(tile),
+                    (z, x, y) -> mask.intersects(TileCover.tilePolygon(z, x, y)))) {
+                fcount = readTile(key, f -> predicate.test(mask, f.geometry), ret, fcount);
+            }
+        }
+
+        return fcount;
+    }
+
+    /** Read the features in the given tile that match the filter into ret, returning the new count */
+    private int readTile (String key, Predicate<GeobufFeature> filter, Map<Long, GeobufFeature> ret, int fcount)
+            throws IOException {
+        InputStream is = getInputStream(key);
+
+        if (is == null)
+            // no data in this tile
+            return fcount;
+
+        // decoder closes input stream as soon as it has read the tile
+        GeobufDecoder decoder = new GeobufDecoder(new GZIPInputStream(new BufferedInputStream(is)));
+
+        while (decoder.hasNext()) {
+            GeobufFeature f = decoder.next();
+            // blocks are duplicated at the edges of tiles, no need to import twice
+            if (ret.containsKey(f.numericId))
+                continue;
+
+            if (filter.test(f)) {
+                ret.put(f.numericId, f);
+                fcount++;
+
+                if (fcount % 1000 == 0)
+                    LOG.info("Read {} features", fcount);
+            }
+        }
+
+        return fcount;
+    }
+
+    /** Get the GEOID index of the tileset, or null if it doesn't have one */
+    protected synchronized GeoidTileIndex getIndex () throws IOException {
+        if (!indexRead) {
+            InputStream is = getInputStream(GeoidTileIndex.KEY);
+            index = is != null ? GeoidTileIndex.read(is) : null;
+            indexRead = true;
+        }
+
+        return index;
+    }
+
+    /** Get the manifest of the tileset, or null if it doesn't have one */
+    protected synchronized TileManifest getManifest () throws IOException {
+        if (!manifestRead) {
+            InputStream is = getInputStream(TileManifest.KEY);
+            manifest = is != null ? TileManifest.read(is) : null;
+            manifestRead = true;
+        }
+
+        return manifest;
+    }
+
+    /** Get the layout of the tileset; a tileset without a descriptor only has z11 tiles */
+    protected synchronized TilesetDescriptor getDescriptor () throws IOException {
+        if (descriptor == null) {
+            InputStream is = getInputStream(TilesetDescriptor.KEY);
+            descriptor = is != null ? TilesetDescriptor.read(is) : new TilesetDescriptor();
+        }
+
+        return descriptor;
+    }
+
+    /** Gets the keys of the tiles that hold the features of a tile in a layer; of split tiles, the leaves to read */
+    @FunctionalInterface
+    private interface FilteredTileKeysFunction {
+        List<String> keys (int x, int y, TilesetDescriptor.TileFilter filter);
+    }
+
+    /** Estimates the number of features in an extract, or returns -1 if there is no manifest */
+    @FunctionalInterface
+    private interface SizeEstimate {
+        long get () throws IOException;
+    }
+
     /** get an input stream for the given tile */
-    protected abstract InputStream getInputStream(int x, int y) throws IOException;
+    protected InputStream getInputStream(int x, int y) throws IOException {
+        return getInputStream(TileSink.tileKey(x, y));
+    }
+
+    /** get an input stream for the given key in the tileset, e.g. 342/815.pbf.gz, or null if there is nothing there */
+    protected abstract InputStream getInputStream(String key) throws IOException;
 }
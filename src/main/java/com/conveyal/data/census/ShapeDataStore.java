@@ -1,95 +1,340 @@
 package com.conveyal.data.census;
 
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.conveyal.data.geobuf.GeobufEncoder;
+import com.conveyal.data.geobuf.GeobufDecoder;
 import com.conveyal.data.geobuf.GeobufFeature;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
 import org.mapdb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.NavigableSet;
-import java.util.concurrent.*;
-import java.util.function.BiFunction;
-import java.util.zip.GZIPOutputStream;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 /**
- * Store geographic data by ID, with index by zoom-11 tile.
+ * Store geographic data by ID, and write it out as zoom-11 tiles.
  */
 public class ShapeDataStore {
     public static final int ZOOM_LEVEL = 11;
 
     private static final Logger LOG = LoggerFactory.getLogger(ShapeDataStore.class);
 
-    /** number of decimal places of precision to store */
-    public static final int PRECISION = 12;
+    /**
+     * Default number of decimal places of precision to store. Tiles are written with the same precision, so this is the
+     * precision tiles have always had; quantizing further, e.g. to 7 places (about a centimeter), is opt-in.
+     */
+    public static final int DEFAULT_PRECISION = QuantizedFeatureSerializer.MAX_PRECISION;
 
-    private DB db;
+    /**
+     * Number of low bits of a tile sort key holding the ordinal of the feature, the remaining high bits hold the packed
+     * tile, including the layer flags. Keys stay positive and sort by layer, tile x, tile y, then feature ID.
+     */
+    private static final int ORDINAL_BITS = 63 - GeoidTileIndex.PACKED_TILE_BITS;
+
+    private static final long ORDINAL_MASK = (1L << ORDINAL_BITS) - 1;
+
+    /** How often to report on the progress of each stage of tile writing */
+    private static final int REPORT_INTERVAL_SECONDS = 30;
+
+    /** Number of threads to use to serialize features and work out which tiles they belong in */
+    public int indexThreads = Runtime.getRuntime().availableProcessors();
+
+    /** Number of threads to use to encode and compress tiles */
+    public int encodeThreads = Runtime.getRuntime().availableProcessors();
+
+    /** Number of threads to use to pass tiles to the sink */
+    public int writeThreads = 2;
+
+    /** Number of threads to use to dissolve units into rollups */
+    public int rollupThreads = Runtime.getRuntime().availableProcessors();
 
     /**
-     * set of Object[] { int[] { x, y }, Feature } for features at zoom 11
+     * Features whose envelopes touch more than this many z11 tiles are written once to each tile of the overflow layer
+     * they touch, rather than being copied into every z11 tile. Zero means there is no overflow layer.
      */
-    private NavigableSet<Object[]> tiles;
+    public int overflowThreshold = 0;
+
+    /** Zoom level of the overflow layer */
+    public int overflowZoom = 8;
+
+    /** Split z11 tiles with more than this many features into smaller tiles, zero for no limit */
+    public int maxTileFeatures = 0;
+
+    /** Split z11 tiles whose encoded size is more than this many bytes into smaller tiles, zero for no limit */
+    public int maxTileBytes = 0;
+
+    /** Zoom level beyond which tiles are never split */
+    public int maxSplitZoom = 14;
+
+    /**
+     * Levels of the pyramid of simplified geometries to write alongside the z11 tiles, for extracts of large areas
+     * that don't need full resolution geometries. Empty for no pyramid.
+     */
+    public List<TilesetDescriptor.PyramidLevel> pyramid = new ArrayList<>();
+
+    /**
+     * Coarser levels of the geography hierarchy to roll blocks up into, summing their properties and dissolving their
+     * geometries, and write to their own layers alongside the block tiles.
+     */
+    public Set<GeographyLevel> rollupLevels = EnumSet.noneOf(GeographyLevel.class);
+
+    /** If set, features with no nonzero values are left out of the tiles, making a sparse tileset */
+    public SparseFilter sparseFilter;
+
+    /** Memory available for sort buffers, queues and caches */
+    public final MemoryBudget budget;
+
+    /** Maximum number of tiles held in memory waiting in each of the encode and write queues */
+    public int maxTilesInFlight;
+
+    private DB db;
 
     /**
      * Map from geoid to feature
      */
     private BTreeMap<Long, GeobufFeature> features;
 
+    /** Serializes features in the store and in sort buffers, quantizing their coordinates */
+    private final QuantizedFeatureSerializer serializer;
+
+    /** Information about how the store was built, kept alongside the features */
+    private HTreeMap<String, String> metadata;
+
+    /** Features queued for a bulk load, if one is in progress */
+    private ExternalSorter bulkLoadSorter;
+
     public ShapeDataStore() {
-        db = DBMaker.tempFileDB().deleteFilesAfterClose().asyncWriteEnable()
+        this(MemoryBudget.forHeap());
+    }
+
+    /** Create a temporary store whose buffers and queues are sized to fit in the given memory budget */
+    public ShapeDataStore(MemoryBudget budget) {
+        this(budget, null);
+    }
+
+    /**
+     * Create a store whose buffers and queues are sized to fit in the given memory budget. If a file is given, the
+     * store is kept in that file, reopening it if it exists, so that geometries loaded in one run can be reused by the
+     * next; otherwise it is kept in a temporary file that is deleted when the store is closed.
+     */
+    public ShapeDataStore(MemoryBudget budget, File file) {
+        this(budget, file, DEFAULT_PRECISION);
+    }
+
+    /**
+     * Create a store as above, quantizing coordinates to the given number of decimal places when features are added.
+     * An existing store file with a different precision is cleared.
+     */
+    public ShapeDataStore(MemoryBudget budget, File file, int precision) {
+        this.budget = budget;
+        this.serializer = new QuantizedFeatureSerializer(precision);
+        this.maxTilesInFlight = budget.tilesInFlight();
+
+        LOG.info("Memory budget {}: {}MB sort buffer, {} tiles in flight", budget,
+                budget.sortBufferBytes() / 1024 / 1024, maxTilesInFlight);
+
+        DBMaker.Maker maker = file != null ? DBMaker.fileDB(file) : DBMaker.tempFileDB().deleteFilesAfterClose();
+
+        db = maker.asyncWriteEnable()
                 .transactionDisable()
                 .fileMmapEnable()
                 .asyncWriteEnable()
                 .asyncWriteFlushDelay(1000)
                 .executorEnable()
-                .asyncWriteQueueSize(10000)
-                // start with 1GB
-                .allocateStartSize(1024 * 1024 * 1024)
-                // and bump by 512MB
-                .allocateIncrement(512 * 1024 * 1024)
+                .asyncWriteQueueSize(budget.storeWriteQueueSize())
+                .allocateStartSize(budget.storeAllocateStartSize())
+                .allocateIncrement(budget.storeAllocateIncrement())
                 .make();
 
+        metadata = db.hashMapCreate("metadata")
+                .keySerializer(Serializer.STRING)
+                .valueSerializer(Serializer.STRING)
+                .makeOrGet();
+
+        String storedPrecision = metadata.get("precision");
+        if (storedPrecision != null && Integer.parseInt(storedPrecision) != precision) {
+            LOG.info("Store {} has precision {}, not {}, clearing it", file, storedPrecision, precision);
+            db.delete("features");
+            metadata.clear();
+        }
+
+        metadata.put("precision", Integer.toString(precision));
+
         features = db.treeMapCreate("features")
                 .keySerializer(BTreeKeySerializer.LONG)
-                .valueSerializer(new GeobufEncoder.GeobufFeatureSerializer(12))
+                .valueSerializer(serializer)
                 .counterEnable()
-                .make();
+                .makeOrGet();
 
-        tiles = db.treeSetCreate("tiles")
-                .serializer(BTreeKeySerializer.ARRAY3)
-                .make();
+        if (file != null && !features.isEmpty())
+            LOG.info("Reopened store {} with {} features", file, features.size());
+    }
 
-        // bind the map by tile
-        features.modificationListenerAdd((id, feat0, feat1) -> {
-            if (feat0 != null)
-                // updates never change geometry, and there are no deletes
-                return;
+    /**
+     * Add a new feature. While a bulk load is in progress the feature is only queued, and will not be visible until
+     * the bulk load is finished.
+     */
+    public void add(GeobufFeature feature) throws IOException {
+        if (bulkLoadSorter != null) {
+            // the data pump wants keys in descending order
+            bulkLoadSorter.add(-feature.numericId, serialize(feature));
 
-            // figure out which z11 tiles this is part of
-            Envelope e = feat1.geometry.getEnvelopeInternal();
-            for (int x = lon2tile(e.getMinX(), ZOOM_LEVEL); x <= lon2tile(e.getMaxX(), ZOOM_LEVEL); x++) {
-                for (int y = lat2tile(e.getMaxY(), ZOOM_LEVEL); y <= lat2tile(e.getMinY(), ZOOM_LEVEL); y++) {
-                    tiles.add(new Object[]{x, y, feat1.numericId});
-                }
-            }
-        });
-    }
+            if (bulkLoadSorter.size() % 10000 == 0)
+                LOG.info("Queued {} features", bulkLoadSorter.size());
+
+            return;
+        }
 
-    public void add(GeobufFeature feature) {
-        if (this.features.containsKey(feature.numericId))
+        if (this.features.putIfAbsent(feature.numericId, feature) != null)
             throw new IllegalArgumentException("ID " + feature.numericId + " already present in store");
-        this.features.put(feature.numericId, feature);
 
         if (this.features.size() % 10000 == 0)
             LOG.info("Loaded {} features", this.features.size());
     }
 
+    /**
+     * Start a bulk load into an empty store. Features passed to add() are sorted by ID externally, and the feature
+     * BTree is built in one go by the MapDB data pump when finishBulkLoad() is called, rather than by inserting and
+     * rebalancing one feature at a time.
+     */
+    public void beginBulkLoad () {
+        if (!features.isEmpty())
+            throw new IllegalStateException("Bulk load is only possible into an empty store");
+
+        if (bulkLoadSorter != null)
+            throw new IllegalStateException("Bulk load already in progress");
+
+        bulkLoadSorter = new ExternalSorter(budget.sortBufferBytes());
+    }
+
+    /** Build the feature BTree from all of the features added since beginBulkLoad() */
+    public void finishBulkLoad () throws IOException {
+        if (bulkLoadSorter == null)
+            throw new IllegalStateException("No bulk load in progress");
+
+        long count = bulkLoadSorter.size();
+        long[] bytes = new long[1];
+        LOG.info("Building store from {} features", count);
+
+        try (ExternalSorter.Cursor cursor = bulkLoadSorter.sorted()) {
+            Iterator<Fun.Pair<Long, GeobufFeature>> source = new Iterator<Fun.Pair<Long, GeobufFeature>>() {
+                private boolean hasNext = cursor.next();
+                private long lastKey = Long.MIN_VALUE;
+
+                @Override public boolean hasNext() {
+                    return hasNext;
+                }
+
+                @Override public Fun.Pair<Long, GeobufFeature> next() {
+                    try {
+                        if (!hasNext)
+                            throw new NoSuchElementException();
+
+                        if (cursor.key() == lastKey)
+                            throw new IllegalArgumentException("ID " + -lastKey + " already present in store");
+
+                        lastKey = cursor.key();
+                        bytes[0] += cursor.payload().length;
+                        GeobufFeature feature = deserialize(cursor.payload());
+                        hasNext = cursor.next();
+                        return new Fun.Pair<>(feature.numericId, feature);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            };
+
+            // replace the empty map with one built by the pump
+            db.delete("features");
+            features = db.treeMapCreate("features")
+                    .pumpSource(source)
+                    .keySerializer(BTreeKeySerializer.LONG)
+                    .valueSerializer(serializer)
+                    .counterEnable()
+                    .make();
+        } finally {
+            bulkLoadSorter = null;
+        }
+
+        LOG.info("Loaded {} features, {}MB serialized with precision {}", count, bytes[0] / 1024 / 1024,
+                serializer.precision);
+    }
+
+    /** Remove all features from the store */
+    public void clear () {
+        if (bulkLoadSorter != null)
+            throw new IllegalStateException("Cannot clear store during a bulk load");
+
+        setTigerChecksum(null);
+        db.delete("features");
+        features = db.treeMapCreate("features")
+                .keySerializer(BTreeKeySerializer.LONG)
+                .valueSerializer(serializer)
+                .counterEnable()
+                .make();
+    }
+
+    /** Remove the properties of every feature, keeping the geometries, so that attributes can be loaded again */
+    public void clearProperties () {
+        long cleared = 0;
+
+        for (Map.Entry<Long, GeobufFeature> e : features.entrySet()) {
+            GeobufFeature feature = e.getValue();
+
+            if (!feature.properties.isEmpty()) {
+                feature.properties = new HashMap<>();
+                features.put(e.getKey(), feature);
+
+                if (++cleared % 100000 == 0)
+                    LOG.info("Cleared properties of {} features", cleared);
+            }
+        }
+
+        LOG.info("Cleared properties of {} features", cleared);
+    }
+
+    /** @return the checksum of the TIGER files the geometries in this store were loaded from, or null if unknown */
+    public String getTigerChecksum () {
+        return metadata.get("tigerChecksum");
+    }
+
+    /**
+     * Record the checksum of the TIGER files the geometries in this store were loaded from, and make sure the store
+     * is on disk, so that a later run can tell whether it needs to load them again. Pass null to clear it.
+     */
+    public void setTigerChecksum (String checksum) {
+        if (checksum == null)
+            metadata.remove("tigerChecksum");
+        else
+            metadata.put("tigerChecksum", checksum);
+
+        db.commit();
+    }
+
     /** Get the longitude of a particular tile */
     public static int lon2tile (double lon, int zoom) {
         // recenter
@@ -112,80 +357,662 @@ public class ShapeDataStore {
         return (int) ((1 - lat / Math.PI) / 2 * Math.pow(2, zoom));
     }
 
+    /** Get the longitude of the west edge of a tile */
+    public static double tile2lon (int x, int zoom) {
+        return x / Math.pow(2, zoom) * 360 - 180;
+    }
+
+    /** Get the latitude of the north edge of a tile */
+    public static double tile2lat (int y, int zoom) {
+        double n = Math.PI - 2 * Math.PI * y / Math.pow(2, zoom);
+        return Math.toDegrees(Math.atan(Math.sinh(n)));
+    }
+
     /** Write GeoBuf tiles to a directory */
     public void writeTiles (File file) throws IOException {
-        writeTilesInternal((x, y) -> {
-            // write out the features
-            File dir = new File(file, "" + x);
-            File out = new File(dir, y + ".pbf.gz");
-            dir.mkdirs();
-            return new FileOutputStream(out);
-        });
+        writeTiles(new DirectoryTileSink(file));
     }
 
-    /** Write GeoBuf tiles to S3 */
+    /** Write GeoBuf tiles to S3, uploading only the tiles which have changed since the last time it was written */
     public void writeTilesToS3 (String bucketName) throws IOException {
-        // set up an upload thread
-        ExecutorService executor = Executors.newSingleThreadExecutor();
+        writeTiles(new S3TileSink(bucketName));
+    }
+
+    /**
+     * Write GeoBuf tiles to the given sink, which will be closed when all tiles have been written. Tiles are read
+     * from the sorted tile index on this thread, and decoded, encoded and written in parallel.
+     *
+     * If the sink already holds a tileset with a manifest, only tiles that have changed are written and tiles that
+     * no longer exist are removed. The new manifest is written last, once all of the tiles are in place.
+     */
+    public void writeTiles (TileSink sink) throws IOException {
+        writeTiles(sink, false);
+    }
 
-        // initialize an S3 client
-        AmazonS3 s3 =
-                AmazonS3ClientBuilder.standard().build();
+    /**
+     * Replace the features of every state in this store in the existing tileset in the given sink, leaving other states
+     * untouched. Only tiles that contained features from those states before, or do now, are read and rewritten;
+     * the existing GEOID index is used to find them. The sink will be closed when all tiles have been written.
+     */
+    public void updateTiles (TileSink sink) throws IOException {
+        writeTiles(sink, true);
+    }
+
+    private void writeTiles (TileSink sink, boolean update) throws IOException {
+        // the block sorter is filled while sorting features into tiles and only read once all tiles are written, so
+        // its temporary files are removed here if anything in between fails
+        try (Pipeline pipeline = new Pipeline("tiles", REPORT_INTERVAL_SECONDS);
+             ExternalSorter blockSorter = new ExternalSorter(budget.blockIndexBufferBytes())) {
+            TileManifest previous = TileManifest.read(sink);
+            GeoidTileIndex previousIndex = GeoidTileIndex.read(sink);
+
+            if (update && (previous == null || previousIndex == null))
+                throw new IllegalStateException("No existing tileset with a manifest and GEOID index to update");
+
+            if (update && !Objects.equals(previous.sparse == null ? null : new TreeSet<>(previous.sparse.properties),
+                    sparseFilter == null ? null : sparseFilter.properties))
+                throw new IllegalStateException("Existing tileset was not pruned the same way, cannot update it");
+
+            TilesetDescriptor descriptor = descriptor();
+            // a tileset without a descriptor only has z11 tiles
+            TilesetDescriptor previousDescriptor = TilesetDescriptor.read(sink);
+            if (previousDescriptor == null)
+                previousDescriptor = new TilesetDescriptor();
+
+            if (update && !descriptor.isCompatible(previousDescriptor))
+                throw new IllegalStateException("Existing tileset has a different layout, cannot update it");
+
+            if (previous != null)
+                LOG.info("Found existing tileset with {} tiles, writing only changed tiles", previous.tiles.size());
+
+            Map<GeographyLevel, BTreeMap<Long, GeobufFeature>> rollups = buildRollups(pipeline);
+
+            GeoidTileIndex index = new GeoidTileIndex();
+            // number of features and serialized bytes of each pyramid tile
+            Map<Integer, long[]> pyramidTileSizes = new HashMap<>();
+            ExternalSorter sorter = sortByTile(index, blockSorter, rollups, pyramidTileSizes, pipeline);
+
+            // pyramid tiles are written whole unless they would need more memory than a single tile may use
+            TIntSet oversized = new TIntHashSet();
+            for (Map.Entry<Integer, long[]> e : pyramidTileSizes.entrySet()) {
+                if (MemoryBudget.tileBytes(e.getValue()[0], e.getValue()[1]) > budget.wholeTileBytes())
+                    oversized.add(e.getKey());
+            }
+
+            if (!oversized.isEmpty())
+                LOG.info("Splitting {} pyramid tiles that are too big to write whole with a memory budget of {}",
+                        oversized.size(), budget);
+
+            TIntSet states = index.states();
+            // tiles that had features from the states being replaced, and must be rewritten even if they have no new ones
+            TIntSet affected = update ? previousIndex.tilesForStates(states) : new TIntHashSet();
+
+            if (update)
+                LOG.info("Updating {} states, previously in {} tiles", states.size(), affected.size());
+
+            TileWriter writer = new TileWriter(sink, serializer, pipeline, encodeThreads, writeThreads, maxTilesInFlight, previous);
+            writer.maxTileFeatures = maxTileFeatures;
+            writer.maxTileBytes = maxTileBytes;
+            writer.maxSplitZoom = maxSplitZoom;
+
+            // packed z11 and overflow tiles that have been rewritten, including all of their leaves if they are split
+            TIntSet written = new TIntHashSet();
+            TIntSet replacedStates = update ? states : null;
+
+            // leaves of the pyramid tiles that were split, in the format of TilesetDescriptor.pyramidSplits
+            Map<String, List<String>> pyramidSplits = new TreeMap<>();
+
+            int lastTile = -1;
+
+            List<byte[]> featuresThisTile = new ArrayList<>();
+            // the features of an oversized pyramid tile go here instead
+            PyramidTileSplit split = null;
+
+            try (ExternalSorter.Cursor cursor = sorter.sorted()) {
+                while (cursor.next()) {
+                    int tile = (int) (cursor.key() >>> ORDINAL_BITS);
+
+                    if (tile != lastTile && lastTile != -1) {
+                        if (split != null)
+                            writeSplitPyramidTile(sink, previousDescriptor, lastTile, split, replacedStates, writer,
+                                    pyramidSplits);
+                        else
+                            writeTile(writer, sink, previousDescriptor, lastTile, featuresThisTile, replacedStates);
+
+                        written.add(lastTile);
+                        affected.remove(lastTile);
+                        // the writer now owns the list
+                        featuresThisTile = new ArrayList<>();
+                        split = null;
+                    }
+
+                    if (tile != lastTile && oversized.contains(tile))
+                        split = new PyramidTileSplit(serializer, budget, GeoidTileIndex.pyramidZoom(tile),
+                                GeoidTileIndex.tileX(tile), GeoidTileIndex.tileY(tile));
+
+                    if (split != null)
+                        split.add(cursor.key() & ORDINAL_MASK, cursor.payload());
+                    else
+                        featuresThisTile.add(cursor.payload());
+
+                    lastTile = tile;
+                }
+
+                // the last tile
+                if (lastTile != -1) {
+                    if (split != null)
+                        writeSplitPyramidTile(sink, previousDescriptor, lastTile, split, replacedStates, writer,
+                                pyramidSplits);
+                    else
+                        writeTile(writer, sink, previousDescriptor, lastTile, featuresThisTile, replacedStates);
+
+                    written.add(lastTile);
+                    affected.remove(lastTile);
+                    split = null;
+                }
+
+                // tiles where the states being replaced no longer have any features
+                for (TIntIterator it = affected.iterator(); it.hasNext();) {
+                    int tile = it.next();
+                    writeTile(writer, sink, previousDescriptor, tile, Collections.emptyList(), states);
+                    written.add(tile);
+                }
+            } catch (Throwable t) {
+                if (split != null)
+                    split.close();
+
+                // wait for the writer threads, but don't let their failure hide ours
+                try {
+                    writer.finish();
+                } catch (Throwable finishFailure) {
+                    t.addSuppressed(finishFailure);
+                }
+
+                throw t;
+            }
+
+            writer.finish();
+
+            Set<Long> blockIndexCounties = writeBlockIndex(blockSorter, sink);
+            // free the disk space now rather than once the manifest is written
+            blockSorter.close();
+
+            if (previousIndex != null) {
+                for (long county : previousIndex.counties.keySet()) {
+                    // when updating, counties in other states keep their block index
+                    boolean replaced = !update || states.contains(GeographyLevel.COUNTY.state(county));
+
+                    if (replaced && !blockIndexCounties.contains(county))
+                        sink.delete(BlockTileIndex.key(county));
+                }
+            }
+
+            // make sure all tiles are in place before publishing the manifest
+            sink.flush();
+
+            TileManifest manifest = writer.manifest;
+
+            if (sparseFilter != null) {
+                LOG.info("Pruned {} features with no nonzero values, kept {}", sparseFilter.getPruned(),
+                        sparseFilter.getKept());
+                manifest.sparse = sparseFilter.toManifest(update ? previous.sparse : null);
+            }
+
+            descriptor.splits.putAll(writer.splits);
+            descriptor.pyramidSplits.putAll(pyramidSplits);
+
+            if (update) {
+                for (Map.Entry<String, TileManifest.Tile> e : previous.tiles.entrySet()) {
+                    String key = e.getKey();
+                    int tile = GeoidTileIndex.parentTile(key);
+
+                    if (!written.contains(tile)) {
+                        // tiles we didn't touch are still there
+                        manifest.tiles.put(key, e.getValue());
+                    } else if (!manifest.tiles.containsKey(key)) {
+                        // leaves of a split tile that has been rewritten with a different split
+                        LOG.info("Removing tile {}, which no longer has any features", key);
+                        sink.delete(key);
+                    }
+                }
+
+                for (Map.Entry<String, List<String>> e : previousDescriptor.splits.entrySet()) {
+                    String[] xy = e.getKey().split("/");
+                    int tile = GeoidTileIndex.packTile(Integer.parseInt(xy[0]), Integer.parseInt(xy[1]));
+
+                    if (!written.contains(tile))
+                        descriptor.splits.put(e.getKey(), e.getValue());
+                }
+
+                for (Map.Entry<String, List<String>> e : previousDescriptor.pyramidSplits.entrySet()) {
+                    String[] zxy = e.getKey().split("/");
+                    int tile = GeoidTileIndex.packPyramidTile(Integer.parseInt(zxy[0]), Integer.parseInt(zxy[1]),
+                            Integer.parseInt(zxy[2]));
+
+                    if (!written.contains(tile))
+                        descriptor.pyramidSplits.put(e.getKey(), e.getValue());
+                }
+
+                previousIndex.replaceStates(index);
+                index = previousIndex;
+            } else if (previous != null) {
+                for (String key : previous.tiles.keySet()) {
+                    if (!manifest.tiles.containsKey(key)) {
+                        LOG.info("Removing tile {}, which no longer has any features", key);
+                        sink.delete(key);
+                    }
+                }
+            }
+
+            index.write(sink);
+            descriptor.write(sink);
+            manifest.write(sink);
+        } finally {
+            sink.close();
+        }
+    }
+
+    /**
+     * Queue a tile for writing. When replacing states in an existing tileset, the features from other states already
+     * in the tile are read back from the sink and merged in.
+     */
+    private void writeTile (TileWriter writer, TileSink sink, TilesetDescriptor previousDescriptor, int tile,
+                            List<byte[]> serializedFeatures, TIntSet replacedStates) throws IOException {
+        if (replacedStates == null) {
+            writer.write(tile, serializedFeatures);
+            return;
+        }
+
+        List<String> keys = previousKeys(previousDescriptor, tile);
+
+        // rollup tiles hold units at a coarser level, whose GEOIDs are shorter
+        GeographyLevel level = GeoidTileIndex.level(tile);
+
+        writer.write(tile, () -> {
+            List<GeobufFeature> features = new ArrayList<>();
+            Set<Long> seen = new HashSet<>();
+
+            for (String key : keys) {
+                byte[] existing = sink.get(key);
+                if (existing == null)
+                    continue;
+
+                GeobufDecoder decoder = new GeobufDecoder(new GZIPInputStream(new ByteArrayInputStream(existing)));
+                while (decoder.hasNext()) {
+                    GeobufFeature feature = decoder.next();
+                    if (!replacedStates.contains(level.state(feature.numericId)) && seen.add(feature.numericId))
+                        features.add(feature);
+                }
+            }
+
+            for (byte[] serialized : serializedFeatures) {
+                features.add(deserialize(serialized));
+            }
+
+            // keep tiles in ID order so that unchanged tiles hash the same
+            features.sort(Comparator.comparingLong(f -> f.numericId));
+            return features;
+        });
+    }
+
+    /**
+     * Write a pyramid tile too big to write whole as the leaves of a quadtree, recording them in pyramidSplits. When
+     * replacing states in an existing tileset, the features from other states already in the tile are read back from
+     * the sink, one at a time, and split along with the new ones.
+     */
+    private void writeSplitPyramidTile (TileSink sink, TilesetDescriptor previousDescriptor, int tile,
+                                        PyramidTileSplit split, TIntSet replacedStates, TileWriter writer,
+                                        Map<String, List<String>> pyramidSplits) throws IOException {
         try {
-            writeTilesInternal((x, y) -> {
-                PipedInputStream is = new PipedInputStream();
-                PipedOutputStream os = new PipedOutputStream(is);
-                ObjectMetadata metadata = new ObjectMetadata();
-                metadata.setContentType("application/gzip");
-
-                // perform the upload in its own thread so it doesn't deadlock
-                executor.execute(() -> s3.putObject(bucketName, String.format("%d/%d.pbf.gz", x, y), is, metadata));
-                return os;
-            });
+            if (replacedStates != null) {
+                Set<Long> seen = new HashSet<>();
+
+                for (String key : previousKeys(previousDescriptor, tile)) {
+                    byte[] existing = sink.get(key);
+                    if (existing == null)
+                        continue;
+
+                    GeobufDecoder decoder = new GeobufDecoder(new GZIPInputStream(new ByteArrayInputStream(existing)));
+                    while (decoder.hasNext()) {
+                        GeobufFeature feature = decoder.next();
+                        // leaves are sorted by ID when they are written, so the ordinal doesn't matter
+                        long id = feature.numericId;
+                        if (!replacedStates.contains(GeoidTileIndex.state(id)) && seen.add(id))
+                            split.add(0, serialize(feature));
+                    }
+                }
+            }
+
+            List<String> leaves = new ArrayList<>();
+            split.write(writer, leaves);
+
+            pyramidSplits.put(TilesetDescriptor.pyramidSplitKey(GeoidTileIndex.pyramidZoom(tile),
+                    GeoidTileIndex.tileX(tile), GeoidTileIndex.tileY(tile)), leaves);
         } finally {
-            // allow the JVM to exit
-            executor.shutdown();
+            split.close();
+        }
+    }
+
+    /**
+     * @return the keys a packed tile was written under in an existing tileset. The tile may have been split, in which
+     * case its features are spread over (and duplicated between) its leaves.
+     */
+    private static List<String> previousKeys (TilesetDescriptor previousDescriptor, int tile) {
+        int x = GeoidTileIndex.tileX(tile), y = GeoidTileIndex.tileY(tile);
+
+        if (GeoidTileIndex.isMainLayer(tile))
+            return previousDescriptor.tileKeys(x, y);
+        else if (GeoidTileIndex.isPyramid(tile))
+            return previousDescriptor.pyramidTileKeys(GeoidTileIndex.pyramidZoom(tile), x, y);
+        else
+            return Collections.singletonList(GeoidTileIndex.tileKey(tile));
+    }
+
+    /** Describe the layout of the tiles this store writes */
+    private TilesetDescriptor descriptor () {
+        TilesetDescriptor descriptor = new TilesetDescriptor();
+
+        if (overflowThreshold > 0) {
+            descriptor.overflowZoom = overflowZoom;
+            descriptor.overflowThreshold = overflowThreshold;
+        }
+
+        descriptor.pyramid.addAll(pyramid);
+        descriptor.rollups.addAll(rollupLevels);
+
+        return descriptor;
+    }
+
+    /**
+     * Write the block index for each county from the sorted (GEOID, packed tile) records, returning the counties that
+     * were written
+     */
+    private static Set<Long> writeBlockIndex (ExternalSorter blockSorter, TileSink sink) throws IOException {
+        Set<Long> counties = new HashSet<>();
+        TLongList geoids = new TLongArrayList();
+        TIntList tiles = new TIntArrayList();
+        long county = -1;
+
+        try (ExternalSorter.Cursor cursor = blockSorter.sorted()) {
+            while (cursor.next()) {
+                long geoid = cursor.key();
+
+                if (GeoidTileIndex.county(geoid) != county) {
+                    if (!geoids.isEmpty()) {
+                        new BlockTileIndex(geoids.toArray(), tiles.toArray()).write(sink, county);
+                        counties.add(county);
+                    }
+
+                    county = GeoidTileIndex.county(geoid);
+                    geoids = new TLongArrayList();
+                    tiles = new TIntArrayList();
+                }
+
+                geoids.add(geoid);
+                tiles.add(ByteBuffer.wrap(cursor.payload()).getInt());
+            }
+        }
+
+        if (!geoids.isEmpty()) {
+            new BlockTileIndex(geoids.toArray(), tiles.toArray()).write(sink, county);
+            counties.add(county);
+        }
+
+        LOG.info("Wrote block index for {} counties", counties.size());
+        return counties;
+    }
+
+    /**
+     * Roll blocks up into each of the rollup levels, from the finest to the coarsest, building each level from the one
+     * below it. Units come out of the store in GEOID order, so the units that make up each coarser unit are next to
+     * each other; each group is dissolved on a rollup thread as soon as it is complete.
+     */
+    private Map<GeographyLevel, BTreeMap<Long, GeobufFeature>> buildRollups (Pipeline pipeline) throws IOException {
+        Map<GeographyLevel, BTreeMap<Long, GeobufFeature>> rollups = new EnumMap<>(GeographyLevel.class);
+
+        GeographyLevel from = GeographyLevel.BLOCK;
+        BTreeMap<Long, GeobufFeature> source = features;
+
+        // EnumSets iterate from the finest level to the coarsest
+        for (GeographyLevel level : rollupLevels) {
+            if (level == GeographyLevel.BLOCK)
+                throw new IllegalArgumentException("Blocks cannot be rolled up into blocks");
+
+            String name = "rollup-" + level.key();
+            BTreeMap<Long, GeobufFeature> rollup = db.treeMapCreate(name)
+                    .keySerializer(BTreeKeySerializer.LONG)
+                    .valueSerializer(serializer)
+                    .counterEnable()
+                    .makeOrGet();
+            rollup.clear();
+
+            GeographyLevel unitLevel = from;
+            Stage<List<GeobufFeature>> stage = pipeline.stage(name, rollupThreads, maxTilesInFlight, units -> {
+                long geoid = level.of(units.get(0).numericId, unitLevel);
+                rollup.put(geoid, GeographyRollup.dissolve(geoid, units));
+            });
+
             try {
-                executor.awaitTermination(1, TimeUnit.HOURS);
-            } catch (InterruptedException e) {
-                LOG.error("Interrupted while waiting for S3 uploads to finish");
+                List<GeobufFeature> units = new ArrayList<>();
+                long current = -1;
+
+                for (GeobufFeature unit : source.values()) {
+                    long geoid = level.of(unit.numericId, from);
+
+                    if (geoid != current && !units.isEmpty()) {
+                        stage.put(units);
+                        // the stage now owns the list
+                        units = new ArrayList<>();
+                    }
+
+                    units.add(unit);
+                    current = geoid;
+                }
+
+                if (!units.isEmpty())
+                    stage.put(units);
+            } finally {
+                stage.finish();
             }
+
+            LOG.info("Rolled {} {} units up into {} {} units", source.size(), from.key(), rollup.size(), level.key());
+
+            rollups.put(level, rollup);
+            from = level;
+            source = rollup;
         }
+
+        return rollups;
     }
 
     /**
-     * generic write tiles function, calls function with x and y indices to get an output stream, which it will close itself.
-     * The Internal suffix is because lambdas in java get confused with overloaded functions
+     * Make a single sequential pass over the features, emitting a (tile, feature) record for every z11 tile each feature
+     * touches, or every overflow tile if it touches too many z11 tiles, and sort them by tile. Each record carries the
+     * serialized feature so that the tiles can be written without going back to the store. If there is a pyramid, a
+     * record with the simplified feature is also emitted for every tile of each pyramid level the feature touches, and
+     * the number of features and serialized bytes of each pyramid tile are recorded in pyramidTileSizes. The
+     * tiles of each feature are also recorded in the given GEOID index, and one tile holding each block is recorded in
+     * the block sorter, keyed by GEOID, for the block index. Then the units of each rollup level are
+     * assigned to the tiles of their own layer in the same way.
+     *
+     * Features are read from the store on this thread, and serialized and assigned to tiles in an index stage.
      */
-    private void writeTilesInternal(TileOutputStreamProducer outputStreamForTile) throws IOException {
-        int lastx = -1, lasty = -1, tileCount = 0;
+    private ExternalSorter sortByTile (GeoidTileIndex index, ExternalSorter blockSorter,
+                                      Map<GeographyLevel, BTreeMap<Long, GeobufFeature>> rollups,
+                                      Map<Integer, long[]> pyramidTileSizes, Pipeline pipeline) throws IOException {
+        // blocks are simplified on their own, on any thread, but their shared edges need the nodes of all the blocks
+        SharedEdgeSimplifier simplifier = pyramid.isEmpty() ? null :
+                SharedEdgeSimplifier.build(features.values(), budget.sortBufferBytes());
+
+        ExternalSorter sorter = new ExternalSorter(budget.sortBufferBytes());
+
+        // for reporting how many copies of each feature are written, with and without the overflow layer
+        AtomicLong featureCount = new AtomicLong(), z11Entries = new AtomicLong(), overflowFeatures = new AtomicLong();
+        AtomicLong pyramidEntries = new AtomicLong();
+
+        Stage<Fun.Pair<Long, GeobufFeature>> indexStage = pipeline.stage("index", indexThreads, budget.featureQueueSize(1), item -> {
+            long ordinal = item.a;
+            GeobufFeature feature = item.b;
+
+            if (sparseFilter != null && !sparseFilter.keep(feature))
+                return;
 
-        List<GeobufFeature> featuresThisTile = new ArrayList<>();
+            byte[] serialized = serialize(feature);
 
-        for (Object[] val : tiles) {
-            int x = (Integer) val[0];
-            int y = (Integer) val[1];
-            long id = (Long) val[2];
+            // figure out which z11 tiles this is part of
+            Envelope e = feature.geometry.getEnvelopeInternal();
+            int minX = lon2tile(e.getMinX(), ZOOM_LEVEL), maxX = lon2tile(e.getMaxX(), ZOOM_LEVEL);
+            int minY = lat2tile(e.getMaxY(), ZOOM_LEVEL), maxY = lat2tile(e.getMinY(), ZOOM_LEVEL);
+
+            long tileCount = (long) (maxX - minX + 1) * (maxY - minY + 1);
+            featureCount.incrementAndGet();
+            z11Entries.addAndGet(tileCount);
+
+            boolean overflow = overflowThreshold > 0 && tileCount > overflowThreshold;
+
+            if (overflow) {
+                overflowFeatures.incrementAndGet();
+                minX = lon2tile(e.getMinX(), overflowZoom);
+                maxX = lon2tile(e.getMaxX(), overflowZoom);
+                minY = lat2tile(e.getMaxY(), overflowZoom);
+                maxY = lat2tile(e.getMinY(), overflowZoom);
+            }
 
-            if (x != lastx || y != lasty) {
-                if (!featuresThisTile.isEmpty()) {
-                    LOG.debug("x: {}, y: {}, {} features", lastx, lasty, featuresThisTile.size());
-                    GeobufEncoder enc = new GeobufEncoder(new GZIPOutputStream(new BufferedOutputStream(outputStreamForTile.apply(lastx, lasty))), PRECISION);
-                    enc.writeFeatureCollection(featuresThisTile);
-                    enc.close();
-                    featuresThisTile.clear();
+            int firstTile = overflow ? GeoidTileIndex.packOverflowTile(minX, minY) : GeoidTileIndex.packTile(minX, minY);
 
-                    tileCount++;
+            synchronized (sorter) {
+                // any tile the block is in will do for fetching it by ID
+                blockSorter.add(feature.numericId, ByteBuffer.allocate(4).putInt(firstTile).array());
+
+                for (int x = minX; x <= maxX; x++) {
+                    for (int y = minY; y <= maxY; y++) {
+                        long tile = overflow ? GeoidTileIndex.packOverflowTile(x, y) : GeoidTileIndex.packTile(x, y);
+                        // the ordinal keeps features in ID order within a tile, whatever order they are added in
+                        sorter.add(tile << ORDINAL_BITS | ordinal, serialized);
+                        index.add(feature.numericId, (int) tile);
+                    }
                 }
             }
 
-            featuresThisTile.add(features.get(id));
+            for (TilesetDescriptor.PyramidLevel level : pyramid) {
+                GeobufFeature simplified = simplify(feature, simplifier, level.tolerance);
+
+                if (simplified == null)
+                    continue;
+
+                byte[] serializedSimplified = serialize(simplified);
+                Envelope se = simplified.geometry.getEnvelopeInternal();
+
+                int z = level.zoom;
+                synchronized (sorter) {
+                    for (int x = lon2tile(se.getMinX(), z); x <= lon2tile(se.getMaxX(), z); x++) {
+                        for (int y = lat2tile(se.getMaxY(), z); y <= lat2tile(se.getMinY(), z); y++) {
+                            long tile = GeoidTileIndex.packPyramidTile(z, x, y);
+                            sorter.add(tile << ORDINAL_BITS | ordinal, serializedSimplified);
+                            index.add(feature.numericId, (int) tile);
+                            pyramidEntries.incrementAndGet();
 
-            lastx = x;
-            lasty = y;
+                            // note how big each pyramid tile is, so that those too big to write whole can be split
+                            long[] size = pyramidTileSizes.computeIfAbsent((int) tile, t -> new long[2]);
+                            size[0]++;
+                            size[1] += serializedSimplified.length;
+                        }
+                    }
+                }
+            }
+        });
+
+        // features come out of the BTree in ID order, so ordering by ordinal within a tile is ordering by ID
+        long ordinal = 0;
+        try {
+            for (GeobufFeature feature : features.values()) {
+                indexStage.put(new Fun.Pair<>(ordinal++, feature));
+            }
+        } finally {
+            indexStage.finish();
+        }
+
+        LOG.info("Sorted {} features into {} tile entries", ordinal, sorter.size());
+
+        long count = featureCount.get();
+        if (count > 0) {
+            LOG.info("Without an overflow layer: {} z11 tile entries, {} copies per feature", z11Entries.get(),
+                    String.format("%.2f", z11Entries.get() / (double) count));
+
+            if (overflowThreshold > 0) {
+                long entries = sorter.size() - pyramidEntries.get();
+                LOG.info("With an overflow layer at z{}: {} tile entries, {} copies per feature, {} features in overflow",
+                        overflowZoom, entries, String.format("%.2f", entries / (double) count), overflowFeatures.get());
+            }
+
+            if (!pyramid.isEmpty())
+                LOG.info("{} tile entries in {} pyramid levels", pyramidEntries.get(), pyramid.size());
+        }
+
+        for (Map.Entry<GeographyLevel, BTreeMap<Long, GeobufFeature>> e : rollups.entrySet()) {
+            GeographyLevel level = e.getKey();
+            int z = level.zoom;
+
+            Stage<Fun.Pair<Long, GeobufFeature>> rollupStage = pipeline.stage("index-" + level.key(), indexThreads,
+                    budget.featureQueueSize(1), item -> {
+                        GeobufFeature unit = item.b;
+                        byte[] serialized = serialize(unit);
+                        Envelope env = unit.geometry.getEnvelopeInternal();
+
+                        synchronized (sorter) {
+                            for (int x = lon2tile(env.getMinX(), z); x <= lon2tile(env.getMaxX(), z); x++) {
+                                for (int y = lat2tile(env.getMaxY(), z); y <= lat2tile(env.getMinY(), z); y++) {
+                                    long tile = GeoidTileIndex.packRollupTile(level, x, y);
+                                    sorter.add(tile << ORDINAL_BITS | item.a, serialized);
+                                    // the index is by county, so record the unit under a block GEOID
+                                    index.add(level.firstBlock(unit.numericId), (int) tile);
+                                }
+                            }
+                        }
+                    });
+
+            // ordinals only need to be unique within a tile, and rollup tiles only hold units of one level
+            long rollupOrdinal = 0;
+            try {
+                for (GeobufFeature unit : e.getValue().values()) {
+                    rollupStage.put(new Fun.Pair<>(rollupOrdinal++, unit));
+                }
+            } finally {
+                rollupStage.finish();
+            }
+
+            LOG.info("Sorted {} {} units into tiles at z{}", rollupOrdinal, level.key(), z);
         }
 
-        LOG.info("Wrote {} tiles", tileCount);
+        return sorter;
+    }
+
+    /**
+     * Simplify the geometry of a feature with the given tolerance, in degrees, so that its shared edges are simplified
+     * the same way in its neighbours, leaving no gaps or overlaps between them.
+     */
+    private static GeobufFeature simplify (GeobufFeature feature, SharedEdgeSimplifier simplifier, double tolerance) {
+        Geometry geometry = simplifier.simplify(feature.geometry, tolerance);
+
+        if (geometry.isEmpty())
+            return null;
+
+        GeobufFeature simplified = feature.clone();
+        simplified.geometry = geometry;
+        return simplified;
+    }
+
+    /** @return the number of decimal places coordinates are stored with */
+    public int getPrecision () {
+        return serializer.precision;
+    }
+
+    private byte[] serialize (GeobufFeature feature) throws IOException {
+        return serializer.toBytes(feature);
+    }
+
+    private GeobufFeature deserialize (byte[] serialized) throws IOException {
+        return serializer.fromBytes(serialized);
     }
 
     /** get a feature */
@@ -201,9 +1028,4 @@ public class ShapeDataStore {
 
         features.put(feat.numericId, feat);
     }
-
-    @FunctionalInterface
-    private interface TileOutputStreamProducer {
-        public OutputStream apply (int x, int y) throws IOException;
-    }
 }
@@ -0,0 +1,281 @@
+package com.conveyal.data.census;
+
+import com.conveyal.data.geobuf.GeobufFeature;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.LineSegment;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.Polygonal;
+import org.locationtech.jts.simplify.DouglasPeuckerLineSimplifier;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Simplify the polygons of a coverage, such as census blocks, so that neighbouring polygons stay neighbours, with no
+ * gaps or overlaps between them.
+ *
+ * The rings of every polygon are broken into edges at the nodes of the coverage, the vertices where three or more
+ * edges meet, which are found beforehand in a pass over all the polygons. An edge between two nodes is the same in
+ * every polygon that has it, and it is always simplified the same way, from the same end, so both sides of a shared
+ * edge end up with the same vertices even though each polygon is simplified on its own, in any order, on any thread.
+ *
+ * Each edge keeps at least one vertex between its ends, and a ring with no nodes, such as an island or a block filling
+ * a hole, at least three, so that no polygon collapses however coarse the tolerance.
+ */
+public class SharedEdgeSimplifier {
+    private static final Logger LOG = LoggerFactory.getLogger(SharedEdgeSimplifier.class);
+
+    private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+    /** vertices are matched at 7 decimal places, about a centimeter, finer than any tolerance we simplify with */
+    private static final double VERTEX_SCALE = 1e7;
+
+    /** sorted keys of the nodes of the coverage */
+    private final long[] nodes;
+
+    private SharedEdgeSimplifier (long[] nodes) {
+        this.nodes = nodes;
+    }
+
+    /**
+     * Find the nodes of the coverage made up of the polygons of the given features, sorting the neighbours of every
+     * vertex on disk with a buffer of the given size. Only the nodes are kept in memory.
+     */
+    public static SharedEdgeSimplifier build (Iterable<GeobufFeature> features, long bufferBytes) throws IOException {
+        TLongList nodes = new TLongArrayList();
+
+        try (ExternalSorter sorter = new ExternalSorter(bufferBytes)) {
+            for (GeobufFeature feature : features) {
+                if (!(feature.geometry instanceof Polygonal))
+                    continue;
+
+                for (int i = 0; i < feature.geometry.getNumGeometries(); i++) {
+                    Polygon polygon = (Polygon) feature.geometry.getGeometryN(i);
+                    addNeighbours(sorter, polygon.getExteriorRing().getCoordinates());
+
+                    for (int j = 0; j < polygon.getNumInteriorRing(); j++) {
+                        addNeighbours(sorter, polygon.getInteriorRingN(j).getCoordinates());
+                    }
+                }
+            }
+
+            LOG.info("Finding nodes of the coverage from {} vertex neighbours", sorter.size());
+
+            // a vertex is a node if it has three or more distinct neighbours, shared edges are recorded once per side
+            TLongSet neighbours = new TLongHashSet();
+            // not the key of any vertex, whose longitudes are between -180 and 180
+            long vertex = Long.MIN_VALUE;
+
+            try (ExternalSorter.Cursor cursor = sorter.sorted()) {
+                while (cursor.next()) {
+                    if (cursor.key() != vertex) {
+                        vertex = cursor.key();
+                        neighbours.clear();
+                    }
+
+                    // the vertex is added once, when it gets its third neighbour
+                    if (neighbours.add(ByteBuffer.wrap(cursor.payload()).getLong()) && neighbours.size() == 3)
+                        nodes.add(vertex);
+                }
+            }
+        }
+
+        LOG.info("Found {} nodes", nodes.size());
+
+        // the sorter returns keys in order, so the nodes are already sorted
+        return new SharedEdgeSimplifier(nodes.toArray());
+    }
+
+    /** Record each vertex of a ring as a neighbour of the vertices before and after it */
+    private static void addNeighbours (ExternalSorter sorter, Coordinate[] ring) throws IOException {
+        for (int i = 0; i < ring.length - 1; i++) {
+            long a = key(ring[i]), b = key(ring[i + 1]);
+
+            if (a == b)
+                continue;
+
+            sorter.add(a, ByteBuffer.allocate(8).putLong(b).array());
+            sorter.add(b, ByteBuffer.allocate(8).putLong(a).array());
+        }
+    }
+
+    /** @return a key identifying a vertex, its coordinates at 7 decimal places packed into a long */
+    private static long key (Coordinate c) {
+        return Math.round(c.x * VERTEX_SCALE) << 32 ^ Math.round(c.y * VERTEX_SCALE) & 0xffffffffL;
+    }
+
+    private boolean isNode (Coordinate c) {
+        return Arrays.binarySearch(nodes, key(c)) >= 0;
+    }
+
+    /**
+     * Simplify a polygon or multipolygon with the given tolerance, in degrees, the same way as its neighbours. If that
+     * leaves it invalid, it is cleaned up with a zero-width buffer, and if nothing is left it is simplified on its
+     * own, as the edges it shares with its neighbours are too close together to be simplified without crossing.
+     * Other geometries are simplified on their own.
+     */
+    public Geometry simplify (Geometry geometry, double tolerance) {
+        if (!(geometry instanceof Polygonal))
+            return TopologyPreservingSimplifier.simplify(geometry, tolerance);
+
+        List<Polygon> polygons = new ArrayList<>();
+
+        for (int i = 0; i < geometry.getNumGeometries(); i++) {
+            Polygon polygon = (Polygon) geometry.getGeometryN(i);
+            LinearRing shell = simplify(polygon.getExteriorRing().getCoordinates(), tolerance);
+
+            if (shell == null)
+                continue;
+
+            List<LinearRing> holes = new ArrayList<>();
+
+            for (int j = 0; j < polygon.getNumInteriorRing(); j++) {
+                LinearRing hole = simplify(polygon.getInteriorRingN(j).getCoordinates(), tolerance);
+                if (hole != null)
+                    holes.add(hole);
+            }
+
+            polygons.add(geometryFactory.createPolygon(shell, holes.toArray(new LinearRing[holes.size()])));
+        }
+
+        Geometry simplified = geometryFactory.buildGeometry(polygons);
+
+        if (!simplified.isValid())
+            simplified = simplified.buffer(0);
+
+        if (simplified.isEmpty())
+            simplified = TopologyPreservingSimplifier.simplify(geometry, tolerance);
+
+        return simplified;
+    }
+
+    /** Simplify a closed ring edge by edge, returning null if it collapses */
+    private LinearRing simplify (Coordinate[] ring, double tolerance) {
+        // the closing coordinate repeats the first
+        int n = ring.length - 1;
+
+        if (n < 3)
+            return null;
+
+        List<Integer> breaks = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (isNode(ring[i]))
+                breaks.add(i);
+        }
+
+        if (breaks.isEmpty()) {
+            // the ring is one edge, which starts at its smallest vertex, wherever the ring starts
+            int start = 0;
+            for (int i = 1; i < n; i++) {
+                if (ring[i].compareTo(ring[start]) < 0)
+                    start = i;
+            }
+
+            breaks.add(start);
+        }
+
+        List<Coordinate> coords = new ArrayList<>();
+
+        for (int b = 0; b < breaks.size(); b++) {
+            int from = breaks.get(b), to = b + 1 < breaks.size() ? breaks.get(b + 1) : breaks.get(0) + n;
+
+            Coordinate[] edge = new Coordinate[to - from + 1];
+            for (int i = 0; i < edge.length; i++) {
+                edge[i] = ring[(from + i) % n];
+            }
+
+            Coordinate[] simplified = simplifyEdge(edge, tolerance);
+
+            // the last vertex of each edge is the first of the next
+            for (int i = 0; i < simplified.length - 1; i++) {
+                coords.add(new Coordinate(simplified[i]));
+            }
+        }
+
+        coords.add(new Coordinate(coords.get(0)));
+
+        if (coords.size() < 4)
+            return null;
+
+        return geometryFactory.createLinearRing(coords.toArray(new Coordinate[coords.size()]));
+    }
+
+    /**
+     * Simplify an edge, always starting from the same end whichever way round the ring it is in goes, so that the
+     * polygons on either side of it get the same vertices
+     */
+    static Coordinate[] simplifyEdge (Coordinate[] edge, double tolerance) {
+        int last = edge.length - 1;
+        int order = edge[0].compareTo(edge[last]);
+
+        // an edge that starts and ends at the same node is a loop, and goes one way or the other from there
+        for (int i = 1; order == 0 && i < last - i; i++) {
+            order = edge[i].compareTo(edge[last - i]);
+        }
+
+        if (order <= 0)
+            return simplifyCanonicalEdge(edge, tolerance);
+
+        Coordinate[] reversed = reverse(edge);
+        return reverse(simplifyCanonicalEdge(reversed, tolerance));
+    }
+
+    private static Coordinate[] simplifyCanonicalEdge (Coordinate[] edge, double tolerance) {
+        int last = edge.length - 1;
+
+        if (last < 2)
+            return edge;
+
+        if (edge[0].equals2D(edge[last])) {
+            // a loop: split it at its farthest vertex into two edges, each of which keeps a vertex in the middle
+            int far = 1;
+            for (int i = 2; i < last; i++) {
+                if (edge[i].distance(edge[0]) > edge[far].distance(edge[0]))
+                    far = i;
+            }
+
+            Coordinate[] first = simplifyCanonicalEdge(Arrays.copyOfRange(edge, 0, far + 1), tolerance);
+            Coordinate[] second = simplifyCanonicalEdge(Arrays.copyOfRange(edge, far, edge.length), tolerance);
+
+            Coordinate[] loop = Arrays.copyOf(first, first.length + second.length - 1);
+            System.arraycopy(second, 1, loop, first.length, second.length - 1);
+            return loop;
+        }
+
+        Coordinate[] simplified = DouglasPeuckerLineSimplifier.simplify(edge, tolerance);
+
+        if (simplified.length > 2)
+            return simplified;
+
+        // keep the vertex farthest from the straight line between the ends, so rings of two edges don't collapse
+        LineSegment chord = new LineSegment(edge[0], edge[last]);
+        int far = 1;
+        for (int i = 2; i < last; i++) {
+            if (chord.distance(edge[i]) > chord.distance(edge[far]))
+                far = i;
+        }
+
+        return new Coordinate[] { edge[0], edge[far], edge[last] };
+    }
+
+    private static Coordinate[] reverse (Coordinate[] coords) {
+        Coordinate[] reversed = new Coordinate[coords.length];
+        for (int i = 0; i < coords.length; i++) {
+            reversed[i] = coords[coords.length - 1 - i];
+        }
+        return reversed;
+    }
+}
@@ -0,0 +1,89 @@
+package com.conveyal.data.census;
+
+import com.conveyal.data.geobuf.GeobufFeature;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which features to leave out of a sparse tileset: those whose selected properties are all zero or missing,
+ * such as blocks with no jobs and no workers, which are of no use for accessibility analysis. Keeps count of the
+ * features it prunes in each state.
+ */
+public class SparseFilter {
+    /** properties to check, or empty to check every numeric property */
+    public final Set<String> properties;
+
+    private final Map<Integer, AtomicLong> prunedByState = new ConcurrentHashMap<>();
+
+    private final AtomicLong kept = new AtomicLong();
+
+    /** Create a filter that keeps features with a nonzero value for any of the given properties, or any property */
+    public SparseFilter (Collection<String> properties) {
+        this.properties = new TreeSet<>(properties);
+    }
+
+    /** @return true if the feature should be kept. Safe to call from multiple threads. */
+    public boolean keep (GeobufFeature feature) {
+        if (hasValue(feature)) {
+            kept.incrementAndGet();
+            return true;
+        }
+
+        prunedByState.computeIfAbsent(GeoidTileIndex.state(feature.numericId), s -> new AtomicLong()).incrementAndGet();
+        return false;
+    }
+
+    private boolean hasValue (GeobufFeature feature) {
+        if (properties.isEmpty()) {
+            for (Object val : feature.properties.values()) {
+                if (isNonZero(val))
+                    return true;
+            }
+        } else {
+            for (String prop : properties) {
+                if (isNonZero(feature.properties.get(prop)))
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isNonZero (Object val) {
+        return val instanceof Number && ((Number) val).doubleValue() != 0;
+    }
+
+    /** @return the number of features pruned so far */
+    public long getPruned () {
+        return prunedByState.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+
+    /** @return the number of features kept so far */
+    public long getKept () {
+        return kept.get();
+    }
+
+    /**
+     * Describe the pruning for the manifest. When updating a tileset, the counts for states that were not reloaded
+     * are carried over from the previous manifest.
+     */
+    public TileManifest.Sparse toManifest (TileManifest.Sparse previous) {
+        TileManifest.Sparse sparse = new TileManifest.Sparse();
+        sparse.properties = new ArrayList<>(properties);
+
+        if (previous != null)
+            sparse.pruned.putAll(previous.pruned);
+
+        for (Map.Entry<Integer, AtomicLong> e : prunedByState.entrySet()) {
+            sparse.pruned.put(e.getKey(), e.getValue().get());
+        }
+
+        return sparse;
+    }
+}
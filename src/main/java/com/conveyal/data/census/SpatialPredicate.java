@@ -0,0 +1,99 @@
+package com.conveyal.data.census;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+
+/**
+ * How features are selected by the boundary of an extract. The modes trade exactness for speed; all of them accept or
+ * reject features well inside or well outside the boundary from the boundary mask, without looking at their
+ * geometries, and differ in what they do near the edge.
+ */
+public enum SpatialPredicate {
+    /** Features that are not disjoint from the boundary, the most permissive mode */
+    INTERSECTS {
+        @Override
+        public boolean test (BoundaryMask mask, Geometry geom) {
+            return mask.intersects(geom);
+        }
+    },
+
+    /**
+     * Features whose centroids are in the boundary, so that features along the edge are in exactly one of several
+     * neighbouring extracts. A point in polygon test, which is much cheaper than intersecting polygons.
+     */
+    CENTROID_WITHIN {
+        @Override
+        public boolean test (BoundaryMask mask, Geometry geom) {
+            switch (mask.locate(geom.getEnvelopeInternal())) {
+                case INSIDE:
+                    return true;
+                case OUTSIDE:
+                    return false;
+                default:
+                    Point centroid = geom.getCentroid();
+                    switch (mask.locate(centroid.getEnvelopeInternal())) {
+                        case INSIDE:
+                            return true;
+                        case OUTSIDE:
+                            return false;
+                        default:
+                            return mask.prepared.contains(centroid);
+                    }
+            }
+        }
+    },
+
+    /**
+     * Features with at least half of their area in the boundary. The most expensive mode, as features near the edge
+     * are intersected with the boundary; features without area are selected if they intersect it.
+     */
+    MAJORITY_AREA {
+        @Override
+        public boolean test (BoundaryMask mask, Geometry geom) {
+            switch (mask.locate(geom.getEnvelopeInternal())) {
+                case INSIDE:
+                    return true;
+                case OUTSIDE:
+                    return false;
+                default:
+                    if (!mask.prepared.intersects(geom))
+                        return false;
+
+                    double area = geom.getArea();
+
+                    if (area == 0)
+                        return true;
+
+                    if (mask.prepared.containsProperly(geom))
+                        return true;
+
+                    return geom.intersection(mask.prepared.getGeometry()).getArea() >= area / 2;
+            }
+        }
+    },
+
+    /**
+     * Features whose envelopes touch cells of the boundary mask that are inside the boundary or on its edge, with no
+     * exact test at all. Constant time per feature, for quick previews; includes some features near the boundary that
+     * are outside it.
+     */
+    ENVELOPE {
+        @Override
+        public boolean test (BoundaryMask mask, Geometry geom) {
+            return mask.locate(geom.getEnvelopeInternal()) != BoundaryMask.Location.OUTSIDE;
+        }
+    };
+
+    /** @return true if the feature with the given geometry should be in the extract bounded by the mask */
+    public abstract boolean test (BoundaryMask mask, Geometry geom);
+
+    /** @return the name of this mode on the command line, e.g. centroid-within */
+    public String key () {
+        return name().toLowerCase().replace('_', '-');
+    }
+
+    /** @return the mode with the given key, e.g. majority-area */
+    public static SpatialPredicate fromKey (String key) {
+        return valueOf(key.toUpperCase().replace('-', '_'));
+    }
+}
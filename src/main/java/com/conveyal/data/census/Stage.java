@@ -0,0 +1,149 @@
+package com.conveyal.data.census;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One stage of a pipeline: a bounded input queue drained by a fixed number of worker threads. When the queue is full,
+ * put() blocks, so a slow stage holds back the stages feeding it rather than letting work pile up in memory.
+ * Stages are created through a Pipeline, which reports on their throughput and queue depth.
+ */
+public class Stage<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(Stage.class);
+
+    public final String name;
+
+    public final int threads;
+
+    private final BlockingQueue<T> queue;
+
+    private final int queueSize;
+
+    private final Worker<T> worker;
+
+    private final Thread[] workers;
+
+    private volatile boolean finished = false;
+
+    /** the first failure of any worker, including Errors, which would otherwise leave producers waiting forever */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final AtomicLong processed = new AtomicLong();
+
+    /** processed count and time at the last report, for computing throughput */
+    private long lastReportCount = 0, lastReportTime = System.nanoTime();
+
+    Stage (String name, int threads, int queueSize, Worker<T> worker) {
+        this.name = name;
+        this.threads = threads;
+        this.queueSize = queueSize;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.worker = worker;
+
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::work, name + "-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /** Queue an item for this stage, blocking while the queue is full */
+    public void put (T item) throws IOException {
+        checkFailure();
+
+        try {
+            // wake up periodically to notice failures, so that we don't block forever on a queue no one is draining
+            while (!queue.offer(item, 1, TimeUnit.SECONDS)) {
+                checkFailure();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while queueing work for stage " + name);
+        }
+    }
+
+    private void work () {
+        try {
+            while (true) {
+                T item = queue.poll(100, TimeUnit.MILLISECONDS);
+
+                if (item == null) {
+                    if (finished && queue.isEmpty())
+                        return;
+                    else
+                        continue;
+                }
+
+                worker.process(item);
+                processed.incrementAndGet();
+            }
+        } catch (Throwable t) {
+            LOG.error("Error in stage {}", name, t);
+            failure.compareAndSet(null, t);
+            // drain the queue so that upstream stages are not blocked forever
+            queue.clear();
+        }
+    }
+
+    /** Signal that no more items will be queued, wait for the queue to drain, and rethrow the first failure */
+    public void finish () throws IOException {
+        finished = true;
+
+        try {
+            for (Thread t : workers) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for stage " + name + " to finish");
+        }
+
+        checkFailure();
+    }
+
+    /** Rethrow the first failure of any worker, Errors as they are and exceptions wrapped in an IOException */
+    private void checkFailure () throws IOException {
+        Throwable t = failure.get();
+        if (t != null) {
+            // other workers may still be running, make sure they don't wait for more input
+            finished = true;
+            queue.clear();
+
+            if (t instanceof Error)
+                throw (Error) t;
+
+            throw new IOException("Error in stage " + name, t);
+        }
+    }
+
+    /** @return the total number of items processed by this stage */
+    public long getProcessed () {
+        return processed.get();
+    }
+
+    /** Log throughput since the last report and the current queue depth */
+    synchronized void report () {
+        long count = processed.get();
+        long now = System.nanoTime();
+        double seconds = (now - lastReportTime) / 1e9;
+        double rate = seconds > 0 ? (count - lastReportCount) / seconds : 0;
+        lastReportCount = count;
+        lastReportTime = now;
+
+        LOG.info("{}: {} processed, {}/s, queue {}/{}, {} threads", name, count, Math.round(rate), queue.size(),
+                queueSize, threads);
+    }
+
+    /** Processes items from the queue, typically by doing some work and putting the result into the next stage */
+    @FunctionalInterface
+    public interface Worker<T> {
+        void process (T item) throws Exception;
+    }
+}
@@ -1,19 +1,29 @@
 package com.conveyal.data.census;
 
 import com.conveyal.data.geobuf.GeobufFeature;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 import org.geotools.data.FileDataStore;
 import org.geotools.data.FileDataStoreFinder;
-import org.geotools.data.Query;
-import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.geometry.jts.JTS;
 import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.referencing.operation.MathTransform;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 
 /**
  * Reads TIGER/Line data into a MapDB.
+ *
+ * Loading is split into read, parse and reproject steps so that the loader can run each of them as a separate stage
+ * with its own threads; load() runs them one after another on the current thread.
  */
 public class TigerLineSource {
     private File shapefile;
@@ -23,20 +33,94 @@ public class TigerLineSource {
     }
 
     public void load (ShapeDataStore store) throws Exception {
+        read(record -> {
+            parse(record);
+            reproject(record);
+            store.add(record.feature);
+        });
+    }
+
+    /** Read the raw features from the shapefile, passing each one on to the next step without converting it */
+    public void read (Stage.Worker<Record> next) throws Exception {
         FileDataStore fds = FileDataStoreFinder.getDataStore(shapefile);
-        SimpleFeatureSource src = fds.getFeatureSource();
-
-        Query q = new Query();
-        q.setCoordinateSystem(src.getInfo().getCRS());
-        q.setCoordinateSystemReproject(CRS.decode("EPSG:4326", true));
-        SimpleFeatureCollection sfc = src.getFeatures(q);
-
-        for (SimpleFeatureIterator it = sfc.features(); it.hasNext();) {
-            GeobufFeature feat = new GeobufFeature(it.next());
-            feat.id = null;
-            feat.numericId = Long.parseLong((String) feat.properties.get("GEOID10"));
-            feat.properties = new HashMap<>();
-            store.add(feat);
+
+        try {
+            SimpleFeatureSource src = fds.getFeatureSource();
+
+            // reprojecting in the query would tie it to the reading thread, so just find the transform here
+            MathTransform transform =
+                    CRS.findMathTransform(src.getInfo().getCRS(), CRS.decode("EPSG:4326", true), true);
+
+            SimpleFeatureIterator it = src.getFeatures().features();
+            try {
+                while (it.hasNext()) {
+                    next.process(new Record(it.next(), transform));
+                }
+            } finally {
+                it.close();
+            }
+        } finally {
+            fds.dispose();
+        }
+    }
+
+    /**
+     * Compute a checksum over the given shapefiles, including their attribute, index and projection files, to tell
+     * whether a store already contains exactly these geometries.
+     */
+    public static String checksum (File... shapefiles) throws IOException {
+        File[] sorted = shapefiles.clone();
+        Arrays.sort(sorted);
+
+        Hasher hasher = Hashing.sha256().newHasher();
+
+        for (File shapefile : sorted) {
+            String base = shapefile.getName().substring(0, shapefile.getName().length() - ".shp".length());
+
+            for (String ext : new String[] { ".shp", ".shx", ".dbf", ".prj" }) {
+                File file = new File(shapefile.getParentFile(), base + ext);
+
+                if (!file.exists())
+                    continue;
+
+                hasher.putString(file.getName(), StandardCharsets.UTF_8);
+                hasher.putBytes(Files.asByteSource(file).hash(Hashing.sha256()).asBytes());
+            }
+        }
+
+        return hasher.hash().toString();
+    }
+
+    /** Convert the raw feature to a GeobufFeature with its GEOID as its numeric ID and no properties */
+    public static void parse (Record record) {
+        GeobufFeature feat = new GeobufFeature(record.raw);
+        feat.id = null;
+        feat.numericId = Long.parseLong((String) feat.properties.get("GEOID10"));
+        feat.properties = new HashMap<>();
+        record.feature = feat;
+        // let the raw feature be garbage collected while the record waits in later queues
+        record.raw = null;
+    }
+
+    /** Reproject the parsed feature to WGS84 */
+    public static void reproject (Record record) throws Exception {
+        if (!record.transform.isIdentity())
+            record.feature.geometry = JTS.transform(record.feature.geometry, record.transform);
+    }
+
+    /** A feature on its way through the load */
+    public static class Record {
+        SimpleFeature raw;
+        GeobufFeature feature;
+        final MathTransform transform;
+
+        Record (SimpleFeature raw, MathTransform transform) {
+            this.raw = raw;
+            this.transform = transform;
+        }
+
+        public GeobufFeature getFeature () {
+            return feature;
         }
     }
 }
@@ -0,0 +1,232 @@
+package com.conveyal.data.census;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.conveyal.data.census.ShapeDataStore.tile2lat;
+import static com.conveyal.data.census.ShapeDataStore.tile2lon;
+
+/**
+ * Finds the tiles that a geometry touches, rather than all of the tiles in its envelope. The envelope of a long
+ * diagonal corridor covers thousands of z11 tiles, but the corridor itself only touches a narrow band of them; the
+ * envelope of a coastal state with islands, or of a region with a large hole, includes a lot of tiles that are not in
+ * the region at all.
+ *
+ * Coordinates are projected into tile space, where each tile is a unit square, once. The tiles that lines and the rings
+ * of polygons pass through are found by stepping from tile to tile along each segment, and the tiles entirely inside
+ * polygons are filled in row by row between the crossings of the rings with the centre line of each row, so the work
+ * is proportional to the number of vertices plus the number of tiles in the cover, with no geometry predicates.
+ */
+public class TileCover {
+    private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+    /**
+     * @return the tiles at the given zoom level, no finer than z11, that the geometry touches, packed with
+     * GeoidTileIndex.packTile. Each part of a multipart geometry is covered separately, and tiles entirely inside the
+     * holes of polygons are left out.
+     */
+    public static TIntSet cover (Geometry geom, int zoom) {
+        if (zoom > ShapeDataStore.ZOOM_LEVEL)
+            throw new IllegalArgumentException("Cannot cover tiles finer than z" + ShapeDataStore.ZOOM_LEVEL);
+
+        TIntSet tiles = new TIntHashSet();
+        int n = 1 << zoom;
+
+        visit(geom, zoom, new CellVisitor() {
+            @Override
+            public void edge (int x, int y) {
+                if (x >= 0 && y >= 0 && x < n && y < n)
+                    tiles.add(GeoidTileIndex.packTile(x, y));
+            }
+
+            @Override
+            public void inside (int x, int y) {
+                edge(x, y);
+            }
+        });
+
+        return tiles;
+    }
+
+    /**
+     * Visit the cells of the grid at the given zoom level, which may be finer than z11, that the geometry touches.
+     * Cells inside a polygon are visited after its edges, and may be visited more than once.
+     */
+    static void visit (Geometry geom, int zoom, CellVisitor visitor) {
+        if (geom == null || geom.isEmpty())
+            return;
+
+        if (geom instanceof Polygon) {
+            Polygon polygon = (Polygon) geom;
+            List<CoordinateSequence> rings = new ArrayList<>();
+            rings.add(polygon.getExteriorRing().getCoordinateSequence());
+
+            for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+                rings.add(polygon.getInteriorRingN(i).getCoordinateSequence());
+            }
+
+            visitPolygon(rings, zoom, visitor);
+        } else if (geom instanceof LineString) {
+            visitLine(((LineString) geom).getCoordinateSequence(), zoom, visitor);
+        } else if (geom instanceof Point) {
+            double n = 1 << zoom;
+            Point p = (Point) geom;
+            visitor.edge((int) Math.floor(x(p.getX(), n)), (int) Math.floor(y(p.getY(), n)));
+        } else if (geom instanceof GeometryCollection) {
+            for (int i = 0; i < geom.getNumGeometries(); i++) {
+                visit(geom.getGeometryN(i), zoom, visitor);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported geometry type " + geom.getGeometryType());
+        }
+    }
+
+    /** Visit the cells a line passes through */
+    static void visitLine (CoordinateSequence seq, int zoom, CellVisitor visitor) {
+        double n = 1 << zoom;
+
+        if (seq.size() == 1)
+            visitor.edge((int) Math.floor(x(seq.getX(0), n)), (int) Math.floor(y(seq.getY(0), n)));
+
+        for (int i = 1; i < seq.size(); i++) {
+            visitEdge(x(seq.getX(i - 1), n), y(seq.getY(i - 1), n), x(seq.getX(i), n), y(seq.getY(i), n), visitor);
+        }
+    }
+
+    /**
+     * Visit the cells a polygon touches, given its closed rings: the edges are those the rings pass through, and the
+     * cells between the crossings of the rings with the centre line of each row of cells, taken in pairs, are inside.
+     * Holes are crossings like any other, so cells entirely inside a hole are left out.
+     */
+    static void visitPolygon (List<CoordinateSequence> rings, int zoom, CellVisitor visitor) {
+        double n = 1 << zoom;
+
+        // project once, finding the rows the polygon spans
+        List<double[]> projected = new ArrayList<>(rings.size());
+        double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+
+        for (CoordinateSequence ring : rings) {
+            double[] coords = new double[ring.size() * 2];
+
+            for (int i = 0; i < ring.size(); i++) {
+                coords[i * 2] = x(ring.getX(i), n);
+                coords[i * 2 + 1] = y(ring.getY(i), n);
+                minY = Math.min(minY, coords[i * 2 + 1]);
+                maxY = Math.max(maxY, coords[i * 2 + 1]);
+            }
+
+            projected.add(coords);
+        }
+
+        if (minY > maxY)
+            return;
+
+        int minRow = (int) Math.floor(minY);
+        TDoubleArrayList[] crossings = new TDoubleArrayList[(int) Math.floor(maxY) - minRow + 1];
+
+        for (double[] coords : projected) {
+            for (int i = 2; i < coords.length; i += 2) {
+                double x0 = coords[i - 2], y0 = coords[i - 1], x1 = coords[i], y1 = coords[i + 1];
+                visitEdge(x0, y0, x1, y1, visitor);
+
+                // an end exactly on a centre line counts as a crossing for only one of the edges that meet there
+                double lo = Math.min(y0, y1), hi = Math.max(y0, y1);
+
+                for (int row = (int) Math.ceil(lo - 0.5); row + 0.5 < hi; row++) {
+                    int r = row - minRow;
+                    if (crossings[r] == null)
+                        crossings[r] = new TDoubleArrayList();
+
+                    crossings[r].add(x0 + (row + 0.5 - y0) * (x1 - x0) / (y1 - y0));
+                }
+            }
+        }
+
+        for (int r = 0; r < crossings.length; r++) {
+            if (crossings[r] == null)
+                continue;
+
+            crossings[r].sort();
+
+            for (int i = 0; i + 1 < crossings[r].size(); i += 2) {
+                int from = (int) Math.floor(crossings[r].get(i)), to = (int) Math.floor(crossings[r].get(i + 1));
+
+                // the cells the crossings are in have already been visited as edges
+                for (int col = from + 1; col < to; col++) {
+                    visitor.inside(col, minRow + r);
+                }
+            }
+        }
+    }
+
+    /** Visit the cells that the segment between two points in tile space passes through, stepping from cell to cell */
+    private static void visitEdge (double x0, double y0, double x1, double y1, CellVisitor visitor) {
+        int x = (int) Math.floor(x0), y = (int) Math.floor(y0);
+        int endX = (int) Math.floor(x1), endY = (int) Math.floor(y1);
+        double dx = x1 - x0, dy = y1 - y0;
+        int stepX = dx > 0 ? 1 : -1, stepY = dy > 0 ? 1 : -1;
+
+        // how far along the segment, as a fraction of its length, the next vertical and horizontal tile edges are
+        double nextX = dx == 0 ? Double.POSITIVE_INFINITY : ((dx > 0 ? x + 1 : x) - x0) / dx;
+        double nextY = dy == 0 ? Double.POSITIVE_INFINITY : ((dy > 0 ? y + 1 : y) - y0) / dy;
+        double deltaX = dx == 0 ? Double.POSITIVE_INFINITY : 1 / Math.abs(dx);
+        double deltaY = dy == 0 ? Double.POSITIVE_INFINITY : 1 / Math.abs(dy);
+
+        visitor.edge(x, y);
+
+        // count the steps rather than comparing positions, so rounding can't make us miss the end
+        for (int steps = Math.abs(endX - x) + Math.abs(endY - y); steps > 0; steps--) {
+            if (y == endY || x != endX && nextX < nextY) {
+                x += stepX;
+                nextX += deltaX;
+            } else {
+                y += stepY;
+                nextY += deltaY;
+            }
+
+            visitor.edge(x, y);
+        }
+    }
+
+    /** @return the x coordinate of a longitude in tile space, where there are n tiles across the world */
+    static double x (double lon, double n) {
+        return (lon + 180) / 360 * n;
+    }
+
+    /** @return the y coordinate of a latitude in tile space, the same projection as ShapeDataStore.lat2tile */
+    static double y (double lat, double n) {
+        lat = Math.toRadians(lat);
+        return (1 - Math.log(Math.tan(lat) + 1 / Math.cos(lat)) / Math.PI) / 2 * n;
+    }
+
+    /** @return the envelope of a tile, in degrees */
+    public static Envelope tileEnvelope (int z, int x, int y) {
+        return new Envelope(tile2lon(x, z), tile2lon(x + 1, z), tile2lat(y + 1, z), tile2lat(y, z));
+    }
+
+    /** @return a tile as a rectangular polygon */
+    public static Geometry tilePolygon (int z, int x, int y) {
+        return geometryFactory.toGeometry(tileEnvelope(z, x, y));
+    }
+
+    /** Receives the cells of a grid in tile space that a geometry touches */
+    interface CellVisitor {
+        /** a cell that a line, or the boundary of a polygon, passes through */
+        void edge (int x, int y);
+
+        /** a cell inside a polygon, which is entirely inside it unless it was also visited as an edge */
+        void inside (int x, int y);
+    }
+}
@@ -0,0 +1,72 @@
+package com.conveyal.data.census;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A record of the content of every tile in a published tileset, used to write only the tiles that have changed
+ * when the tileset is republished. It is written last, after all of the tiles, so it only ever describes tiles that
+ * have actually been written.
+ */
+public class TileManifest {
+    /** where the manifest is stored in the tileset */
+    public static final String KEY = "manifest.json.gz";
+
+    /** tile key to tile, sorted so that the manifest is written in a stable order */
+    public Map<String, Tile> tiles = new ConcurrentSkipListMap<>();
+
+    /** how features were pruned from a sparse tileset, or null if the tileset has every feature */
+    public Sparse sparse;
+
+    /** Read the manifest from the given sink, returning null if there isn't one */
+    public static TileManifest read (TileSink sink) throws IOException {
+        return TilesetFiles.read(sink, KEY, TileManifest.class);
+    }
+
+    /** Read a manifest from a stream, which will be closed */
+    public static TileManifest read (InputStream is) throws IOException {
+        return TilesetFiles.read(is, TileManifest.class);
+    }
+
+    /** Write the manifest to the given sink, replacing any previous manifest */
+    public void write (TileSink sink) throws IOException {
+        TilesetFiles.write(sink, KEY, this);
+    }
+
+    /** @return true if this manifest has a tile with the given key and content hash */
+    public boolean contains (String key, String hash) {
+        Tile tile = tiles.get(key);
+        return tile != null && tile.hash.equals(hash);
+    }
+
+    public static class Sparse {
+        /** properties that were checked for nonzero values, or empty if every property was */
+        public List<String> properties = new ArrayList<>();
+
+        /** number of features pruned in each state, by state FIPS code */
+        public SortedMap<Integer, Long> pruned = new TreeMap<>();
+    }
+
+    public static class Tile {
+        /** SHA-256 of the uncompressed tile */
+        public String hash;
+
+        /** number of features in the tile */
+        public int features;
+
+        public Tile () {
+            // for deserialization
+        }
+
+        public Tile (String hash, int features) {
+            this.hash = hash;
+            this.features = features;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.conveyal.data.census;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A destination for encoded tiles. Implementations must accept tiles from several threads at once.
+ */
+public interface TileSink extends Closeable {
+    /** Write the given (already compressed) bytes under the given key, e.g. 342/815.pbf.gz */
+    void put (String key, byte[] data) throws IOException;
+
+    /** Read back what was previously written under the given key, or null if there is nothing there */
+    byte[] get (String key) throws IOException;
+
+    /** Remove what was previously written under the given key, if anything */
+    void delete (String key) throws IOException;
+
+    /** Block until everything that has been put has actually been written */
+    default void flush () throws IOException {
+        // writes are synchronous by default
+    }
+
+    /** Get the key for a tile */
+    static String tileKey (int x, int y) {
+        return String.format("%d/%d.pbf.gz", x, y);
+    }
+
+    /** Get the key for a tile at a zoom level above z11, made by splitting a z11 tile */
+    static String splitTileKey (int z, int x, int y) {
+        return String.format("split/%d/%d/%d.pbf.gz", z, x, y);
+    }
+
+    /** Get the key for a tile in the overflow layer */
+    static String overflowTileKey (int x, int y) {
+        return String.format("overflow/%d/%d.pbf.gz", x, y);
+    }
+
+    /** Get the key for a tile in the pyramid of simplified geometries */
+    static String pyramidTileKey (int z, int x, int y) {
+        return String.format("pyramid/%d/%d/%d.pbf.gz", z, x, y);
+    }
+
+    /** Get the key for a tile at zoom level z made by splitting a tile of the pyramid level at the given zoom */
+    static String pyramidSplitTileKey (int pyramidZoom, int z, int x, int y) {
+        return String.format("pyramid/%d/split/%d/%d/%d.pbf.gz", pyramidZoom, z, x, y);
+    }
+
+    /** Get the key for a tile in the layer of units at the given level, at the zoom level of that layer */
+    static String rollupTileKey (GeographyLevel level, int x, int y) {
+        return String.format("rollup/%s/%d/%d.pbf.gz", level.key(), x, y);
+    }
+}
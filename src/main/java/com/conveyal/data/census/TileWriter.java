@@ -0,0 +1,258 @@
+package com.conveyal.data.census;
+
+import com.conveyal.data.geobuf.GeobufEncoder;
+import com.conveyal.data.geobuf.GeobufFeature;
+import com.google.common.hash.Hashing;
+import org.locationtech.jts.geom.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decodes, encodes and compresses tiles in an encode stage, and writes them to a sink in a write stage, each with
+ * its own pool of threads. Both stages have bounded queues, so the caller blocks rather than filling up memory when
+ * the encoders or the sink cannot keep up.
+ *
+ * Every tile is hashed and recorded in a manifest. Tiles whose hash matches the manifest of the previous publication
+ * are not compressed or written again.
+ *
+ * If a z11 tile has more features or bytes than the configured limits, it is split into quadrants, recursively, and
+ * the leaves are written instead. The leaves of each split tile are recorded in splits. Pyramid tiles too big to
+ * write whole are split by the caller, which queues their leaves with writeLeaf.
+ */
+public class TileWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(TileWriter.class);
+
+    private final TileSink sink;
+
+    /** reads the serialized features of tiles, and knows what precision to write them with */
+    private final QuantizedFeatureSerializer serializer;
+
+    private final Stage<PendingTile> encode;
+
+    private final Stage<EncodedTile> write;
+
+    private final AtomicInteger tileCount = new AtomicInteger();
+
+    private final AtomicInteger unchangedCount = new AtomicInteger();
+
+    private final AtomicInteger splitCount = new AtomicInteger();
+
+    /** manifest of the previous publication, or null if the tileset is being written from scratch */
+    private final TileManifest previous;
+
+    /** manifest of the tiles written by this writer */
+    public final TileManifest manifest = new TileManifest();
+
+    /** leaves of the z11 tiles that were split, in the format of TilesetDescriptor.splits */
+    public final Map<String, List<String>> splits = new ConcurrentSkipListMap<>();
+
+    /** split tiles with more than this many features, zero for no limit */
+    public int maxTileFeatures = 0;
+
+    /** split tiles whose encoded size is more than this many bytes, zero for no limit */
+    public int maxTileBytes = 0;
+
+    /** don't split tiles beyond this zoom level */
+    public int maxSplitZoom = 14;
+
+    /**
+     * Create a tile writer whose stages are part of the given pipeline. Up to maxTilesInFlight tiles may be waiting
+     * in each of the encode and write queues.
+     */
+    public TileWriter (TileSink sink, QuantizedFeatureSerializer serializer, Pipeline pipeline, int encodeThreads,
+                       int writeThreads, int maxTilesInFlight, TileManifest previous) {
+        this.sink = sink;
+        this.serializer = serializer;
+        this.previous = previous;
+        this.write = pipeline.stage("write", writeThreads, maxTilesInFlight, this::writeTile);
+        this.encode = pipeline.stage("encode", encodeThreads, maxTilesInFlight, this::encodeTile);
+    }
+
+    /**
+     * Queue a packed z11, overflow or pyramid tile made up of the given serialized features, blocking if too many tiles are
+     * already queued
+     */
+    public void write (int tile, List<byte[]> serializedFeatures) throws IOException {
+        write(tile, () -> {
+            List<GeobufFeature> features = new ArrayList<>(serializedFeatures.size());
+            for (byte[] serialized : serializedFeatures) {
+                features.add(serializer.fromBytes(serialized));
+            }
+            return features;
+        });
+    }
+
+    /**
+     * Queue a tile whose features will be produced on an encoder thread, blocking if too many tiles are already queued.
+     * If there turn out to be no features, the tile is removed from the sink.
+     */
+    public void write (int tile, TileFeatures tileFeatures) throws IOException {
+        encode.put(new PendingTile(tile, null, tileFeatures));
+    }
+
+    /**
+     * Queue a leaf of a split pyramid tile, which is written under the given key as it is, blocking if too many tiles
+     * are already queued
+     */
+    public void writeLeaf (String key, TileFeatures tileFeatures) throws IOException {
+        encode.put(new PendingTile(-1, key, tileFeatures));
+    }
+
+    private void encodeTile (PendingTile pending) throws IOException {
+        List<GeobufFeature> features = pending.features.get();
+
+        if (pending.key != null) {
+            encodeTile(pending.key, features, encode(features));
+            return;
+        }
+
+        if (features.isEmpty()) {
+            write.put(new EncodedTile(GeoidTileIndex.tileKey(pending.tile), null));
+            return;
+        }
+
+        if (!GeoidTileIndex.isMainLayer(pending.tile)) {
+            // overflow tiles hold few features, and pyramid tiles are split by the caller if they need to be
+            encodeTile(GeoidTileIndex.tileKey(pending.tile), features, encode(features));
+            return;
+        }
+
+        int x = GeoidTileIndex.tileX(pending.tile), y = GeoidTileIndex.tileY(pending.tile);
+        List<String> leaves = new ArrayList<>();
+        encodeQuadtree(features, ShapeDataStore.ZOOM_LEVEL, x, y, "", leaves);
+
+        if (leaves.size() > 1 || !leaves.get(0).isEmpty()) {
+            splits.put(TilesetDescriptor.splitKey(x, y), leaves);
+            splitCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Encode the given tile, or if it is too big, split it into quadrants and encode them, recursively, recording the
+     * quadkeys of the tiles that are written in leaves.
+     */
+    private void encodeQuadtree (List<GeobufFeature> features, int z, int x, int y, String quadkey,
+                                 List<String> leaves) throws IOException {
+        boolean splittable = z < maxSplitZoom && features.size() > 1;
+
+        // check the count first, so that tiles which are going to be split anyway are never encoded
+        if (!splittable || maxTileFeatures <= 0 || features.size() <= maxTileFeatures) {
+            byte[] tile = encode(features);
+
+            if (!splittable || maxTileBytes <= 0 || tile.length <= maxTileBytes) {
+                leaves.add(quadkey);
+                String key = quadkey.isEmpty() ? TileSink.tileKey(x, y) : TileSink.splitTileKey(z, x, y);
+                encodeTile(key, features, tile);
+                return;
+            }
+        }
+
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int cx = x * 2 + (quadrant & 1), cy = y * 2 + (quadrant >> 1), cz = z + 1;
+            List<GeobufFeature> childFeatures = new ArrayList<>();
+
+            // assign features to child tiles the same way they were assigned to z11 tiles, by envelope
+            for (GeobufFeature feature : features) {
+                Envelope e = feature.geometry.getEnvelopeInternal();
+                if (ShapeDataStore.lon2tile(e.getMinX(), cz) <= cx && cx <= ShapeDataStore.lon2tile(e.getMaxX(), cz) &&
+                        ShapeDataStore.lat2tile(e.getMaxY(), cz) <= cy && cy <= ShapeDataStore.lat2tile(e.getMinY(), cz))
+                    childFeatures.add(feature);
+            }
+
+            if (!childFeatures.isEmpty())
+                encodeQuadtree(childFeatures, cz, cx, cy, quadkey + quadrant, leaves);
+        }
+    }
+
+    private byte[] encode (List<GeobufFeature> features) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        GeobufEncoder enc = new GeobufEncoder(baos, serializer.precision);
+        enc.writeFeatureCollection(features);
+        enc.close();
+        return baos.toByteArray();
+    }
+
+    /** Record an encoded tile in the manifest, and compress and queue it for writing if it has changed */
+    private void encodeTile (String key, List<GeobufFeature> features, byte[] tile) throws IOException {
+        LOG.debug("{}: {} features", key, features.size());
+
+        String hash = Hashing.sha256().hashBytes(tile).toString();
+        manifest.tiles.put(key, new TileManifest.Tile(hash, features.size()));
+
+        tileCount.incrementAndGet();
+
+        if (previous != null && previous.contains(key, hash)) {
+            // already published, no need to compress or write it again
+            unchangedCount.incrementAndGet();
+            return;
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (OutputStream os = new GZIPOutputStream(baos)) {
+            os.write(tile);
+        }
+
+        write.put(new EncodedTile(key, baos.toByteArray()));
+    }
+
+    private void writeTile (EncodedTile tile) throws IOException {
+        if (tile.data == null)
+            sink.delete(tile.key);
+        else
+            sink.put(tile.key, tile.data);
+    }
+
+    /** Wait for all queued tiles to be written, and rethrow the first failure if there was one */
+    public void finish () throws IOException {
+        // the write stage can only finish once nothing more can come out of the encode stage
+        try {
+            encode.finish();
+        } finally {
+            write.finish();
+        }
+
+        LOG.info("Wrote {} tiles, {} of which were unchanged; split {} z11 tiles", tileCount.get(),
+                unchangedCount.get(), splitCount.get());
+    }
+
+    /** Produces the features for a tile */
+    @FunctionalInterface
+    public interface TileFeatures {
+        List<GeobufFeature> get () throws IOException;
+    }
+
+    private static class PendingTile {
+        /** packed z11, overflow, pyramid or rollup tile */
+        final int tile;
+        /** key of a leaf of a split pyramid tile, or null to write the packed tile */
+        final String key;
+        final TileFeatures features;
+
+        PendingTile (int tile, String key, TileFeatures features) {
+            this.tile = tile;
+            this.key = key;
+            this.features = features;
+        }
+    }
+
+    private static class EncodedTile {
+        final String key;
+        /** gzipped tile, or null if the tile should be removed */
+        final byte[] data;
+
+        EncodedTile (String key, byte[] data) {
+            this.key = key;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.conveyal.data.census;
+
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.conveyal.data.census.ShapeDataStore.lat2tile;
+import static com.conveyal.data.census.ShapeDataStore.lon2tile;
+
+/**
+ * Describes the layout of a tileset, so that readers know which tiles to read. It is written alongside the tiles;
+ * a tileset without one has only z11 tiles.
+ */
+public class TilesetDescriptor {
+    /** where the descriptor is stored in the tileset */
+    public static final String KEY = "tileset.json.gz";
+
+    /** zoom level of the main layer of tiles */
+    public int zoom = ShapeDataStore.ZOOM_LEVEL;
+
+    /**
+     * Zoom level of the overflow layer, which holds features that would otherwise be copied into more than
+     * overflowThreshold main tiles, or -1 if there is no overflow layer.
+     */
+    public int overflowZoom = -1;
+
+    /** features whose envelopes touch more than this many main tiles are stored in the overflow layer */
+    public int overflowThreshold;
+
+    /**
+     * z11 tiles that were split into smaller tiles because they had too many features, keyed by x/y. Each value lists
+     * the leaves of the split as quadkeys relative to the z11 tile: each digit picks a child at the next zoom level,
+     * 0 for north west, 1 north east, 2 south west and 3 south east. Missing leaves have no features.
+     */
+    public Map<String, List<String>> splits = new TreeMap<>();
+
+    /**
+     * Coarser levels holding every feature with simplified geometry, from the finest to the coarsest. Extracts that
+     * only need rough shapes can read these instead of the full resolution z11 tiles.
+     */
+    public List<PyramidLevel> pyramid = new ArrayList<>();
+
+    /**
+     * Pyramid tiles that were split into smaller tiles because they were too big to write whole, keyed by z/x/y. Each
+     * value lists the leaves of the split as quadkeys relative to the pyramid tile, as in splits.
+     */
+    public Map<String, List<String>> pyramidSplits = new TreeMap<>();
+
+    /** coarser levels of the geography hierarchy whose units, rolled up from blocks, are stored in their own layers */
+    public List<GeographyLevel> rollups = new ArrayList<>();
+
+    public boolean hasOverflow () {
+        return overflowZoom >= 0;
+    }
+
+    /**
+     * @return the coarsest pyramid level whose geometries were simplified with no more than the given tolerance, in
+     * degrees, or null if the full resolution tiles must be read
+     */
+    public PyramidLevel pyramidLevel (double tolerance) {
+        PyramidLevel best = null;
+
+        for (PyramidLevel level : pyramid) {
+            if (level.tolerance <= tolerance && (best == null || level.zoom < best.zoom))
+                best = level;
+        }
+
+        return best;
+    }
+
+    /** @return the keys of the stored tiles holding the features of the given z11 tile */
+    public List<String> tileKeys (int x, int y) {
+        return tileKeys(x, y, (Envelope) null);
+    }
+
+    /**
+     * @return the keys of the stored tiles holding the features of the given z11 tile that may intersect the given
+     * envelope, or all of them if the envelope is null
+     */
+    public List<String> tileKeys (int x, int y, Envelope env) {
+        if (env == null)
+            return tileKeys(x, y, (z, lx, ly) -> true);
+
+        return tileKeys(x, y, (z, lx, ly) -> lon2tile(env.getMinX(), z) <= lx && lx <= lon2tile(env.getMaxX(), z) &&
+                lat2tile(env.getMaxY(), z) <= ly && ly <= lat2tile(env.getMinY(), z));
+    }
+
+    /**
+     * @return the keys of the stored tiles holding the features of the given z11 tile; if it was split, only the
+     * leaves accepted by the filter
+     */
+    public List<String> tileKeys (int x, int y, TileFilter filter) {
+        List<String> leaves = splits.get(splitKey(x, y));
+
+        if (leaves == null)
+            return Collections.singletonList(TileSink.tileKey(x, y));
+
+        return leafKeys(leaves, zoom, x, y, filter, TileSink::splitTileKey);
+    }
+
+    /** @return the keys of the stored tiles holding the features of the given pyramid tile */
+    public List<String> pyramidTileKeys (int z, int x, int y) {
+        return pyramidTileKeys(z, x, y, (lz, lx, ly) -> true);
+    }
+
+    /**
+     * @return the keys of the stored tiles holding the features of the given pyramid tile; if it was split, only the
+     * leaves accepted by the filter
+     */
+    public List<String> pyramidTileKeys (int z, int x, int y, TileFilter filter) {
+        List<String> leaves = pyramidSplits.get(pyramidSplitKey(z, x, y));
+
+        if (leaves == null)
+            return Collections.singletonList(TileSink.pyramidTileKey(z, x, y));
+
+        return leafKeys(leaves, z, x, y, filter, (lz, lx, ly) -> TileSink.pyramidSplitTileKey(z, lz, lx, ly));
+    }
+
+    /** @return the keys of the leaves, given as quadkeys relative to the tile at z/x/y, that the filter accepts */
+    private static List<String> leafKeys (List<String> leaves, int z, int x, int y, TileFilter filter,
+                                          LeafKeyFunction key) {
+        List<String> keys = new ArrayList<>();
+
+        for (String quadkey : leaves) {
+            int lz = z + quadkey.length(), lx = x, ly = y;
+
+            for (int i = 0; i < quadkey.length(); i++) {
+                int digit = quadkey.charAt(i) - '0';
+                lx = lx * 2 + (digit & 1);
+                ly = ly * 2 + (digit >> 1);
+            }
+
+            if (filter.accept(lz, lx, ly))
+                keys.add(key.key(lz, lx, ly));
+        }
+
+        return keys;
+    }
+
+    /** @return the key of a z11 tile in the splits map */
+    public static String splitKey (int x, int y) {
+        return x + "/" + y;
+    }
+
+    /** @return the key of a pyramid tile in the pyramidSplits map */
+    public static String pyramidSplitKey (int z, int x, int y) {
+        return z + "/" + x + "/" + y;
+    }
+
+    /** Read the descriptor of the tileset in the given sink, returning null if there isn't one */
+    public static TilesetDescriptor read (TileSink sink) throws IOException {
+        return TilesetFiles.read(sink, KEY, TilesetDescriptor.class);
+    }
+
+    /** Read a descriptor from a stream, which will be closed */
+    public static TilesetDescriptor read (InputStream is) throws IOException {
+        return TilesetFiles.read(is, TilesetDescriptor.class);
+    }
+
+    public void write (TileSink sink) throws IOException {
+        TilesetFiles.write(sink, KEY, this);
+    }
+
+    /** @return true if tiles written with this layout and the other one can be mixed in one tileset */
+    public boolean isCompatible (TilesetDescriptor other) {
+        return zoom == other.zoom && overflowZoom == other.overflowZoom &&
+                overflowThreshold == other.overflowThreshold && pyramid.equals(other.pyramid) && rollups.equals(other.rollups);
+    }
+
+    /** Decides which leaves of a split tile to read */
+    @FunctionalInterface
+    public interface TileFilter {
+        boolean accept (int z, int x, int y);
+    }
+
+    /** Gets the key of a leaf of a split tile */
+    @FunctionalInterface
+    private interface LeafKeyFunction {
+        String key (int z, int x, int y);
+    }
+
+    /** A level of the pyramid of simplified geometries */
+    public static class PyramidLevel {
+        public int zoom;
+
+        /** distance tolerance used to simplify geometries, in degrees */
+        public double tolerance;
+
+        public PyramidLevel () {
+            // for deserialization
+        }
+
+        public PyramidLevel (int zoom, double tolerance) {
+            this.zoom = zoom;
+            this.tolerance = tolerance;
+        }
+
+        /**
+         * Create a level at the given zoom whose tolerance is about a pixel of a 256 pixel tile at that zoom, at the
+         * equator.
+         */
+        public static PyramidLevel forZoom (int zoom) {
+            return new PyramidLevel(zoom, 360 / Math.pow(2, zoom) / 256);
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (!(o instanceof PyramidLevel))
+                return false;
+
+            PyramidLevel other = (PyramidLevel) o;
+            return zoom == other.zoom && tolerance == other.tolerance;
+        }
+
+        @Override
+        public int hashCode () {
+            return 31 * zoom + Double.hashCode(tolerance);
+        }
+    }
+}
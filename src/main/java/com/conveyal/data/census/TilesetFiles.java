@@ -0,0 +1,50 @@
+package com.conveyal.data.census;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Read and write the gzipped JSON metadata files stored alongside the tiles in a tileset.
+ */
+final class TilesetFiles {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private TilesetFiles () {
+        // static methods only
+    }
+
+    /** Read a metadata file, returning null if it does not exist */
+    static <T> T read (TileSink sink, String key, Class<T> type) throws IOException {
+        byte[] data = sink.get(key);
+
+        if (data == null)
+            return null;
+
+        return read(new ByteArrayInputStream(data), type);
+    }
+
+    /** Read a metadata file from a stream, which will be closed */
+    static <T> T read (InputStream is, Class<T> type) throws IOException {
+        try (InputStream gz = new GZIPInputStream(is)) {
+            return MAPPER.readValue(gz, type);
+        }
+    }
+
+    /** Write a metadata file, replacing it if it already exists */
+    static void write (TileSink sink, String key, Object value) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        try (OutputStream os = new GZIPOutputStream(baos)) {
+            MAPPER.writeValue(os, value);
+        }
+
+        sink.put(key, baos.toByteArray());
+    }
+}
@@ -0,0 +1,47 @@
+package com.conveyal.data.census;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Read and write variable length integers, used by the compact binary formats of the store and the tileset.
+ */
+final class Varints {
+    private Varints () {
+        // static methods only
+    }
+
+    /** map signed values to unsigned so that small negative numbers have short varints */
+    static long zigzag (long val) {
+        return (val << 1) ^ (val >> 63);
+    }
+
+    static long unzigzag (long val) {
+        return (val >>> 1) ^ -(val & 1);
+    }
+
+    /** write an unsigned varint, seven bits per byte, low bits first */
+    static void writeVarLong (DataOutput out, long val) throws IOException {
+        while ((val & ~0x7FL) != 0) {
+            out.writeByte((int) ((val & 0x7F) | 0x80));
+            val >>>= 7;
+        }
+
+        out.writeByte((int) val);
+    }
+
+    static long readVarLong (DataInput in) throws IOException {
+        long val = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readByte();
+            val |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0)
+                return val;
+        }
+
+        throw new IOException("Malformed varint");
+    }
+}
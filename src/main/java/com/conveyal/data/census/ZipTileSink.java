@@ -0,0 +1,51 @@
+package com.conveyal.data.census;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Write tiles to a single zip archive, which is easier to move around than hundreds of thousands of small files.
+ * Tiles are already gzipped so they are stored without further compression. Archives are always written from scratch.
+ */
+public class ZipTileSink implements TileSink {
+    private final ZipOutputStream zos;
+
+    public ZipTileSink (File file) throws IOException {
+        zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    @Override
+    public synchronized void put (String key, byte[] data) throws IOException {
+        ZipEntry entry = new ZipEntry(key);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.setCrc(crc.getValue());
+
+        zos.putNextEntry(entry);
+        zos.write(data);
+        zos.closeEntry();
+    }
+
+    @Override
+    public byte[] get (String key) {
+        // a new archive never has anything in it
+        return null;
+    }
+
+    @Override
+    public void delete (String key) {
+        // nothing to delete from a new archive
+    }
+
+    @Override
+    public synchronized void close () throws IOException {
+        zos.close();
+    }
+}
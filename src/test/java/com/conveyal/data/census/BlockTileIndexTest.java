@@ -0,0 +1,36 @@
+package com.conveyal.data.census;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Test that the block index survives a round trip through a tileset.
+ */
+public class BlockTileIndexTest extends TestCase {
+    @Test
+    public void testRoundTrip () throws Exception {
+        MemoryTileSink sink = new MemoryTileSink();
+
+        long[] geoids = { 60372073011000L, 60372073011001L, 60372073011002L, 60379800001000L };
+        int[] tiles = {
+                GeoidTileIndex.packTile(351, 817),
+                GeoidTileIndex.packTile(351, 817),
+                GeoidTileIndex.packTile(350, 818),
+                GeoidTileIndex.packOverflowTile(43, 102)
+        };
+
+        new BlockTileIndex(geoids, tiles).write(sink, 6037);
+        assertTrue(sink.tiles.containsKey("block-index/06037.bin.gz"));
+
+        BlockTileIndex index = BlockTileIndex.read(new ByteArrayInputStream(sink.tiles.get(BlockTileIndex.key(6037))), 6037);
+
+        assertEquals(geoids.length, index.size());
+        for (int i = 0; i < geoids.length; i++) {
+            assertEquals(tiles[i], index.tile(geoids[i]));
+        }
+
+        assertEquals(-1, index.tile(60372073011003L));
+    }
+}
@@ -0,0 +1,145 @@
+package com.conveyal.data.census;
+
+import com.conveyal.data.geobuf.GeobufFeature;
+import gnu.trove.set.TIntSet;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Test tile covers, the boundary mask and the spatial predicates against real boundaries, made from the DC blocks.
+ */
+public class BoundaryIntegrationTest extends TestCase {
+    /**
+     * The cover of DC, and of each of its tracts, has every tile their blocks touch, and the cover of DC is smaller
+     * than its envelope.
+     */
+    @Test
+    public void testCover () throws Exception {
+        Map<Long, List<Geometry>> tracts = new TreeMap<>();
+        for (GeobufFeature block : DcFixture.blocks().values()) {
+            tracts.computeIfAbsent(block.numericId / 10000, t -> new ArrayList<>()).add(block.geometry);
+        }
+
+        List<Geometry> all = new ArrayList<>();
+        tracts.values().forEach(all::addAll);
+        Geometry dc = UnaryUnionOp.union(all);
+
+        for (int zoom = ShapeDataStore.ZOOM_LEVEL; zoom <= 14; zoom++) {
+            TIntSet cover = TileCover.cover(dc, zoom);
+
+            for (Geometry block : all) {
+                assertTrue(cover.containsAll(TileCover.cover(block, zoom)));
+            }
+
+            assertTrue(cover.size() < envelopeTiles(dc.getEnvelopeInternal(), zoom));
+
+            for (List<Geometry> tractBlocks : tracts.values()) {
+                TIntSet c = TileCover.cover(UnaryUnionOp.union(tractBlocks), zoom);
+
+                for (Geometry block : tractBlocks) {
+                    assertTrue(c.containsAll(TileCover.cover(block, zoom)));
+                }
+            }
+        }
+    }
+
+    /** the boundary mask selects exactly the blocks the prepared geometry does */
+    @Test
+    public void testMaskIntersects () throws Exception {
+        Collection<GeobufFeature> blocks = DcFixture.blocks().values();
+
+        for (Geometry bounds : boundaries(blocks)) {
+            BoundaryMask mask = new BoundaryMask(bounds);
+            int selected = 0;
+
+            for (GeobufFeature block : blocks) {
+                boolean intersects = mask.prepared.intersects(block.geometry);
+                assertEquals(Long.toString(block.numericId), intersects, mask.intersects(block.geometry));
+                if (intersects)
+                    selected++;
+            }
+
+            assertTrue(selected > 0);
+        }
+    }
+
+    /**
+     * Centroid within selects a subset of intersects, and intersects a subset of envelope, as does majority area.
+     */
+    @Test
+    public void testPredicates () throws Exception {
+        Collection<GeobufFeature> blocks = DcFixture.blocks().values();
+        List<Geometry> boundaries = boundaries(blocks);
+        Set<Long> centroidsInTract = null;
+
+        for (Geometry bounds : boundaries) {
+            BoundaryMask mask = new BoundaryMask(bounds);
+            Map<SpatialPredicate, Set<Long>> selected = new EnumMap<>(SpatialPredicate.class);
+
+            for (SpatialPredicate predicate : SpatialPredicate.values()) {
+                Set<Long> ids = new HashSet<>();
+                for (GeobufFeature block : blocks) {
+                    if (predicate.test(mask, block.geometry))
+                        ids.add(block.numericId);
+                }
+                selected.put(predicate, ids);
+            }
+
+            Set<Long> intersects = selected.get(SpatialPredicate.INTERSECTS);
+            assertTrue(intersects.containsAll(selected.get(SpatialPredicate.CENTROID_WITHIN)));
+            assertTrue(intersects.containsAll(selected.get(SpatialPredicate.MAJORITY_AREA)));
+            assertTrue(selected.get(SpatialPredicate.ENVELOPE).containsAll(intersects));
+
+            if (bounds == boundaries.get(1))
+                centroidsInTract = selected.get(SpatialPredicate.CENTROID_WITHIN);
+        }
+
+        // and extracts use the predicate they are given
+        SeamlessSource source = DcFixture.source();
+        assertEquals(centroidsInTract,
+                source.extract(boundaries.get(1), false, SpatialPredicate.CENTROID_WITHIN).keySet());
+    }
+
+    /**
+     * @return boundaries to extract DC blocks with: a rectangle in NW DC, one tract, the tracts of a corner of the
+     * city, and all of DC, as unions of the given blocks
+     */
+    private static List<Geometry> boundaries (Collection<GeobufFeature> blocks) {
+        List<Geometry> tract = new ArrayList<>(), corner = new ArrayList<>(), all = new ArrayList<>();
+
+        for (GeobufFeature block : blocks) {
+            long t = block.numericId / 10000;
+
+            if (t == 11001001402L)
+                tract.add(block.geometry);
+
+            if (t / 100 == 110010011L || t / 100 == 110010014L)
+                corner.add(block.geometry);
+
+            all.add(block.geometry);
+        }
+
+        return Arrays.asList(DcFixture.NORTHWEST, UnaryUnionOp.union(tract), UnaryUnionOp.union(corner),
+                UnaryUnionOp.union(all));
+    }
+
+    /** @return the number of tiles at the given zoom level in an envelope */
+    private static long envelopeTiles (Envelope env, int zoom) {
+        long width = ShapeDataStore.lon2tile(env.getMaxX(), zoom) - ShapeDataStore.lon2tile(env.getMinX(), zoom) + 1;
+        long height = ShapeDataStore.lat2tile(env.getMinY(), zoom) - ShapeDataStore.lat2tile(env.getMaxY(), zoom) + 1;
+        return width * height;
+    }
+}
@@ -0,0 +1,49 @@
+package com.conveyal.data.census;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
+
+import static com.conveyal.data.census.BoundaryMask.Location.EDGE;
+import static com.conveyal.data.census.BoundaryMask.Location.INSIDE;
+import static com.conveyal.data.census.BoundaryMask.Location.OUTSIDE;
+
+/**
+ * Test that envelopes are located correctly relative to a rasterized boundary.
+ */
+public class BoundaryMaskTest extends TestCase {
+    private static final GeometryFactory gf = new GeometryFactory();
+
+    private static LinearRing ring (double west, double south, double east, double north) {
+        return gf.createLinearRing(new Coordinate[] {
+                new Coordinate(west, north),
+                new Coordinate(east, north),
+                new Coordinate(east, south),
+                new Coordinate(west, south),
+                new Coordinate(west, north)
+        });
+    }
+
+    @Test
+    public void testLocate () {
+        // a one degree square with a hole in the middle, on a grid of 100 by 100 cells or so
+        Polygon bounds = gf.createPolygon(ring(-77, 38, -76, 39), new LinearRing[] { ring(-76.6, 38.4, -76.4, 38.6) });
+        BoundaryMask mask = new BoundaryMask(bounds, 100);
+
+        assertEquals(INSIDE, mask.locate(new Envelope(-76.9, -76.8, 38.1, 38.2)));
+        assertEquals(OUTSIDE, mask.locate(new Envelope(-76.55, -76.45, 38.45, 38.55)));
+        assertEquals(OUTSIDE, mask.locate(new Envelope(-75.9, -75.8, 38.1, 38.2)));
+
+        // across the outer edge, the edge of the hole, and from inside to beyond the grid
+        assertEquals(EDGE, mask.locate(new Envelope(-77.05, -76.95, 38.5, 38.6)));
+        assertEquals(EDGE, mask.locate(new Envelope(-76.65, -76.55, 38.5, 38.55)));
+        assertEquals(EDGE, mask.locate(new Envelope(-76.9, -75.9, 38.1, 38.2)));
+
+        // spanning the hole, with both ends inside
+        assertEquals(EDGE, mask.locate(new Envelope(-76.7, -76.3, 38.5, 38.5)));
+    }
+}
@@ -0,0 +1,86 @@
+package com.conveyal.data.census;
+
+import com.conveyal.data.geobuf.GeobufFeature;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.locationtech.jts.geom.Geometry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The DC test data in integrationTest.zip: TIGER blocks and LODES jobs and workforce data for one small state. Tests
+ * that only read tiles share one load of it with the default options.
+ */
+class DcFixture {
+    /** number of blocks in DC */
+    static final int BLOCKS = 6507;
+
+    /** number of tracts in DC */
+    static final int TRACTS = 179;
+
+    /** a rectangle around all of DC */
+    static final Geometry DC = SeamlessSource.rectangle(39.0, -76.9, 38.78, -77.13);
+
+    /** the rectangle that IntegrationTest extracts, in NW DC and crossing into Maryland */
+    static final Geometry NORTHWEST = SeamlessSource.rectangle(38.9872, -77.0378, 38.9218, -77.1086);
+
+    /** directory the DC data has been loaded into with the default options */
+    private static File loaded;
+
+    /** every block in DC, read from the shared load */
+    private static Map<Long, GeobufFeature> blocks;
+
+    /** @return the directory the DC data has been loaded into with the default options, which is only done once */
+    static synchronized File load () throws Exception {
+        if (loaded == null) {
+            File dir = unzip();
+            CensusLoader.main(dir.getAbsolutePath());
+            loaded = dir;
+        }
+
+        return loaded;
+    }
+
+    /** @return a source reading the tiles of the shared load */
+    static SeamlessSource source () throws Exception {
+        return new FileSeamlessSource(new File(load(), "tiles").getAbsolutePath());
+    }
+
+    /** @return every block in DC from the shared load, which must not be modified */
+    static synchronized Map<Long, GeobufFeature> blocks () throws Exception {
+        if (blocks == null)
+            blocks = Collections.unmodifiableMap(source().extract(DC, false));
+
+        return blocks;
+    }
+
+    /** Unzip the DC data into a new temporary directory, with tiger, jobs and workforce subdirectories */
+    static File unzip () throws IOException {
+        File dir = Files.createTempDir();
+
+        InputStream zip = DcFixture.class.getResourceAsStream("integrationTest.zip");
+
+        try (ZipInputStream zis = new ZipInputStream(zip)) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (entry.isDirectory())
+                    continue;
+
+                File out = new File(dir, entry.getName());
+                out.getParentFile().mkdirs();
+                FileOutputStream fos = new FileOutputStream(out);
+                ByteStreams.copy(zis, fos);
+                fos.close();
+            }
+        }
+
+        return dir;
+    }
+}
@@ -0,0 +1,48 @@
+package com.conveyal.data.census;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test that the external sorter returns records in order, both in memory and when spilling to disk.
+ */
+public class ExternalSorterTest extends TestCase {
+    @Test
+    public void testInMemory () throws Exception {
+        check(Long.MAX_VALUE);
+    }
+
+    /** use a tiny buffer so that there are many runs to merge */
+    @Test
+    public void testSpill () throws Exception {
+        check(10000);
+    }
+
+    private void check (long bufferBytes) throws Exception {
+        Random random = new Random(42);
+        ExternalSorter sorter = new ExternalSorter(bufferBytes);
+
+        long[] expected = new long[50000];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = random.nextLong() >>> 1;
+            sorter.add(expected[i], Long.toString(expected[i]).getBytes());
+        }
+
+        Arrays.sort(expected);
+
+        int i = 0;
+        try (ExternalSorter.Cursor cursor = sorter.sorted()) {
+            while (cursor.next()) {
+                assertEquals(expected[i], cursor.key());
+                // payloads must travel with their keys
+                assertEquals(Long.toString(expected[i]), new String(cursor.payload()));
+                i++;
+            }
+        }
+
+        assertEquals(expected.length, i);
+    }
+}
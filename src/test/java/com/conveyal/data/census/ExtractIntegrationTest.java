@@ -0,0 +1,237 @@
+package com.conveyal.data.census;
+
+import com.conveyal.data.geobuf.GeobufDecoder;
+import com.conveyal.data.geobuf.GeobufFeature;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateFilter;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Test the ways of extracting blocks against the DC data: by GEOID, by boundary file, along a corridor and clipped.
+ */
+public class ExtractIntegrationTest extends TestCase {
+    private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+    /** extracting by GEOID prefix finds every block in the county or tract, and nothing else */
+    @Test
+    public void testPrefixExtract () throws Exception {
+        SeamlessSource source = DcFixture.source();
+
+        Map<Long, GeobufFeature> county =
+                source.extract(Collections.singletonList("11001"), false, GeographyLevel.BLOCK);
+        assertEquals(DcFixture.BLOCKS, county.size());
+        assertTrue(county.containsKey(110010014023009L));
+
+        for (long geoid : county.keySet()) {
+            assertEquals(11001L, geoid / 10_000_000_000L);
+        }
+
+        // the same blocks as a geographic extract of all of DC
+        assertEquals(DcFixture.blocks().keySet(), county.keySet());
+
+        Map<Long, GeobufFeature> tract =
+                source.extract(Collections.singletonList("11001001402"), false, GeographyLevel.BLOCK);
+        assertTrue(tract.containsKey(110010014023009L));
+
+        for (long geoid : county.keySet()) {
+            assertEquals(geoid / 10000 == 11001001402L, tract.containsKey(geoid));
+        }
+    }
+
+    /** fetching blocks by GEOID returns the same blocks as a geographic extract, and leaves out unknown GEOIDs */
+    @Test
+    public void testGetByIds () throws Exception {
+        Map<Long, GeobufFeature> dc = DcFixture.blocks();
+
+        // every fiftieth block in DC and a random block in NW DC, which all exist
+        List<Long> ids = new ArrayList<>(new TreeSet<>(dc.keySet()));
+        Set<Long> existing = new TreeSet<>();
+        for (int i = 0; i < ids.size(); i += 50) {
+            existing.add(ids.get(i));
+        }
+        existing.add(110010014023009L);
+
+        // and blocks in DC and in Maryland that do not
+        long[] wanted = new long[existing.size() + 2];
+        int n = 0;
+        for (long id : existing) {
+            wanted[n++] = id;
+        }
+        wanted[n++] = 110019999999999L;
+        wanted[n] = 240317001001000L;
+
+        Map<Long, GeobufFeature> fetched = DcFixture.source().getByIds(wanted);
+
+        assertEquals(existing, fetched.keySet());
+
+        for (long id : existing) {
+            GeobufFeature feature = fetched.get(id);
+            assertTrue(feature.geometry.equalsExact(dc.get(id).geometry));
+            assertEquals(dc.get(id).properties, feature.properties);
+        }
+    }
+
+    /** a boundary file with several features extracts the blocks in any of them */
+    @Test
+    public void testBoundaryFile () throws Exception {
+        File dir = DcFixture.load();
+
+        // Dupont Circle and Anacostia, which are far enough apart to touch different tiles at some zoom levels
+        File boundary = new File(dir, "boundary.geojson");
+        try (Writer w = new FileWriter(boundary)) {
+            w.write("{\"type\": \"FeatureCollection\", \"features\": [" +
+                    rectangleFeature(38.92, -77.03, 38.90, -77.05) + ", " +
+                    rectangleFeature(38.88, -76.98, 38.86, -77.00) + "]}");
+        }
+
+        File out = new File(dir, "boundary.pbf");
+        CensusExtractor.main(new File(dir, "tiles").getAbsolutePath(), boundary.getAbsolutePath(),
+                out.getAbsolutePath());
+
+        SeamlessSource source = DcFixture.source();
+        Set<Long> expected = new HashSet<>(source.extract(38.92, -77.03, 38.90, -77.05, false).keySet());
+        Set<Long> second = source.extract(38.88, -76.98, 38.86, -77.00, false).keySet();
+        assertFalse(second.isEmpty());
+        assertFalse(expected.containsAll(second));
+        expected.addAll(second);
+
+        assertEquals(expected, decode(out).keySet());
+    }
+
+    /** a corridor extract has the blocks within the buffer distance of the route, and no others */
+    @Test
+    public void testCorridor () throws Exception {
+        // diagonally across DC, from Georgetown to Capitol Hill
+        Geometry route = geometryFactory.createLineString(new Coordinate[] {
+                new Coordinate(-77.065, 38.905),
+                new Coordinate(-77.036, 38.899),
+                new Coordinate(-76.990, 38.887)
+        });
+
+        Map<Long, GeobufFeature> corridor = DcFixture.source().extractCorridor(route, 200, false);
+        assertFalse(corridor.isEmpty());
+
+        Geometry projectedRoute = project(route);
+
+        for (GeobufFeature block : DcFixture.blocks().values()) {
+            double meters = project(block.geometry).distance(projectedRoute) * SeamlessSource.METERS_PER_DEGREE;
+
+            // allow a couple of meters either way for the polygonal buffer and the projections
+            if (meters < 198)
+                assertTrue(Long.toString(block.numericId), corridor.containsKey(block.numericId));
+            else if (meters > 202)
+                assertFalse(Long.toString(block.numericId), corridor.containsKey(block.numericId));
+        }
+    }
+
+    /**
+     * Clipped extracts have every block with area in the bounds, with the fraction of its area inside them; blocks the
+     * mask shows are inside are not clipped at all, and the clipped blocks cover the part of the bounds in DC.
+     */
+    @Test
+    public void testClipped () throws Exception {
+        SeamlessSource source = DcFixture.source();
+
+        // downtown, entirely inside DC, so the blocks cover all of it
+        Geometry downtown = SeamlessSource.rectangle(38.93, -77.00, 38.89, -77.04);
+        checkClipped(source, downtown, downtown.getArea());
+
+        // crossing into Maryland
+        Geometry northwest = DcFixture.NORTHWEST;
+        List<Geometry> blocks = new ArrayList<>();
+        for (GeobufFeature block : source.extract(northwest, false).values()) {
+            blocks.add(block.geometry);
+        }
+
+        double inDc = northwest.intersection(UnaryUnionOp.union(blocks)).getArea();
+        assertTrue(inDc < northwest.getArea());
+        checkClipped(source, northwest, inDc);
+    }
+
+    /** Check a clipped extract of the given bounds, the area of which covered by blocks is given */
+    private static void checkClipped (SeamlessSource source, Geometry bounds, double coveredArea) throws IOException {
+        BoundaryMask mask = new BoundaryMask(bounds);
+        Map<Long, GeobufFeature> clipped = source.extractClipped(bounds, false);
+        Map<Long, GeobufFeature> intersecting = source.extract(bounds, false);
+
+        double area = 0;
+        int inside = 0;
+
+        for (GeobufFeature block : intersecting.values()) {
+            GeobufFeature clippedBlock = clipped.get(block.numericId);
+
+            if (clippedBlock == null) {
+                // only blocks that touch the bounds are left out
+                assertEquals(0, bounds.intersection(block.geometry).getArea(), 0);
+                continue;
+            }
+
+            double fraction = ((Number) clippedBlock.properties.get(SeamlessSource.AREA_FRACTION)).doubleValue();
+            assertTrue(fraction > 0 && fraction <= 1);
+
+            if (mask.locate(block.geometry.getEnvelopeInternal()) == BoundaryMask.Location.INSIDE) {
+                assertEquals(1.0, fraction);
+                assertTrue(clippedBlock.geometry.equalsExact(block.geometry));
+                inside++;
+            } else {
+                assertEquals(Math.min(clippedBlock.geometry.getArea() / block.geometry.getArea(), 1), fraction, 1e-9);
+            }
+
+            area += clippedBlock.geometry.getArea();
+        }
+
+        assertTrue(intersecting.keySet().containsAll(clipped.keySet()));
+        assertTrue(inside > 0);
+        assertEquals(coveredArea, area, coveredArea * 0.001);
+    }
+
+    /** @return a copy of a geometry in an equirectangular projection at the latitude of DC, still in degrees */
+    private static Geometry project (Geometry geom) {
+        double cos = Math.cos(Math.toRadians(38.9));
+        Geometry projected = geom.copy();
+        projected.apply((CoordinateFilter) c -> c.x *= cos);
+        projected.geometryChanged();
+        return projected;
+    }
+
+    /** @return a GeoJSON feature with a rectangular polygon geometry */
+    private static String rectangleFeature (double north, double east, double south, double west) {
+        return String.format("{\"type\": \"Feature\", \"properties\": {}, \"geometry\": {\"type\": \"Polygon\", " +
+                "\"coordinates\": [[[%s, %s], [%s, %s], [%s, %s], [%s, %s], [%s, %s]]]}}",
+                west, north, east, north, east, south, west, south, west, north);
+    }
+
+    /** @return the features in a geobuf file */
+    private static Map<Long, GeobufFeature> decode (File file) throws IOException {
+        Map<Long, GeobufFeature> ret = new HashMap<>();
+
+        try (InputStream is = new FileInputStream(file)) {
+            GeobufDecoder decoder = new GeobufDecoder(is);
+            while (decoder.hasNext()) {
+                GeobufFeature feature = decoder.next();
+                ret.put(feature.numericId, feature);
+            }
+        }
+
+        return ret;
+    }
+}
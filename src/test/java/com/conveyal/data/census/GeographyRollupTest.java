@@ -0,0 +1,81 @@
+package com.conveyal.data.census;
+
+import com.conveyal.data.geobuf.GeobufFeature;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test rolling blocks up into coarser units.
+ */
+public class GeographyRollupTest extends TestCase {
+    private static final GeometryFactory gf = new GeometryFactory();
+
+    @Test
+    public void testLevels () {
+        long block = 110010001001000L;
+
+        assertEquals(110010001001L, GeographyLevel.BLOCK_GROUP.of(block, GeographyLevel.BLOCK));
+        assertEquals(11001000100L, GeographyLevel.TRACT.of(block, GeographyLevel.BLOCK));
+        assertEquals(11001L, GeographyLevel.COUNTY.of(110010001001L, GeographyLevel.BLOCK_GROUP));
+
+        assertEquals(11, GeographyLevel.TRACT.state(11001000100L));
+        assertEquals(GeoidTileIndex.state(block), GeographyLevel.BLOCK.state(block));
+        assertEquals(110010001000000L, GeographyLevel.TRACT.firstBlock(11001000100L));
+
+        assertEquals(GeographyLevel.BLOCK_GROUP, GeographyLevel.fromKey("block-group"));
+    }
+
+    @Test
+    public void testDissolve () {
+        GeobufFeature west = block(110010001001000L, 0, 10, 5);
+        GeobufFeature east = block(110010001001001L, 1, 3, 2.5);
+
+        GeobufFeature rollup = GeographyRollup.dissolve(110010001001L, Arrays.asList(west, east));
+
+        assertEquals(110010001001L, rollup.numericId);
+        assertEquals(13, rollup.properties.get("Jobs total"));
+        assertEquals(7.5, rollup.properties.get("Share"));
+
+        // the blocks share an edge, so they dissolve into a single polygon with the area of both
+        assertTrue(rollup.geometry instanceof Polygon);
+        assertEquals(2, rollup.geometry.getArea(), 1e-9);
+    }
+
+    /** creation dates are not counts, so a rollup gets the latest rather than the sum */
+    @Test
+    public void testCreationDate () {
+        GeobufFeature west = block(110010001001000L, 0, 10, 5);
+        GeobufFeature east = block(110010001001001L, 1, 3, 2.5);
+        west.properties.put("Jobs Data creation date", 20190830);
+        east.properties.put("Jobs Data creation date", 20200115);
+
+        Map<String, Object> sums = GeographyRollup.sum(Arrays.asList(west, east));
+
+        assertEquals(20200115, sums.get("Jobs Data creation date"));
+        assertEquals(13, sums.get("Jobs total"));
+    }
+
+    /** create a unit square block with its west edge at the given longitude */
+    private static GeobufFeature block (long geoid, double x, int jobs, double share) {
+        GeobufFeature feature = new GeobufFeature();
+        feature.numericId = geoid;
+        feature.geometry = gf.createPolygon(new Coordinate[] {
+                new Coordinate(x, 0),
+                new Coordinate(x + 1, 0),
+                new Coordinate(x + 1, 1),
+                new Coordinate(x, 1),
+                new Coordinate(x, 0)
+        });
+        feature.properties = new HashMap<>();
+        feature.properties.put("Jobs total", jobs);
+        feature.properties.put("Share", share);
+        return feature;
+    }
+}
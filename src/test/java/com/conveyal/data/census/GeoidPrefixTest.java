@@ -0,0 +1,44 @@
+package com.conveyal.data.census;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Test selecting units by GEOID prefix.
+ */
+public class GeoidPrefixTest extends TestCase {
+    @Test
+    public void testMatches () {
+        // California, with a leading zero
+        GeoidPrefix california = GeoidPrefix.parse("06");
+        assertTrue(california.matches(60372073011000L, GeographyLevel.BLOCK));
+        assertTrue(california.matches(6037, GeographyLevel.COUNTY));
+        assertFalse(california.matches(410510001001000L, GeographyLevel.BLOCK));
+        assertEquals("06", california.toString());
+
+        GeoidPrefix tract = GeoidPrefix.parse("11001000100");
+        assertTrue(tract.matches(110010001001000L, GeographyLevel.BLOCK));
+        assertTrue(tract.matches(110010001001L, GeographyLevel.BLOCK_GROUP));
+        assertFalse(tract.matches(110010001011000L, GeographyLevel.BLOCK));
+
+        try {
+            tract.matches(11001, GeographyLevel.COUNTY);
+            fail("tract prefix should not apply to counties");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIndex () {
+        GeoidTileIndex index = new GeoidTileIndex();
+        index.add(60372073011000L, 1, 2);
+        index.add(60590001001000L, 3, 4);
+        index.add(410510001001000L, 5, 6);
+
+        assertEquals(2, index.tilesForPrefix(GeoidPrefix.parse("06")).size());
+        assertTrue(index.tilesForPrefix(GeoidPrefix.parse("06037207301")).contains(GeoidTileIndex.packTile(1, 2)));
+        assertEquals(1, index.tilesForPrefix(GeoidPrefix.parse("06037207301")).size());
+        assertEquals(0, index.tilesForPrefix(GeoidPrefix.parse("11")).size());
+    }
+}
@@ -0,0 +1,94 @@
+package com.conveyal.data.census;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Test that packed tiles of every layer survive a round trip through their tile keys, as the layers share the bits of
+ * a packed tile.
+ */
+public class GeoidTileIndexTest extends TestCase {
+    /** the largest coordinates of each zoom level, so that every coordinate bit is set */
+    private static final int MAX = (1 << ShapeDataStore.ZOOM_LEVEL) - 1;
+
+    @Test
+    public void testMainLayer () {
+        check(GeoidTileIndex.packTile(MAX, MAX), TileSink.tileKey(MAX, MAX));
+        check(GeoidTileIndex.packTile(0, 0), TileSink.tileKey(0, 0));
+
+        int tile = GeoidTileIndex.packTile(585, 783);
+        assertTrue(GeoidTileIndex.isMainLayer(tile));
+        assertFalse(GeoidTileIndex.isOverflow(tile));
+        assertFalse(GeoidTileIndex.isPyramid(tile));
+        assertFalse(GeoidTileIndex.isRollup(tile));
+
+        // leaves of split tiles belong to the z11 tile they were split from
+        assertEquals(tile, GeoidTileIndex.parentTile(TileSink.splitTileKey(12, 1171, 1566)));
+        assertEquals(tile, GeoidTileIndex.parentTile(TileSink.splitTileKey(14, 585 * 8 + 7, 783 * 8)));
+    }
+
+    @Test
+    public void testOverflow () {
+        int tile = GeoidTileIndex.packOverflowTile(73, 97);
+        check(tile, TileSink.overflowTileKey(73, 97));
+        assertTrue(GeoidTileIndex.isOverflow(tile));
+        assertFalse(GeoidTileIndex.isPyramid(tile));
+        assertFalse(GeoidTileIndex.isMainLayer(tile));
+        assertEquals(GeographyLevel.BLOCK, GeoidTileIndex.level(tile));
+    }
+
+    @Test
+    public void testPyramid () {
+        for (int zoom = 0; zoom < ShapeDataStore.ZOOM_LEVEL; zoom++) {
+            int max = (1 << zoom) - 1;
+            int tile = GeoidTileIndex.packPyramidTile(zoom, max, max);
+            check(tile, TileSink.pyramidTileKey(zoom, max, max));
+
+            assertEquals(zoom, GeoidTileIndex.pyramidZoom(tile));
+            assertTrue(GeoidTileIndex.isPyramid(tile));
+            assertFalse(GeoidTileIndex.isOverflow(tile));
+            assertFalse(GeoidTileIndex.isRollup(tile));
+            assertFalse(GeoidTileIndex.isMainLayer(tile));
+        }
+
+        // leaves of a split pyramid tile belong to the tile that was split
+        int tile = GeoidTileIndex.packPyramidTile(8, 73, 97);
+        assertEquals(tile, GeoidTileIndex.parentTile(TileSink.pyramidSplitTileKey(8, 10, 73 * 4 + 3, 97 * 4)));
+    }
+
+    @Test
+    public void testRollup () {
+        for (GeographyLevel level : GeographyLevel.values()) {
+            if (level == GeographyLevel.BLOCK)
+                continue;
+
+            int max = (1 << level.zoom) - 1;
+            int tile = GeoidTileIndex.packRollupTile(level, max, max);
+            check(tile, TileSink.rollupTileKey(level, max, max));
+
+            assertEquals(level, GeoidTileIndex.level(tile));
+            assertTrue(GeoidTileIndex.isRollup(tile));
+            assertFalse(GeoidTileIndex.isPyramid(tile));
+            assertFalse(GeoidTileIndex.isOverflow(tile));
+            assertFalse(GeoidTileIndex.isMainLayer(tile));
+        }
+    }
+
+    /** packed tiles must fit in the bits the tile sort key leaves for them, and stay positive */
+    @Test
+    public void testBits () {
+        int tile = GeoidTileIndex.packPyramidTile(ShapeDataStore.ZOOM_LEVEL - 1, MAX >> 1, MAX >> 1);
+        assertTrue(tile > 0);
+        assertEquals(0, tile >>> GeoidTileIndex.PACKED_TILE_BITS);
+
+        tile = GeoidTileIndex.packRollupTile(GeographyLevel.values()[GeographyLevel.values().length - 1], MAX, MAX);
+        assertTrue(tile > 0);
+        assertEquals(0, tile >>> GeoidTileIndex.PACKED_TILE_BITS);
+    }
+
+    /** check that a packed tile has the given key, and that the key gives back the packed tile */
+    private static void check (int tile, String key) {
+        assertEquals(key, GeoidTileIndex.tileKey(tile));
+        assertEquals(tile, GeoidTileIndex.parentTile(key));
+    }
+}
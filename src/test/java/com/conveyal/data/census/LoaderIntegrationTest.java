@@ -0,0 +1,117 @@
+package com.conveyal.data.census;
+
+import com.conveyal.data.geobuf.GeobufFeature;
+import com.csvreader.CsvReader;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Test loading the DC data in different ways. Each test loads its own copy, as each loads it differently.
+ */
+public class LoaderIntegrationTest extends TestCase {
+    /** the bulk load builds the same store as adding the blocks one at a time */
+    @Test
+    public void testBulkLoad () throws Exception {
+        File dir = DcFixture.unzip();
+
+        List<GeobufFeature> blocks = new ArrayList<>();
+        new TigerLineSource(new File(dir, "tiger/tl_2015_11_tabblock10.shp")).read(record -> {
+            TigerLineSource.parse(record);
+            TigerLineSource.reproject(record);
+            blocks.add(record.getFeature());
+        });
+
+        assertEquals(DcFixture.BLOCKS, blocks.size());
+
+        ShapeDataStore added = new ShapeDataStore();
+        for (GeobufFeature block : blocks) {
+            added.add(block);
+        }
+
+        ShapeDataStore bulk = new ShapeDataStore();
+        bulk.beginBulkLoad();
+        for (GeobufFeature block : blocks) {
+            bulk.add(block);
+        }
+        bulk.finishBulkLoad();
+
+        for (GeobufFeature block : blocks) {
+            assertTrue(added.get(block.numericId).geometry.equalsExact(bulk.get(block.numericId).geometry));
+        }
+
+        added.close();
+        bulk.close();
+    }
+
+    /** updating a tileset with the same data it was built from rewrites no tiles and leaves the manifest as it was */
+    @Test
+    public void testUpdateUnchanged () throws Exception {
+        File dir = DcFixture.unzip();
+        CensusLoader.main(dir.getAbsolutePath());
+
+        File tiles = new File(dir, "tiles");
+        TileSink sink = new DirectoryTileSink(tiles);
+        TileManifest before = TileManifest.read(sink);
+        assertFalse(before.tiles.isEmpty());
+
+        // backdate every tile, so that any tile that is written again can be spotted
+        long backdated = 1_000_000_000_000L;
+        for (String key : before.tiles.keySet()) {
+            assertTrue(new File(tiles, key).setLastModified(backdated));
+        }
+
+        CensusLoader.main("--update", dir.getAbsolutePath());
+
+        TileManifest after = TileManifest.read(sink);
+        assertEquals(before.tiles.keySet(), after.tiles.keySet());
+
+        for (Map.Entry<String, TileManifest.Tile> e : before.tiles.entrySet()) {
+            TileManifest.Tile tile = after.tiles.get(e.getKey());
+            assertEquals(e.getValue().hash, tile.hash);
+            assertEquals(e.getValue().features, tile.features);
+            assertEquals(e.getKey(), backdated, new File(tiles, e.getKey()).lastModified());
+        }
+    }
+
+    /** the jobs in each tract of a tract rollup are the sum of the jobs in its blocks */
+    @Test
+    public void testTractRollup () throws Exception {
+        File dir = DcFixture.unzip();
+        CensusLoader.main("--rollup", "tract", dir.getAbsolutePath());
+
+        // sum the jobs in each tract straight from the workplace area characteristics
+        Map<Long, Long> expected = new HashMap<>();
+        InputStream csv = new GZIPInputStream(new FileInputStream(new File(new File(dir, "jobs"),
+                "dc_wac_S000_JT00_2013.csv.gz")));
+        CsvReader jobs = new CsvReader(new InputStreamReader(csv));
+        jobs.readHeaders();
+
+        while (jobs.readRecord()) {
+            long tract = Long.parseLong(jobs.get("w_geocode")) / 10000;
+            expected.merge(tract, Long.parseLong(jobs.get("C000")), Long::sum);
+        }
+        csv.close();
+
+        SeamlessSource source = new FileSeamlessSource(new File(dir, "tiles").getAbsolutePath());
+        Map<Long, GeobufFeature> tracts = source.extract(DcFixture.DC, false, GeographyLevel.TRACT);
+
+        assertEquals(DcFixture.TRACTS, tracts.size());
+
+        for (GeobufFeature tract : tracts.values()) {
+            // tracts with no jobs have no jobs properties
+            Number total = (Number) tract.properties.get("Jobs total");
+            assertEquals(Long.toString(tract.numericId), (long) expected.getOrDefault(tract.numericId, 0L),
+                    total == null ? 0 : total.longValue());
+        }
+    }
+}
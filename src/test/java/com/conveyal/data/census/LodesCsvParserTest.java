@@ -0,0 +1,79 @@
+package com.conveyal.data.census;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Test the byte-level LODES CSV parser, in particular rows that straddle buffer refills.
+ */
+public class LodesCsvParserTest extends TestCase {
+    @Test
+    public void testParse () throws Exception {
+        Random random = new Random(42);
+        long[][] rows = new long[100000][3];
+        StringBuilder csv = new StringBuilder("w_geocode,C000,createdate\r\n");
+
+        for (int i = 0; i < rows.length; i++) {
+            rows[i][0] = 110010001001000L + i;
+            rows[i][1] = random.nextInt(100000);
+            rows[i][2] = 20130920;
+            // mix of line endings, and no newline at the very end
+            csv.append(rows[i][0]).append(',').append(rows[i][1]).append(',').append(rows[i][2]);
+            if (i < rows.length - 1)
+                csv.append(i % 2 == 0 ? "\r\n" : "\n");
+        }
+
+        // return data in small, odd-sized chunks
+        InputStream is = new FilterInputStream(new ByteArrayInputStream(csv.toString().getBytes())) {
+            @Override
+            public int read (byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 777));
+            }
+        };
+
+        try (LodesCsvParser parser = new LodesCsvParser(is)) {
+            assertEquals(3, parser.getHeaders().length);
+            assertEquals(0, parser.getColumn("w_geocode"));
+            assertEquals(2, parser.getColumn("createdate"));
+            assertEquals(-1, parser.getColumn("h_geocode"));
+
+            int i = 0;
+            while (parser.next()) {
+                assertEquals(rows[i][0], parser.getLong(0));
+                assertEquals(rows[i][1], parser.getInt(1));
+                assertEquals(rows[i][2], parser.getInt(2));
+                i++;
+            }
+
+            assertEquals(rows.length, i);
+        }
+    }
+
+    @Test
+    public void testMalformed () throws Exception {
+        LodesCsvParser parser = new LodesCsvParser(new ByteArrayInputStream("a,b\n1,2,3\n".getBytes()));
+
+        try {
+            parser.next();
+            fail("Expected too many fields");
+        } catch (IOException e) {
+            // expected
+        }
+
+        parser = new LodesCsvParser(new ByteArrayInputStream("a,b\n1,x\n".getBytes()));
+        assertTrue(parser.next());
+
+        try {
+            parser.getInt(1);
+            fail("Expected invalid number");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.conveyal.data.census;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps tiles in memory for tests, counting how many are written.
+ */
+class MemoryTileSink implements TileSink {
+    final Map<String, byte[]> tiles = new ConcurrentHashMap<>();
+    volatile int puts = 0;
+
+    @Override
+    public synchronized void put (String key, byte[] data) {
+        tiles.put(key, data);
+        puts++;
+    }
+
+    @Override
+    public byte[] get (String key) {
+        return tiles.get(key);
+    }
+
+    @Override
+    public void delete (String key) {
+        tiles.remove(key);
+    }
+
+    @Override
+    public void close () {
+        // nothing to do
+    }
+}
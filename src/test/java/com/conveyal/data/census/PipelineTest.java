@@ -0,0 +1,82 @@
+package com.conveyal.data.census;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Test that items flow through chained stages, and that a failure in a downstream stage, or an Error in any stage,
+ * reaches the caller.
+ */
+public class PipelineTest extends TestCase {
+    @Test
+    public void testChainedStages () throws Exception {
+        Set<Integer> out = ConcurrentHashMap.newKeySet();
+
+        try (Pipeline pipeline = new Pipeline("test", 60)) {
+            Stage<Integer> last = pipeline.stage("last", 1, 2, out::add);
+            Stage<Integer> first = pipeline.stage("first", 4, 2, i -> last.put(i * 2));
+
+            for (int i = 0; i < 1000; i++) {
+                first.put(i);
+            }
+
+            first.finish();
+            last.finish();
+
+            assertEquals(1000, first.getProcessed());
+            assertEquals(1000, last.getProcessed());
+        }
+
+        assertEquals(1000, out.size());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(out.contains(i * 2));
+        }
+    }
+
+    @Test
+    public void testFailure () throws Exception {
+        try (Pipeline pipeline = new Pipeline("test", 60)) {
+            Stage<Integer> last = pipeline.stage("last", 1, 2, i -> {
+                if (i == 500)
+                    throw new IllegalStateException("failed");
+            });
+            Stage<Integer> first = pipeline.stage("first", 4, 2, last::put);
+
+            try {
+                // the producer must not block forever once the pipeline has failed
+                for (int i = 0; i < 100000; i++) {
+                    first.put(i);
+                }
+                first.finish();
+                last.finish();
+                fail("Expected failure");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testError () throws Exception {
+        try (Pipeline pipeline = new Pipeline("test", 60)) {
+            Stage<Integer> stage = pipeline.stage("stage", 2, 2, i -> {
+                throw new OutOfMemoryError("test");
+            });
+
+            try {
+                // once every worker has died the queue is never drained, so this would hang if the Error were lost
+                for (int i = 0; i < 100000; i++) {
+                    stage.put(i);
+                }
+                stage.finish();
+                fail("Expected failure");
+            } catch (OutOfMemoryError e) {
+                assertEquals("test", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.conveyal.data.census;
+
+import com.conveyal.data.geobuf.GeobufFeature;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+
+import java.util.HashMap;
+
+/**
+ * Test that features survive a round trip through the quantized serializer.
+ */
+public class QuantizedFeatureSerializerTest extends TestCase {
+    private static final GeometryFactory gf = new GeometryFactory();
+
+    @Test
+    public void testRoundTrip () throws Exception {
+        LinearRing shell = gf.createLinearRing(new Coordinate[] {
+                new Coordinate(-77.123456789, 38.987654321),
+                new Coordinate(-77.113456789, 38.987654321),
+                new Coordinate(-77.113456789, 38.977654321),
+                new Coordinate(-77.123456789, 38.977654321),
+                new Coordinate(-77.123456789, 38.987654321)
+        });
+        LinearRing hole = gf.createLinearRing(new Coordinate[] {
+                new Coordinate(-77.120000001, 38.985),
+                new Coordinate(-77.115, 38.985),
+                new Coordinate(-77.115, 38.98),
+                new Coordinate(-77.120000001, 38.985)
+        });
+        Polygon withHole = gf.createPolygon(shell, new LinearRing[] { hole });
+        Polygon square = gf.createPolygon(new Coordinate[] {
+                new Coordinate(-77.1, 38.9),
+                new Coordinate(-77.0, 38.9),
+                new Coordinate(-77.0, 39.0),
+                new Coordinate(-77.1, 38.9)
+        });
+
+        GeobufFeature feature = new GeobufFeature();
+        feature.numericId = 110010001001000L;
+        feature.geometry = gf.createMultiPolygon(new Polygon[] { withHole, square });
+        feature.properties = new HashMap<>();
+        feature.properties.put("Jobs total", 42);
+        feature.properties.put("Workers total", 0);
+
+        QuantizedFeatureSerializer serializer = new QuantizedFeatureSerializer(7);
+        GeobufFeature out = serializer.fromBytes(serializer.toBytes(feature));
+
+        assertEquals(feature.numericId, out.numericId);
+        assertNull(out.id);
+        assertEquals(feature.properties, out.properties);
+
+        assertTrue(out.geometry instanceof MultiPolygon);
+        assertEquals(2, out.geometry.getNumGeometries());
+        assertEquals(1, ((Polygon) out.geometry.getGeometryN(0)).getNumInteriorRing());
+
+        Coordinate[] expected = feature.geometry.getCoordinates();
+        Coordinate[] actual = out.geometry.getCoordinates();
+        assertEquals(expected.length, actual.length);
+
+        for (int i = 0; i < expected.length; i++) {
+            // within a unit in the last decimal place
+            assertEquals(expected[i].x, actual[i].x, 1e-7);
+            assertEquals(expected[i].y, actual[i].y, 1e-7);
+        }
+
+        // rings are still closed
+        assertTrue(out.geometry.isValid());
+    }
+
+    /** at the default precision coordinates come back with the 12 decimal places tiles have always been written with */
+    @Test
+    public void testDefaultPrecision () throws Exception {
+        GeobufFeature feature = new GeobufFeature();
+        feature.numericId = 110010001001000L;
+        feature.geometry = gf.createLineString(new Coordinate[] {
+                new Coordinate(-179.123456789012, 38.987654321098),
+                new Coordinate(-77.000000000001, -89.999999999999)
+        });
+        feature.properties = new HashMap<>();
+
+        QuantizedFeatureSerializer serializer = new QuantizedFeatureSerializer(ShapeDataStore.DEFAULT_PRECISION);
+        GeobufFeature out = serializer.fromBytes(serializer.toBytes(feature));
+
+        Coordinate[] expected = feature.geometry.getCoordinates();
+        Coordinate[] actual = out.geometry.getCoordinates();
+
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].x, actual[i].x, 1e-12);
+            assertEquals(expected[i].y, actual[i].y, 1e-12);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.conveyal.data.census;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.google.common.io.ByteStreams;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test the S3 upload pipeline against an in-memory stand-in for S3.
+ */
+public class S3TileSinkTest extends TestCase {
+    /** uploads that fail transiently should be retried until they succeed */
+    @Test
+    public void testRetries () throws Exception {
+        FlakyS3 s3 = new FlakyS3(503);
+        S3TileSink sink = new S3TileSink(s3, "bucket", 8, 1024);
+
+        for (int i = 0; i < 100; i++) {
+            sink.put(TileSink.tileKey(i, i), data(i));
+        }
+
+        sink.close();
+
+        assertEquals(100, s3.objects.size());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(Arrays.equals(data(i), s3.objects.get(TileSink.tileKey(i, i))));
+        }
+    }
+
+    /** uploads that fail permanently should fail the whole write */
+    @Test
+    public void testPermanentFailure () throws Exception {
+        S3TileSink sink = new S3TileSink(new FlakyS3(403), "bucket", 8, 1024);
+        sink.put(TileSink.tileKey(1, 1), data(1));
+
+        try {
+            sink.close();
+            fail("Expected upload failure");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] data (int i) {
+        byte[] data = new byte[100 + i];
+        Arrays.fill(data, (byte) i);
+        return data;
+    }
+
+    /** Fails the first two uploads of every key with the given status code */
+    private static class FlakyS3 extends AbstractAmazonS3 {
+        private final int status;
+        final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        private final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+
+        FlakyS3 (int status) {
+            this.status = status;
+        }
+
+        @Override
+        public PutObjectResult putObject (PutObjectRequest req) {
+            if (attempts.computeIfAbsent(req.getKey(), k -> new AtomicInteger()).incrementAndGet() <= 2) {
+                AmazonServiceException e = new AmazonServiceException("Slow down");
+                e.setStatusCode(status);
+                throw e;
+            }
+
+            try {
+                byte[] data = ByteStreams.toByteArray(req.getInputStream());
+                // content length must be known up front
+                assertEquals(data.length, req.getMetadata().getContentLength());
+                objects.put(req.getKey(), data);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            return new PutObjectResult();
+        }
+    }
+}
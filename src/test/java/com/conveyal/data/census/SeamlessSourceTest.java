@@ -0,0 +1,125 @@
+package com.conveyal.data.census;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Test that extracts only read what they need from a tileset.
+ */
+public class SeamlessSourceTest extends TestCase {
+    /** the manifest of a national tileset is large, and is only needed to enforce a limit on the size of extracts */
+    @Test
+    public void testManifestOnlyReadWithLimit () throws Exception {
+        Geometry bounds = SeamlessSource.rectangle(38.9872, -77.0378, 38.9218, -77.1086);
+
+        RecordingSource source = new RecordingSource();
+        source.extract(bounds, false);
+        assertEquals(GeographyLevel.BLOCK, source.plan(bounds, GeographyLevel.BLOCK).level);
+        assertFalse(source.keys.contains(TileManifest.KEY));
+        // but the tiles were read
+        assertTrue(source.keys.contains(TileSink.tileKey(585, 783)));
+
+        source = new RecordingSource(1000);
+        source.extract(bounds, false);
+        assertTrue(source.keys.contains(TileManifest.KEY));
+
+        source = new RecordingSource(1000);
+        source.plan(bounds, GeographyLevel.BLOCK);
+        assertTrue(source.keys.contains(TileManifest.KEY));
+    }
+
+    /** an extract at the level plan() chooses is not then refused as too large */
+    @Test
+    public void testPlanNearLimit () throws Exception {
+        // small bounds on the edge between two z11 tiles, which have 900 blocks each
+        Geometry bounds = SeamlessSource.rectangle(38.95, -76.98, 38.94, -77.01);
+
+        TileManifest manifest = new TileManifest();
+        manifest.tiles.put(TileSink.tileKey(585, 783), new TileManifest.Tile("a", 900));
+        manifest.tiles.put(TileSink.tileKey(586, 783), new TileManifest.Tile("b", 900));
+
+        // just enough for every block in the tiles that are read
+        RecordingSource source = new RecordingSource(1800);
+        manifest.write(source.sink);
+
+        assertEquals(1800, source.estimate(bounds, GeographyLevel.BLOCK));
+        assertEquals(GeographyLevel.BLOCK, source.plan(bounds, GeographyLevel.BLOCK).level);
+        source.extract(bounds, false);
+        assertTrue(source.keys.contains(TileSink.tileKey(586, 783)));
+
+        // one fewer is refused by both
+        source = new RecordingSource(1799);
+        manifest.write(source.sink);
+
+        try {
+            source.plan(bounds, GeographyLevel.BLOCK);
+            fail("Expected plan to refuse the extract");
+        } catch (ExtractTooLargeException e) {
+            // expected
+        }
+
+        try {
+            source.extract(bounds, false);
+            fail("Expected extract to be refused");
+        } catch (ExtractTooLargeException e) {
+            // expected
+        }
+    }
+
+    /** every vertex of a corridor is the buffer distance from the route, once projected back to degrees */
+    @Test
+    public void testCorridor () {
+        // a diagonal route across DC
+        Coordinate a = new Coordinate(-77.1, 38.85), b = new Coordinate(-77.0, 38.95);
+        Geometry route = new GeometryFactory().createLineString(new Coordinate[] { a, b });
+
+        Geometry corridor = SeamlessSource.corridor(route, 500);
+
+        assertTrue(corridor.getCoordinates().length > 8);
+
+        for (Coordinate c : corridor.getCoordinates()) {
+            assertEquals(500, meters(c, a, b), 5);
+        }
+    }
+
+    /** @return the distance in meters from a point to a segment, in an equirectangular projection at the point */
+    private static double meters (Coordinate p, Coordinate a, Coordinate b) {
+        double cos = Math.cos(Math.toRadians(p.y));
+        double ax = (a.x - p.x) * cos, ay = a.y - p.y, bx = (b.x - p.x) * cos, by = b.y - p.y;
+        double dx = bx - ax, dy = by - ay;
+        // the fraction of the way along the segment of the point nearest to p
+        double t = Math.max(0, Math.min(1, -(ax * dx + ay * dy) / (dx * dx + dy * dy)));
+        return Math.hypot(ax + t * dx, ay + t * dy) * SeamlessSource.METERS_PER_DEGREE;
+    }
+
+    /** An empty tileset, recording the keys that are requested */
+    private static class RecordingSource extends SeamlessSource {
+        final List<String> keys = new CopyOnWriteArrayList<>();
+
+        /** tiles and metadata to serve, none by default */
+        final MemoryTileSink sink = new MemoryTileSink();
+
+        RecordingSource () {
+            this(0);
+        }
+
+        RecordingSource (long maxFeatures) {
+            super(maxFeatures);
+        }
+
+        @Override
+        protected InputStream getInputStream (String key) {
+            keys.add(key);
+            byte[] data = sink.get(key);
+            return data != null ? new ByteArrayInputStream(data) : null;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.conveyal.data.census;
+
+import com.conveyal.data.geobuf.GeobufDecoder;
+import com.conveyal.data.geobuf.GeobufFeature;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static com.conveyal.data.census.ShapeDataStore.tile2lat;
+import static com.conveyal.data.census.ShapeDataStore.tile2lon;
+
+/**
+ * Test writing and rewriting tilesets from a store.
+ */
+public class ShapeDataStoreTest extends TestCase {
+    private static final GeometryFactory gf = new GeometryFactory();
+
+    /** a z11 tile in DC */
+    private static final int X = 585, Y = 783;
+
+    /** the leaves of a split tile that is rewritten whole, or split differently, must be removed */
+    @Test
+    public void testStaleLeaves () throws Exception {
+        File dir = Files.createTempDirectory("tiles").toFile();
+
+        // five blocks in one z11 tile, which is split into its quadrants
+        ShapeDataStore store = store();
+        store.maxTileFeatures = 2;
+        store.writeTiles(new DirectoryTileSink(dir));
+        store.close();
+
+        TilesetDescriptor descriptor = TilesetDescriptor.read(new DirectoryTileSink(dir));
+        List<String> leaves = descriptor.tileKeys(X, Y);
+        assertEquals(4, leaves.size());
+        assertFalse(new File(dir, TileSink.tileKey(X, Y)).exists());
+
+        for (String key : leaves) {
+            assertTrue(new File(dir, key).exists());
+        }
+
+        // updating DC without a limit on features writes the whole tile and removes the leaves
+        store = store();
+        store.updateTiles(new DirectoryTileSink(dir));
+        store.close();
+
+        descriptor = TilesetDescriptor.read(new DirectoryTileSink(dir));
+        assertTrue(descriptor.splits.isEmpty());
+        assertTrue(new File(dir, TileSink.tileKey(X, Y)).exists());
+
+        for (String key : leaves) {
+            assertFalse(new File(dir, key).exists());
+        }
+
+        TileManifest manifest = TileManifest.read(new DirectoryTileSink(dir));
+        assertEquals(Collections.singleton(TileSink.tileKey(X, Y)), manifest.tiles.keySet());
+
+        // writing from scratch with the limit splits it again, removing the whole tile
+        store = store();
+        store.maxTileFeatures = 2;
+        store.writeTiles(new DirectoryTileSink(dir));
+        store.close();
+
+        assertFalse(new File(dir, TileSink.tileKey(X, Y)).exists());
+
+        for (String key : leaves) {
+            assertTrue(new File(dir, key).exists());
+        }
+    }
+
+    /** a pyramid tile that would not fit in memory is written as the leaves of a quadtree instead */
+    @Test
+    public void testSplitPyramidTile () throws Exception {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        ShapeDataStore store = store();
+
+        // a 64MB budget allows 8MB for a single tile, less than this many features need, but each z5 quadrant fits
+        for (int i = 0; i < 4000; i++) {
+            store.add(feature(110010002001000L + i, ShapeDataStore.ZOOM_LEVEL, 512 + 2 * (i % 64), 768 + 2 * (i / 64)));
+        }
+
+        store.pyramid.add(TilesetDescriptor.PyramidLevel.forZoom(4));
+
+        try {
+            store.writeTiles(new DirectoryTileSink(dir));
+        } finally {
+            store.close();
+        }
+
+        TilesetDescriptor descriptor = TilesetDescriptor.read(new DirectoryTileSink(dir));
+        assertEquals(Collections.singleton(TilesetDescriptor.pyramidSplitKey(4, 4, 6)),
+                descriptor.pyramidSplits.keySet());
+        assertFalse(new File(dir, TileSink.pyramidTileKey(4, 4, 6)).exists());
+
+        List<String> leaves = descriptor.pyramidTileKeys(4, 4, 6);
+        assertEquals(4, leaves.size());
+
+        TLongSet ids = new TLongHashSet();
+
+        for (String key : leaves) {
+            File leaf = new File(dir, key);
+            assertTrue(leaf.exists());
+
+            GeobufDecoder decoder = new GeobufDecoder(new GZIPInputStream(new FileInputStream(leaf)));
+            while (decoder.hasNext()) {
+                ids.add(decoder.next().numericId);
+            }
+        }
+
+        // every feature made it into one leaf or another
+        assertEquals(4005, ids.size());
+    }
+
+    /** @return a store with two blocks in the north west quadrant of the z11 tile, and one in each of the others */
+    private static ShapeDataStore store () throws Exception {
+        ShapeDataStore store = new ShapeDataStore(new MemoryBudget(64 * 1024 * 1024));
+        int z = ShapeDataStore.ZOOM_LEVEL + 1;
+
+        store.add(feature(110010001001000L, z, X * 2, Y * 2));
+        store.add(feature(110010001001001L, z, X * 2, Y * 2));
+        store.add(feature(110010001001002L, z, X * 2 + 1, Y * 2));
+        store.add(feature(110010001001003L, z, X * 2, Y * 2 + 1));
+        store.add(feature(110010001001004L, z, X * 2 + 1, Y * 2 + 1));
+
+        return store;
+    }
+
+    /** a feature covering the middle of the given tile */
+    private static GeobufFeature feature (long id, int z, int x, int y) {
+        double width = tile2lon(x + 1, z) - tile2lon(x, z), height = tile2lat(y, z) - tile2lat(y + 1, z);
+        Envelope env = new Envelope(tile2lon(x, z) + width / 4, tile2lon(x + 1, z) - width / 4,
+                tile2lat(y + 1, z) + height / 4, tile2lat(y, z) - height / 4);
+
+        GeobufFeature feature = new GeobufFeature();
+        feature.numericId = id;
+        feature.id = Long.toString(id);
+        feature.geometry = gf.toGeometry(env);
+        feature.properties = new HashMap<>();
+        return feature;
+    }
+}
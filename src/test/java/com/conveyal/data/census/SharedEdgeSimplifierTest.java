@@ -0,0 +1,142 @@
+package com.conveyal.data.census;
+
+import com.conveyal.data.geobuf.GeobufFeature;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Test that neighbouring polygons are simplified so that they still meet exactly.
+ */
+public class SharedEdgeSimplifierTest extends TestCase {
+    private static final GeometryFactory gf = new GeometryFactory();
+
+    /** two squares sharing a wiggly edge, above a rectangle they both share an edge with */
+    @Test
+    public void testSharedEdge () throws Exception {
+        // the shared edge, from south to north
+        List<Coordinate> edge = new ArrayList<>();
+        for (int i = 0; i <= 20; i++) {
+            edge.add(new Coordinate(i == 0 || i == 20 ? 1 : 1 + 0.001 * Math.sin(i), i / 20.0));
+        }
+
+        List<Coordinate> west = new ArrayList<>();
+        west.add(new Coordinate(0, 0));
+        west.addAll(edge);
+        west.add(new Coordinate(0, 1));
+        west.add(new Coordinate(0, 0));
+
+        List<Coordinate> east = new ArrayList<>();
+        east.add(new Coordinate(1, 0));
+        east.add(new Coordinate(2, 0));
+        east.add(new Coordinate(2, 1));
+        for (int i = edge.size() - 1; i >= 0; i--) {
+            east.add(edge.get(i));
+        }
+
+        Polygon westSquare = polygon(west), eastSquare = polygon(east);
+        Polygon south = polygon(Arrays.asList(new Coordinate(0, -1), new Coordinate(2, -1), new Coordinate(2, 0),
+                new Coordinate(1, 0), new Coordinate(0, 0), new Coordinate(0, -1)));
+
+        SharedEdgeSimplifier simplifier = simplifier(westSquare, eastSquare, south);
+
+        Geometry westSimplified = simplifier.simplify(westSquare, 0.01);
+        Geometry eastSimplified = simplifier.simplify(eastSquare, 0.01);
+
+        // the wiggles are simplified away, bar the one vertex every edge keeps, the same way on both sides
+        Set<Coordinate> westEdge = near(westSimplified, 1), eastEdge = near(eastSimplified, 1);
+        assertEquals(3, westEdge.size());
+        assertEquals(westEdge, eastEdge);
+
+        // the corners where the squares meet the rectangle below are kept
+        assertTrue(westEdge.contains(new Coordinate(1, 0)));
+        assertTrue(westEdge.contains(new Coordinate(1, 1)));
+        assertTrue(near(simplifier.simplify(south, 0.01), 1).contains(new Coordinate(1, 0)));
+    }
+
+    /** a ring with no nodes is simplified the same way as the hole it fills, whichever way round it goes */
+    @Test
+    public void testIsland () throws Exception {
+        List<Coordinate> circle = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            double angle = Math.PI * 2 * i / 40, radius = 0.1 + 0.0005 * (i % 2);
+            circle.add(new Coordinate(radius * Math.cos(angle), radius * Math.sin(angle)));
+        }
+        circle.add(circle.get(0));
+
+        // the island starts somewhere else and goes the other way
+        List<Coordinate> island = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            island.add(circle.get((57 - i) % 40));
+        }
+        island.add(island.get(0));
+
+        Polygon lake = gf.createPolygon(ring(Arrays.asList(new Coordinate(-1, -1), new Coordinate(1, -1),
+                new Coordinate(1, 1), new Coordinate(-1, 1), new Coordinate(-1, -1))),
+                new LinearRing[] { ring(circle) });
+        Polygon islandPolygon = polygon(island);
+
+        SharedEdgeSimplifier simplifier = simplifier(lake, islandPolygon);
+
+        Polygon lakeSimplified = (Polygon) simplifier.simplify(lake, 0.01);
+        Polygon islandSimplified = (Polygon) simplifier.simplify(islandPolygon, 0.01);
+
+        Set<Coordinate> hole = new HashSet<>(Arrays.asList(lakeSimplified.getInteriorRingN(0).getCoordinates()));
+        Set<Coordinate> shell = new HashSet<>(Arrays.asList(islandSimplified.getExteriorRing().getCoordinates()));
+
+        assertEquals(hole, shell);
+        assertTrue(shell.size() < 40);
+    }
+
+    /** a polygon much smaller than the tolerance does not disappear */
+    @Test
+    public void testSmallPolygon () throws Exception {
+        Polygon small = polygon(Arrays.asList(new Coordinate(0, 0), new Coordinate(0.001, 0),
+                new Coordinate(0.001, 0.0005), new Coordinate(0.0005, 0.001), new Coordinate(0, 0.001),
+                new Coordinate(0, 0)));
+
+        Geometry simplified = simplifier(small).simplify(small, 1);
+
+        assertFalse(simplified.isEmpty());
+        assertTrue(simplified.getCoordinates().length >= 4);
+    }
+
+    /** @return the distinct vertices of a geometry within a thousandth of a degree of the given longitude */
+    private static Set<Coordinate> near (Geometry geometry, double x) {
+        Set<Coordinate> near = new HashSet<>();
+        for (Coordinate c : geometry.getCoordinates()) {
+            if (Math.abs(c.x - x) < 0.001)
+                near.add(c);
+        }
+        return near;
+    }
+
+    private static SharedEdgeSimplifier simplifier (Polygon... polygons) throws Exception {
+        List<GeobufFeature> features = new ArrayList<>();
+        for (Polygon polygon : polygons) {
+            GeobufFeature feature = new GeobufFeature();
+            feature.geometry = polygon;
+            features.add(feature);
+        }
+
+        return SharedEdgeSimplifier.build(features, 1024 * 1024);
+    }
+
+    private static Polygon polygon (List<Coordinate> coords) {
+        return gf.createPolygon(ring(coords), new LinearRing[0]);
+    }
+
+    private static LinearRing ring (List<Coordinate> coords) {
+        return gf.createLinearRing(coords.toArray(new Coordinate[coords.size()]));
+    }
+}
@@ -0,0 +1,94 @@
+package com.conveyal.data.census;
+
+import com.conveyal.data.geobuf.GeobufFeature;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Test pruning features with no values from sparse tilesets.
+ */
+public class SparseFilterTest extends TestCase {
+    /** with no properties given, a feature is kept if any numeric property is nonzero */
+    @Test
+    public void testAnyProperty () {
+        SparseFilter filter = new SparseFilter(Collections.emptyList());
+
+        assertTrue(filter.keep(feature(110010001001000L, "Jobs total", 0, "Workers total", 3)));
+        assertTrue(filter.keep(feature(110010001001001L, "Jobs total", 0.5)));
+        assertFalse(filter.keep(feature(110010001001002L, "Jobs total", 0, "Workers total", 0L)));
+        assertFalse(filter.keep(feature(110010001001003L, "Jobs total", 0.0, "name", "Block 1003")));
+        // no properties at all
+        assertFalse(filter.keep(feature(240010001001000L)));
+
+        assertEquals(2, filter.getKept());
+        assertEquals(3, filter.getPruned());
+    }
+
+    /** with properties given, other properties are ignored, and missing ones count as zero */
+    @Test
+    public void testSelectedProperties () {
+        SparseFilter filter = new SparseFilter(Arrays.asList("Workers total", "Jobs total"));
+
+        assertTrue(filter.keep(feature(110010001001000L, "Workers total", 3)));
+        assertFalse(filter.keep(feature(110010001001001L, "Jobs in construction", 7)));
+        assertFalse(filter.keep(feature(110010001001002L, "Jobs total", 0, "Workers total", 0)));
+
+        assertEquals(1, filter.getKept());
+        assertEquals(2, filter.getPruned());
+    }
+
+    /** the pruning survives a round trip through the manifest, including an empty list of properties */
+    @Test
+    public void testManifest () throws Exception {
+        SparseFilter selected = new SparseFilter(Arrays.asList("Workers total", "Jobs total"));
+        selected.keep(feature(110010001001000L));
+        selected.keep(feature(110010001001001L));
+        selected.keep(feature(240010001001000L, "Jobs total", 0));
+
+        // Maryland was reloaded, DC and Virginia were not
+        TileManifest.Sparse previous = new TileManifest.Sparse();
+        previous.pruned.put(11, 10L);
+        previous.pruned.put(24, 20L);
+        previous.pruned.put(51, 30L);
+
+        TileManifest.Sparse sparse = roundTrip(selected.toManifest(previous));
+        assertEquals(Arrays.asList("Jobs total", "Workers total"), sparse.properties);
+        assertEquals(3, sparse.pruned.size());
+        assertEquals(2L, (long) sparse.pruned.get(11));
+        assertEquals(1L, (long) sparse.pruned.get(24));
+        assertEquals(30L, (long) sparse.pruned.get(51));
+
+        SparseFilter any = new SparseFilter(Collections.emptyList());
+        any.keep(feature(110010001001000L, "Jobs total", 1));
+
+        sparse = roundTrip(any.toManifest(null));
+        assertNotNull(sparse.properties);
+        assertTrue(sparse.properties.isEmpty());
+        assertTrue(sparse.pruned.isEmpty());
+    }
+
+    private static TileManifest.Sparse roundTrip (TileManifest.Sparse sparse) throws Exception {
+        TileManifest manifest = new TileManifest();
+        manifest.sparse = sparse;
+
+        MemoryTileSink sink = new MemoryTileSink();
+        manifest.write(sink);
+        return TileManifest.read(sink).sparse;
+    }
+
+    private static GeobufFeature feature (long geoid, Object... properties) {
+        GeobufFeature feature = new GeobufFeature();
+        feature.numericId = geoid;
+        feature.properties = new HashMap<>();
+
+        for (int i = 0; i < properties.length; i += 2) {
+            feature.properties.put((String) properties[i], properties[i + 1]);
+        }
+
+        return feature;
+    }
+}
@@ -0,0 +1,54 @@
+package com.conveyal.data.census;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+
+/**
+ * Test that the spatial predicates select the features they should near the edge of a boundary.
+ */
+public class SpatialPredicateTest extends TestCase {
+    private static final GeometryFactory gf = new GeometryFactory();
+
+    private static Polygon square (double west, double south, double size) {
+        return gf.createPolygon(new Coordinate[] {
+                new Coordinate(west, south),
+                new Coordinate(west + size, south),
+                new Coordinate(west + size, south + size),
+                new Coordinate(west, south + size),
+                new Coordinate(west, south)
+        });
+    }
+
+    @Test
+    public void testPredicates () {
+        BoundaryMask mask = new BoundaryMask(square(-77, 38, 1), 100);
+
+        Geometry inside = square(-76.5, 38.5, 0.05);
+        Geometry outside = square(-75.5, 38.5, 0.05);
+        // a quarter of this one is inside, and its centroid is outside
+        Geometry edge = square(-76.025, 38.5, 0.1);
+
+        for (SpatialPredicate predicate : SpatialPredicate.values()) {
+            assertTrue(predicate.test(mask, inside));
+            assertFalse(predicate.test(mask, outside));
+        }
+
+        assertTrue(SpatialPredicate.INTERSECTS.test(mask, edge));
+        assertTrue(SpatialPredicate.ENVELOPE.test(mask, edge));
+        assertFalse(SpatialPredicate.CENTROID_WITHIN.test(mask, edge));
+        assertFalse(SpatialPredicate.MAJORITY_AREA.test(mask, edge));
+    }
+
+    @Test
+    public void testKeys () {
+        for (SpatialPredicate predicate : SpatialPredicate.values()) {
+            assertEquals(predicate, SpatialPredicate.fromKey(predicate.key()));
+        }
+
+        assertEquals(SpatialPredicate.CENTROID_WITHIN, SpatialPredicate.fromKey("centroid-within"));
+    }
+}
@@ -0,0 +1,77 @@
+package com.conveyal.data.census;
+
+import gnu.trove.set.TIntSet;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
+
+import static com.conveyal.data.census.ShapeDataStore.tile2lat;
+import static com.conveyal.data.census.ShapeDataStore.tile2lon;
+
+/**
+ * Test that tile covers include the tiles a geometry touches and no others.
+ */
+public class TileCoverTest extends TestCase {
+    private static final GeometryFactory gf = new GeometryFactory();
+
+    private static final int Z = ShapeDataStore.ZOOM_LEVEL, X = 585, Y = 783;
+
+    /** a ring just inside the edges of the given range of tiles, or just outside them if inset is negative */
+    private static LinearRing ring (int minX, int minY, int maxX, int maxY, double inset) {
+        double west = tile2lon(minX, Z) + inset, east = tile2lon(maxX + 1, Z) - inset;
+        double north = tile2lat(minY, Z) - inset, south = tile2lat(maxY + 1, Z) + inset;
+
+        return gf.createLinearRing(new Coordinate[] {
+                new Coordinate(west, north),
+                new Coordinate(east, north),
+                new Coordinate(east, south),
+                new Coordinate(west, south),
+                new Coordinate(west, north)
+        });
+    }
+
+    @Test
+    public void testHoles () {
+        // five by five tiles, with a hole slightly larger than the middle tile
+        Polygon polygon = gf.createPolygon(ring(X, Y, X + 4, Y + 4, 1e-4),
+                new LinearRing[] { ring(X + 2, Y + 2, X + 2, Y + 2, -1e-5) });
+
+        TIntSet tiles = TileCover.cover(polygon, Z);
+        assertEquals(24, tiles.size());
+        assertFalse(tiles.contains(GeoidTileIndex.packTile(X + 2, Y + 2)));
+        assertTrue(tiles.contains(GeoidTileIndex.packTile(X + 1, Y + 2)));
+
+        // a hole inside one tile does not remove it
+        polygon = gf.createPolygon(ring(X, Y, X + 4, Y + 4, 1e-4),
+                new LinearRing[] { ring(X + 2, Y + 2, X + 2, Y + 2, 1e-4) });
+        assertEquals(25, TileCover.cover(polygon, Z).size());
+    }
+
+    @Test
+    public void testMultiPolygon () {
+        // two tiles far apart, not the hundreds of tiles between them
+        Polygon a = gf.createPolygon(ring(X, Y, X, Y, 1e-4), null);
+        Polygon b = gf.createPolygon(ring(X + 20, Y + 20, X + 20, Y + 20, 1e-4), null);
+
+        TIntSet tiles = TileCover.cover(gf.createMultiPolygon(new Polygon[] { a, b }), Z);
+        assertEquals(2, tiles.size());
+        assertTrue(tiles.contains(GeoidTileIndex.packTile(X, Y)));
+        assertTrue(tiles.contains(GeoidTileIndex.packTile(X + 20, Y + 20)));
+    }
+
+    @Test
+    public void testDiagonalLine () {
+        Coordinate start = new Coordinate(tile2lon(X, Z) + 3e-4, tile2lat(Y, Z) - 2e-4);
+        Coordinate end = new Coordinate(tile2lon(X + 100, Z) + 1e-4, tile2lat(Y + 100, Z) - 4e-4);
+
+        TIntSet tiles = TileCover.cover(gf.createLineString(new Coordinate[] { start, end }), Z);
+
+        // a line crossing 100 columns and 100 rows passes through 201 tiles, of 10,201 in its envelope
+        assertEquals(201, tiles.size());
+        assertTrue(tiles.contains(GeoidTileIndex.packTile(X, Y)));
+        assertTrue(tiles.contains(GeoidTileIndex.packTile(X + 100, Y + 100)));
+    }
+}
@@ -0,0 +1,72 @@
+package com.conveyal.data.census;
+
+import com.google.common.io.ByteStreams;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Test writing tiles to a directory and to a zip archive.
+ */
+public class TileSinkTest extends TestCase {
+    @Test
+    public void testDirectory () throws Exception {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        DirectoryTileSink sink = new DirectoryTileSink(dir);
+        String key = TileSink.splitTileKey(12, 1170, 1566);
+
+        assertNull(sink.get(key));
+
+        sink.put(key, data(1));
+        assertTrue(Arrays.equals(data(1), sink.get(key)));
+
+        // replacing a tile leaves no temporary files behind
+        sink.put(key, data(2));
+        assertTrue(Arrays.equals(data(2), sink.get(key)));
+        assertEquals(1, new File(dir, key).getParentFile().list().length);
+
+        sink.delete(key);
+        assertNull(sink.get(key));
+
+        // deleting a tile that isn't there is not an error
+        sink.delete(key);
+        sink.close();
+    }
+
+    @Test
+    public void testZip () throws Exception {
+        File file = File.createTempFile("tiles", ".zip");
+        file.deleteOnExit();
+
+        ZipTileSink sink = new ZipTileSink(file);
+        sink.put(TileSink.tileKey(585, 783), data(1));
+        sink.put(TileSink.overflowTileKey(73, 97), data(2));
+
+        // archives are always new
+        assertNull(sink.get(TileSink.tileKey(585, 783)));
+        sink.close();
+
+        try (ZipFile zip = new ZipFile(file)) {
+            assertEquals(2, zip.size());
+
+            ZipEntry entry = zip.getEntry(TileSink.tileKey(585, 783));
+            // tiles are already compressed
+            assertEquals(ZipEntry.STORED, entry.getMethod());
+            assertTrue(Arrays.equals(data(1), ByteStreams.toByteArray(zip.getInputStream(entry))));
+
+            entry = zip.getEntry(TileSink.overflowTileKey(73, 97));
+            assertTrue(Arrays.equals(data(2), ByteStreams.toByteArray(zip.getInputStream(entry))));
+        }
+    }
+
+    private static byte[] data (int i) {
+        byte[] data = new byte[100 + i];
+        Arrays.fill(data, (byte) i);
+        return data;
+    }
+}
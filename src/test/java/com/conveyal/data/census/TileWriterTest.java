@@ -0,0 +1,103 @@
+package com.conveyal.data.census;
+
+import com.conveyal.data.geobuf.GeobufFeature;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.conveyal.data.census.ShapeDataStore.tile2lat;
+import static com.conveyal.data.census.ShapeDataStore.tile2lon;
+
+/**
+ * Test that the tile writer splits tiles with too many features, and does not write tiles that have not changed.
+ */
+public class TileWriterTest extends TestCase {
+    private static final GeometryFactory gf = new GeometryFactory();
+
+    private static final int X = 585, Y = 783;
+
+    @Test
+    public void testSplit () throws Exception {
+        MemoryTileSink sink = new MemoryTileSink();
+        int z = ShapeDataStore.ZOOM_LEVEL + 1;
+
+        // two features in the north west quadrant, one in each of the others
+        List<GeobufFeature> features = new ArrayList<>();
+        features.add(feature(1, z, X * 2, Y * 2));
+        features.add(feature(2, z, X * 2, Y * 2));
+        features.add(feature(3, z, X * 2 + 1, Y * 2));
+        features.add(feature(4, z, X * 2, Y * 2 + 1));
+        features.add(feature(5, z, X * 2 + 1, Y * 2 + 1));
+
+        TileWriter writer;
+        try (Pipeline pipeline = new Pipeline("test", 60)) {
+            writer = new TileWriter(sink, new QuantizedFeatureSerializer(7), pipeline, 2, 2, 4, null);
+            writer.maxTileFeatures = 2;
+            writer.write(GeoidTileIndex.packTile(X, Y), () -> features);
+            writer.finish();
+        }
+
+        assertEquals(Arrays.asList("0", "1", "2", "3"), writer.splits.get(TilesetDescriptor.splitKey(X, Y)));
+
+        // the z11 tile itself is not written, only its leaves
+        assertEquals(4, sink.tiles.size());
+        assertNull(sink.tiles.get(TileSink.tileKey(X, Y)));
+        assertEquals(2, writer.manifest.tiles.get(TileSink.splitTileKey(z, X * 2, Y * 2)).features);
+        assertEquals(1, writer.manifest.tiles.get(TileSink.splitTileKey(z, X * 2 + 1, Y * 2 + 1)).features);
+    }
+
+    @Test
+    public void testUnchanged () throws Exception {
+        int z = ShapeDataStore.ZOOM_LEVEL;
+        MemoryTileSink sink = new MemoryTileSink();
+        TileManifest previous = write(sink, null, feature(1, z, X, Y), feature(2, z, X + 1, Y));
+        assertEquals(2, sink.puts);
+
+        // only the tile whose features have changed is written again
+        sink.puts = 0;
+        TileManifest manifest = write(sink, previous, feature(1, z, X, Y), feature(3, z, X + 1, Y));
+        assertEquals(1, sink.puts);
+        assertEquals(previous.tiles.get(TileSink.tileKey(X, Y)).hash, manifest.tiles.get(TileSink.tileKey(X, Y)).hash);
+        assertFalse(previous.tiles.get(TileSink.tileKey(X + 1, Y)).hash
+                .equals(manifest.tiles.get(TileSink.tileKey(X + 1, Y)).hash));
+    }
+
+    /** Write each feature to the z11 tile it is in, returning the manifest */
+    private static TileManifest write (TileSink sink, TileManifest previous, GeobufFeature... features)
+            throws IOException {
+        try (Pipeline pipeline = new Pipeline("test", 60)) {
+            TileWriter writer = new TileWriter(sink, new QuantizedFeatureSerializer(7), pipeline, 2, 2, 4, previous);
+
+            for (GeobufFeature feature : features) {
+                Envelope e = feature.geometry.getEnvelopeInternal();
+                int x = ShapeDataStore.lon2tile(e.centre().x, ShapeDataStore.ZOOM_LEVEL);
+                int y = ShapeDataStore.lat2tile(e.centre().y, ShapeDataStore.ZOOM_LEVEL);
+                writer.write(GeoidTileIndex.packTile(x, y), () -> Arrays.asList(feature));
+            }
+
+            writer.finish();
+            return writer.manifest;
+        }
+    }
+
+    /** a feature covering the middle of the given tile */
+    private static GeobufFeature feature (long id, int z, int x, int y) {
+        double width = tile2lon(x + 1, z) - tile2lon(x, z), height = tile2lat(y, z) - tile2lat(y + 1, z);
+        Envelope env = new Envelope(tile2lon(x, z) + width / 4, tile2lon(x + 1, z) - width / 4,
+                tile2lat(y + 1, z) + height / 4, tile2lat(y, z) - height / 4);
+
+        GeobufFeature feature = new GeobufFeature();
+        feature.numericId = id;
+        feature.geometry = gf.toGeometry(env);
+        feature.properties = new HashMap<>();
+        return feature;
+    }
+}
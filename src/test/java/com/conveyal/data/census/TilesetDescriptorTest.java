@@ -0,0 +1,89 @@
+package com.conveyal.data.census;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.conveyal.data.census.ShapeDataStore.tile2lat;
+import static com.conveyal.data.census.ShapeDataStore.tile2lon;
+
+/**
+ * Test that readers find the stored tiles of split z11 tiles, and the right level of the pyramid.
+ */
+public class TilesetDescriptorTest extends TestCase {
+    private static final int X = 585, Y = 783;
+
+    @Test
+    public void testTileKeys () {
+        TilesetDescriptor descriptor = new TilesetDescriptor();
+
+        // tiles that were not split are stored whole
+        assertEquals(Collections.singletonList(TileSink.tileKey(X, Y)), descriptor.tileKeys(X, Y));
+
+        // the north west and south west quadrants, and the north east quadrant of the south east quadrant
+        descriptor.splits.put(TilesetDescriptor.splitKey(X, Y), Arrays.asList("0", "2", "31"));
+
+        assertEquals(Arrays.asList(
+                TileSink.splitTileKey(12, X * 2, Y * 2),
+                TileSink.splitTileKey(12, X * 2, Y * 2 + 1),
+                TileSink.splitTileKey(13, X * 4 + 3, Y * 4 + 2)
+        ), descriptor.tileKeys(X, Y));
+
+        // only leaves touching an envelope just inside the south east quadrant
+        Envelope env = new Envelope(tile2lon(X * 2 + 1, 12) + 1e-6, tile2lon(X * 2 + 2, 12) - 1e-6,
+                tile2lat(Y * 2 + 2, 12) + 1e-6, tile2lat(Y * 2 + 1, 12) - 1e-6);
+        assertEquals(Collections.singletonList(TileSink.splitTileKey(13, X * 4 + 3, Y * 4 + 2)),
+                descriptor.tileKeys(X, Y, env));
+
+        // other tiles are unaffected
+        assertEquals(Collections.singletonList(TileSink.tileKey(X + 1, Y)), descriptor.tileKeys(X + 1, Y, env));
+    }
+
+    @Test
+    public void testPyramidTileKeys () {
+        TilesetDescriptor descriptor = new TilesetDescriptor();
+        int x = X >> 3, y = Y >> 3;
+
+        assertEquals(Collections.singletonList(TileSink.pyramidTileKey(8, x, y)), descriptor.pyramidTileKeys(8, x, y));
+
+        // the north east quadrant, and the south west quadrant of the south east quadrant
+        descriptor.pyramidSplits.put(TilesetDescriptor.pyramidSplitKey(8, x, y), Arrays.asList("1", "32"));
+
+        assertEquals(Arrays.asList(
+                TileSink.pyramidSplitTileKey(8, 9, x * 2 + 1, y * 2),
+                TileSink.pyramidSplitTileKey(8, 10, x * 4 + 2, y * 4 + 3)
+        ), descriptor.pyramidTileKeys(8, x, y));
+
+        assertEquals(Collections.singletonList(TileSink.pyramidSplitTileKey(8, 9, x * 2 + 1, y * 2)),
+                descriptor.pyramidTileKeys(8, x, y, (z, lx, ly) -> z == 9));
+
+        // the same tile at another level of the pyramid was not split
+        assertEquals(Collections.singletonList(TileSink.pyramidTileKey(7, x >> 1, y >> 1)),
+                descriptor.pyramidTileKeys(7, x >> 1, y >> 1));
+    }
+
+    @Test
+    public void testPyramidLevel () {
+        // about a pixel of a 256 pixel tile
+        assertEquals(360.0 / 256 / 256, TilesetDescriptor.PyramidLevel.forZoom(8).tolerance, 1e-12);
+        assertEquals(TilesetDescriptor.PyramidLevel.forZoom(8).tolerance / 2,
+                TilesetDescriptor.PyramidLevel.forZoom(9).tolerance, 1e-12);
+
+        TilesetDescriptor descriptor = new TilesetDescriptor();
+        assertNull(descriptor.pyramidLevel(1));
+
+        descriptor.pyramid.add(TilesetDescriptor.PyramidLevel.forZoom(10));
+        descriptor.pyramid.add(TilesetDescriptor.PyramidLevel.forZoom(8));
+        descriptor.pyramid.add(TilesetDescriptor.PyramidLevel.forZoom(6));
+
+        // the coarsest level that is accurate enough
+        assertNull(descriptor.pyramidLevel(0));
+        assertNull(descriptor.pyramidLevel(TilesetDescriptor.PyramidLevel.forZoom(10).tolerance / 2));
+        assertEquals(10, descriptor.pyramidLevel(TilesetDescriptor.PyramidLevel.forZoom(10).tolerance).zoom);
+        assertEquals(8, descriptor.pyramidLevel(TilesetDescriptor.PyramidLevel.forZoom(7).tolerance).zoom);
+        assertEquals(6, descriptor.pyramidLevel(1).zoom);
+    }
+}